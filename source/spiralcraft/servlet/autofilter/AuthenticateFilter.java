@@ -15,7 +15,15 @@
 package spiralcraft.servlet.autofilter;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
@@ -33,7 +41,9 @@ import spiralcraft.security.auth.Credential;
 import spiralcraft.security.auth.TestAuthenticator;
 import spiralcraft.servlet.autofilter.spi.FocusFilter;
 import spiralcraft.servlet.security.BasicHttpAdapter;
+import spiralcraft.servlet.security.BearerHttpAdapter;
 import spiralcraft.servlet.security.HttpAdapter;
+import spiralcraft.servlet.util.BoundedCache;
 
 /**
  * <p>Requires HTTP based authentication using an application supplied 
@@ -46,6 +56,16 @@ import spiralcraft.servlet.security.HttpAdapter;
  *  set of credentials at a time)
  * </p>
  * 
+ * <p>When useSession is false, credentials that were verified successfully
+ *   are remembered for credentialCacheTtlMs, so that a client that sends 
+ *   the same Authorization header with every request is not 
+ *   re-authenticated each time. The cache is keyed on an HMAC of the header
+ *   with a key that is private to the filter instance, and never holds the
+ *   credentials themselves. Use invalidateCredentials() to forget the
+ *   credentials of a principal or a realm when a password is changed or a
+ *   user is logged out.
+ * </p>
+ * 
  * @author mike
  *
  */
@@ -59,6 +79,13 @@ public class AuthenticateFilter
   private String sessionName;
   private boolean useSession;
   private boolean bound;
+  private int credentialCacheSize=1024;
+  private long credentialCacheTtlMs=300000;
+  private BoundedCache<String,String> credentialCache;
+  private ThreadLocal<Mac> cacheKeyMac;
+  
+  private static final ConcurrentHashMap<String,Set<AuthenticateFilter>> 
+    cachingFilters=new ConcurrentHashMap<>();
     
   
   { 
@@ -72,6 +99,82 @@ public class AuthenticateFilter
   { this.useSession=val;
   }
   
+  /**
+   * The maximum number of verified credentials to remember when useSession
+   *   is false. Defaults to 1024. Set to 0 to authenticate every request.
+   */
+  public void setCredentialCacheSize(int credentialCacheSize)
+  { this.credentialCacheSize=credentialCacheSize;
+  }
+  
+  /**
+   * How long verified credentials are trusted without re-authenticating
+   *   them. Defaults to 5 minutes.
+   */
+  public void setCredentialCacheTtlMs(long credentialCacheTtlMs)
+  { this.credentialCacheTtlMs=credentialCacheTtlMs;
+  }
+  
+  /**
+   * @return The number of requests authenticated from the credential cache
+   */
+  public long getCredentialCacheHits()
+  { return credentialCache!=null?credentialCache.getHits():0;
+  }
+
+  /**
+   * @return The number of requests with credentials that were not in the
+   *   credential cache
+   */
+  public long getCredentialCacheMisses()
+  { return credentialCache!=null?credentialCache.getMisses():0;
+  }
+  
+  /**
+   * Forget all the verified credentials for this filter's realm
+   */
+  public void invalidateCredentials()
+  { 
+    if (credentialCache!=null)
+    { credentialCache.clear();
+    }
+  }
+  
+  /**
+   * Forget the verified credentials of a principal, e.g. when its password
+   *   is changed or it is logged out
+   */
+  public void invalidateCredentials(String principalName)
+  {
+    if (credentialCache!=null)
+    { credentialCache.removeIf((key,name) -> name.equals(principalName));
+    }
+  }
+  
+  /**
+   * Forget verified credentials in all the AuthenticateFilters for a realm
+   * 
+   * @param realm The realm name
+   * @param principalName The principal whose credentials are no longer
+   *   valid, or null for all principals
+   */
+  public static void invalidateCredentials(String realm,String principalName)
+  {
+    Set<AuthenticateFilter> filters=cachingFilters.get(realm);
+    if (filters!=null)
+    {
+      for (AuthenticateFilter filter: filters)
+      { 
+        if (principalName!=null)
+        { filter.invalidateCredentials(principalName);
+        }
+        else
+        { filter.invalidateCredentials();
+        }
+      }
+    }
+  }
+  
   @Override
   public void init(FilterConfig config)
     throws ServletException
@@ -89,9 +192,77 @@ public class AuthenticateFilter
     realm=authenticator.getRealmName();
     httpAdapter.setRealm(realm);
     sessionName="spiralcraft.security.auth."+realm;
+    
+    if (!useSession && credentialCacheSize>0)
+    { 
+      byte[] secret=new byte[32];
+      new SecureRandom().nextBytes(secret);
+      final SecretKeySpec key=new SecretKeySpec(secret,"HmacSHA256");
+      cacheKeyMac
+        =ThreadLocal.withInitial
+          (() ->
+            {
+              try
+              { 
+                Mac mac=Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+              }
+              catch (GeneralSecurityException x)
+              { throw new IllegalStateException("HmacSHA256 not available",x);
+              }
+            }
+          );
+      credentialCache=new BoundedCache<String,String>(credentialCacheSize);
+      credentialCache.setTimeToLiveMs(credentialCacheTtlMs);
+      cachingFilters
+        .computeIfAbsent(realm,k -> ConcurrentHashMap.newKeySet())
+        .add(this);
+    }
 
   }
   
+  @Override
+  public void destroy()
+  {
+    if (credentialCache!=null)
+    {
+      Set<AuthenticateFilter> filters=cachingFilters.get(realm);
+      if (filters!=null)
+      { filters.remove(this);
+      }
+      credentialCache.clear();
+    }
+    super.destroy();
+  }
+  
+  /**
+   * @param httpAdapter The HttpAdapter which reads credentials from the
+   *   request and challenges the client. Defaults to a BasicHttpAdapter.
+   */
+  public void setHttpAdapter(HttpAdapter httpAdapter)
+  { this.httpAdapter=httpAdapter;
+  }
+  
+  /**
+   * @param scheme The HTTP authentication scheme to use, "Basic" or 
+   *   "Bearer". A shortcut for setHttpAdapter().
+   */
+  public void setScheme(String scheme)
+  {
+    if (scheme.equalsIgnoreCase("Basic"))
+    { this.httpAdapter=new BasicHttpAdapter();
+    }
+    else if (scheme.equalsIgnoreCase("Bearer"))
+    { this.httpAdapter=new BearerHttpAdapter();
+    }
+    else
+    { 
+      throw new IllegalArgumentException
+        ("Unsupported authentication scheme '"+scheme+"'");
+    }
+  }
+  
   /**
    * @param authenticator The authenticator which will be used to validate the
    *    userId and password
@@ -186,6 +357,19 @@ public class AuthenticateFilter
       return true;
     }
     
+    String cacheKey=null;
+    if (session==null && credentialCache!=null)
+    {
+      String authorization=httpRequest.getHeader("Authorization");
+      if (authorization!=null)
+      {
+        cacheKey=cacheKey(authorization);
+        if (credentialCache.get(cacheKey)!=null)
+        { return true;
+        }
+      }
+    }
+    
     Credential<?>[] credentials
       =httpAdapter.readAuthorization(httpRequest);
     
@@ -219,6 +403,13 @@ public class AuthenticateFilter
         if (debug)
         { log.fine("Authentication successful");
         }
+        if (cacheKey!=null)
+        { 
+          credentialCache.put
+            (cacheKey
+            ,session.getPrincipal()!=null?session.getPrincipal().getName():""
+            );
+        }
         return true;
       }
       else
@@ -233,4 +424,16 @@ public class AuthenticateFilter
     }
   }
 
+  /**
+   * @return An HMAC of the Authorization header, which identifies the
+   *   credentials without revealing them
+   */
+  private String cacheKey(String authorization)
+  {
+    byte[] hash
+      =cacheKeyMac.get()
+        .doFinal(authorization.getBytes(StandardCharsets.UTF_8));
+    return Base64.getEncoder().withoutPadding().encodeToString(hash);
+  }
+
 }
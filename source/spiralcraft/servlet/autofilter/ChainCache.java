@@ -0,0 +1,91 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.autofilter;
+
+import java.util.BitSet;
+
+import javax.servlet.FilterChain;
+
+import spiralcraft.servlet.util.BoundedCache;
+
+/**
+ * <p>A bounded cache of FilterChains, keyed on the filter array supplied by
+ *   the FilterSet that governs a path, the subset of those filters that
+ *   apply to the path, and the container endpoint.
+ * </p>
+ *
+ * <p>Because the key is normalized to the filter selection rather than the
+ *   request URI, all the URIs under a directory that select the same
+ *   filters share a single chain, and the size of the cache is independent
+ *   of URL cardinality.
+ * </p>
+ */
+class ChainCache
+  extends BoundedCache<ChainCache.Key,FilterChain>
+{
+
+  ChainCache(int maxEntries)
+  { super(maxEntries);
+  }
+
+  /**
+   * Identifies a filter selection
+   */
+  static final class Key
+  {
+    private final AutoFilter[] filters;
+    private final BitSet matches;
+    private final FilterChain endpoint;
+    private final int hashCode;
+
+    /**
+     * @param filters The effective filter array of the governing FilterSet,
+     *   compared by identity
+     * @param matches The indexes of the filters that apply to the path
+     * @param endpoint The container supplied endpoint, compared by identity
+     */
+    Key(AutoFilter[] filters,BitSet matches,FilterChain endpoint)
+    {
+      this.filters=filters;
+      this.matches=matches;
+      this.endpoint=endpoint;
+      this.hashCode
+        =(System.identityHashCode(filters)*31
+          +System.identityHashCode(endpoint)
+          )*31
+          +matches.hashCode();
+    }
+
+    @Override
+    public int hashCode()
+    { return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (o==this)
+      { return true;
+      }
+      if (!(o instanceof Key))
+      { return false;
+      }
+      Key key=(Key) o;
+      return key.filters==filters
+        && key.endpoint==endpoint
+        && key.matches.equals(matches);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.autofilter;
+
+import java.util.HashMap;
+import java.util.List;
+
+import spiralcraft.util.Path;
+import spiralcraft.util.tree.PathTree;
+
+/**
+ * <p>An immutable, versioned view of the Controller's FilterSet tree that
+ *   request threads read without locking.
+ * </p>
+ *
+ * <p>The Controller's scan thread is the only writer of the live
+ *   PathTree&lt;FilterSet&gt;. After a scan that changes the tree, it
+ *   copies the structure and the effective filters of each node into a new
+ *   ChainSnapshot and publishes it with a single volatile write.
+ * </p>
+ */
+class ChainSnapshot
+{
+
+  final long version;
+  final Throwable throwable;
+  final Node root;
+
+  /**
+   * Copy the current state of the FilterSet tree into a new snapshot. Must
+   *   be called from the thread that owns the tree.
+   */
+  static ChainSnapshot create
+    (long version
+    ,PathTree<FilterSet> tree
+    ,Throwable throwable
+    )
+  { return new ChainSnapshot(version,copy(tree,null,null),throwable);
+  }
+
+  /**
+   * The snapshot in effect before the first scan, which has no filters
+   */
+  static ChainSnapshot empty()
+  { return new ChainSnapshot(0,null,null);
+  }
+
+  private ChainSnapshot(long version,Node root,Throwable throwable)
+  {
+    this.version=version;
+    this.root=root;
+    this.throwable=throwable;
+  }
+
+  /**
+   * @return The deepest node in the snapshot that corresponds to the
+   *   specified path
+   */
+  Node findDeepestNode(Path path)
+  {
+    Node node=root;
+    if (node==null)
+    { return null;
+    }
+
+    int size=path.size();
+    for (int i=0;i<size;i++)
+    {
+      Node child=node.getChild(path.getElement(i));
+      if (child==null)
+      { break;
+      }
+      node=child;
+    }
+    return node;
+  }
+
+  private static Node copy
+    (PathTree<FilterSet> tree
+    ,AutoFilter[] inherited
+    ,FilterSelector inheritedSelector
+    )
+  {
+    AutoFilter[] filters=inherited;
+    FilterSelector selector=inheritedSelector;
+    FilterSet filterSet=tree.get();
+    if (filterSet!=null)
+    {
+      List<AutoFilter> effectiveFilters=filterSet.getEffectiveFilters();
+      filters=effectiveFilters.toArray(new AutoFilter[effectiveFilters.size()]);
+      selector=new FilterSelector(filters);
+    }
+
+    HashMap<String,Node> children=null;
+    for (PathTree<FilterSet> child : tree.getChildren())
+    {
+      if (children==null)
+      { children=new HashMap<String,Node>();
+      }
+      children.put(child.getName(),copy(child,filters,selector));
+    }
+    return new Node(tree.getPath(),filters,selector,children);
+  }
+
+  /**
+   * An immutable copy of a PathTree node
+   */
+  static class Node
+  {
+    final Path path;
+
+    /**
+     * The effective filters of the nearest FilterSet at or above this node,
+     *   or null if there is none
+     */
+    final AutoFilter[] filters;
+
+    /**
+     * Selects the filters that apply to a path, shared by all the nodes
+     *   that inherit the same filters
+     */
+    final FilterSelector selector;
+
+    private final HashMap<String,Node> children;
+
+    Node
+      (Path path
+      ,AutoFilter[] filters
+      ,FilterSelector selector
+      ,HashMap<String,Node> children
+      )
+    {
+      this.path=path;
+      this.filters=filters;
+      this.selector=selector;
+      this.children=children;
+    }
+
+    Node getChild(String name)
+    { return children!=null?children.get(name):null;
+    }
+  }
+}
@@ -24,7 +24,9 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import spiralcraft.servlet.autofilter.spi.FocusFilter;
 import spiralcraft.servlet.util.LinkedFilterChain;
 import spiralcraft.util.Path;
 import spiralcraft.vfs.Resource;
@@ -125,4 +127,30 @@ public class CompoundFilter
     { chain.doFilter(request, response);
     }
   }
-}
\ No newline at end of file
+  
+  /**
+   * <p>Bind the FocusFilters in this set that apply to the request, without
+   *   performing their filter functions (see FocusFilter.warmUp()).
+   * </p>
+   * 
+   * @return true if the page was compiled by one of the filters
+   */
+  public boolean warmUp
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    )
+    throws IOException,ServletException
+  {
+    Path requestPath=Path.create(contextAdapter.getRelativePath(request));
+    for (AutoFilter filter:filters)
+    { 
+      if (filter instanceof FocusFilter
+          && filter.appliesToPath(requestPath)
+          && ((FocusFilter<?>) filter).warmUp(request,response)
+         )
+      { return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,265 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.autofilter;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+import spiralcraft.util.tree.PathTree;
+import spiralcraft.vfs.Resource;
+import spiralcraft.vfs.file.FileResource;
+import spiralcraft.vfs.ovl.OverlayResource;
+
+/**
+ * <p>Watches the filesystem directories that back the Controller's
+ *   FilterSet tree, and reports which nodes need to be re-scanned, so the
+ *   Controller does not have to walk the whole tree to find a changed
+ *   control file.
+ * </p>
+ *
+ * <p>Every layer of an OverlayResource is watched, so a change to a
+ *   control file in the base (code) layer is seen as well as one in the
+ *   publish layer. Nodes with a layer that is not backed by a FileResource,
+ *   or that can't be registered, are reported by getUnwatched() so they
+ *   can be polled.
+ * </p>
+ *
+ * <p>Not thread safe- used only by the Controller's scan thread.
+ * </p>
+ */
+class ControlFileWatcher
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(ControlFileWatcher.class);
+
+  static final String CONTROL_FILE_NAME=".control.xml";
+
+  private final WatchService watchService;
+
+  private final HashMap<WatchKey,Update> watched
+    =new HashMap<WatchKey,Update>();
+
+  private final HashMap<PathTree<FilterSet>,Update> unwatched
+    =new HashMap<PathTree<FilterSet>,Update>();
+
+  ControlFileWatcher()
+    throws IOException
+  { watchService=FileSystems.getDefault().newWatchService();
+  }
+
+  /**
+   * Watch the directories of every layer that backs the specified node
+   *
+   * @return true if the directories are being watched, false if the node
+   *   must be polled.
+   */
+  boolean register(PathTree<FilterSet> node,Resource resource)
+  {
+    List<Resource> layers=new ArrayList<Resource>();
+    addLayers(resource,layers);
+
+    Update update=new Update(node,resource,false);
+    boolean watchable=true;
+    for (Resource layer: layers)
+    {
+      if (!(layer instanceof FileResource))
+      { 
+        watchable=false;
+        continue;
+      }
+
+      java.nio.file.Path directory=((FileResource) layer).getFile().toPath();
+      if (!Files.isDirectory(directory))
+      { 
+        // Not present in this layer. If it is created, the parent node's 
+        //   watch on this layer will discover it.
+        continue;
+      }
+
+      try
+      {
+        WatchKey key
+          =directory.register
+            (watchService
+            ,StandardWatchEventKinds.ENTRY_CREATE
+            ,StandardWatchEventKinds.ENTRY_DELETE
+            ,StandardWatchEventKinds.ENTRY_MODIFY
+            );
+        watched.put(key,update);
+      }
+      catch (IOException x)
+      { 
+        log.log(Level.WARNING,"Could not watch "+layer.getURI()+", polling",x);
+        watchable=false;
+      }
+    }
+
+    if (watchable)
+    { unwatched.remove(node);
+    }
+    else
+    { unwatched.put(node,update);
+    }
+    return watchable;
+  }
+
+  /**
+   * Collect the non-overlay layers of a resource, top layer first
+   */
+  private static void addLayers(Resource resource,List<Resource> layers)
+  {
+    if (resource instanceof OverlayResource)
+    {
+      addLayers(((OverlayResource) resource).getOverlay(),layers);
+      addLayers(((OverlayResource) resource).getBase(),layers);
+    }
+    else if (resource!=null)
+    { layers.add(resource);
+    }
+  }
+
+  /**
+   * Stop tracking a node that has been removed from the tree
+   */
+  void unregister(PathTree<FilterSet> node)
+  { unwatched.remove(node);
+  }
+
+  /**
+   * @return The nodes that could not be watched and must be polled
+   */
+  Collection<Update> getUnwatched()
+  { return unwatched.values();
+  }
+
+  /**
+   * <p>Drain all pending filesystem events without blocking.
+   * </p>
+   *
+   * @return The nodes which need to be re-scanned, or null if events were
+   *   lost and the whole tree must be re-scanned.
+   */
+  List<Update> poll()
+  {
+    LinkedHashMap<PathTree<FilterSet>,Update> updates
+      =new LinkedHashMap<PathTree<FilterSet>,Update>();
+    boolean overflow=false;
+
+    WatchKey key;
+    while ((key=watchService.poll())!=null)
+    {
+      Update update=watched.get(key);
+      for (WatchEvent<?> event: key.pollEvents())
+      {
+        if (update==null)
+        { continue;
+        }
+
+        if (event.kind()==StandardWatchEventKinds.OVERFLOW)
+        {
+          overflow=true;
+          continue;
+        }
+
+        java.nio.file.Path name=(java.nio.file.Path) event.context();
+        boolean discover;
+        if (CONTROL_FILE_NAME.equals(name.toString()))
+        { discover=false;
+        }
+        else if (event.kind()==StandardWatchEventKinds.ENTRY_CREATE)
+        {
+          java.nio.file.Path dir=(java.nio.file.Path) key.watchable();
+          if (!Files.isDirectory(dir.resolve(name)))
+          { continue;
+          }
+          discover=true;
+        }
+        else if (event.kind()==StandardWatchEventKinds.ENTRY_DELETE)
+        {
+          if (update.node.getChild(name.toString())==null)
+          { continue;
+          }
+          discover=true;
+        }
+        else
+        { continue;
+        }
+
+        Update existing=updates.get(update.node);
+        if (existing==null || (discover && !existing.discover))
+        {
+          updates.put
+            (update.node,new Update(update.node,update.resource,discover));
+        }
+      }
+
+      if (!key.reset())
+      {
+        // Directory is gone
+        watched.remove(key);
+      }
+    }
+
+    if (overflow)
+    { return null;
+    }
+    return new ArrayList<Update>(updates.values());
+  }
+
+  void close()
+  {
+    try
+    { watchService.close();
+    }
+    catch (IOException x)
+    { log.log(Level.WARNING,"Error closing WatchService",x);
+    }
+    watched.clear();
+    unwatched.clear();
+  }
+
+  /**
+   * A node of the FilterSet tree that needs to be re-scanned
+   */
+  static class Update
+  {
+    final PathTree<FilterSet> node;
+    final Resource resource;
+
+    /**
+     * Whether child directories have been added or removed
+     */
+    final boolean discover;
+
+    Update(PathTree<FilterSet> node,Resource resource,boolean discover)
+    {
+      this.node=node;
+      this.resource=resource;
+      this.discover=discover;
+    }
+  }
+}
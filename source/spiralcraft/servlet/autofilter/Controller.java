@@ -19,10 +19,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.URI;
+import java.util.BitSet;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import spiralcraft.common.ContextualException;
 import spiralcraft.common.LifecycleException;
@@ -45,9 +50,8 @@ import spiralcraft.servlet.kit.InternalHttpServletRequest;
 import spiralcraft.servlet.kit.InternalHttpServletResponse;
 import spiralcraft.servlet.kit.StandardFilterConfig;
 import spiralcraft.servlet.kit.WebApplicationContext;
-import spiralcraft.servlet.util.LinkedFilterChain;
+import spiralcraft.servlet.util.ArrayFilterChain;
 import spiralcraft.text.html.URLEncoder;
-import spiralcraft.time.Clock;
 import spiralcraft.util.Path;
 import spiralcraft.util.URIUtil;
 import spiralcraft.util.refpool.URIPool;
@@ -77,9 +81,31 @@ import spiralcraft.vfs.Package;
  *   paths.
  * </p>
  *   
- * <p>The Controller will re-scan the resource tree for new or changed
- *   control files at a configurable interval that defaults to every 10
- *   seconds.
+ * <p>When dynamic updates are enabled, the Controller will re-scan the
+ *   resource tree for new or changed control files on a background thread
+ *   at a configurable interval that defaults to every 10 seconds.
+ * </p>
+ * 
+ * <p>When the "updateMode" init parameter is set to "watch", the
+ *   Controller instead uses the filesystem's WatchService to re-scan only
+ *   the parts of the tree where a control file or a directory has changed.
+ *   Parts of the tree not backed by the local filesystem are still polled.
+ * </p>
+ * 
+ * <p>When the "warmUp" init parameter is set, all the ".webui" pages in
+ *   the publish overlay are compiled and bound on a background pool at 
+ *   startup (see WarmUp). Use "servlet" when pages are served by a UIServlet,
+ *   which starts the warm-up once it is initialized, or "filter" when pages
+ *   are served by a UIFilter in the Controller's chain. The pool size is set
+ *   by "warmUpThreads".
+ * </p>
+ * 
+ * <p>Request threads never lock the Controller. They resolve filter chains
+ *   against an immutable ChainSnapshot of the tree which the scan thread
+ *   replaces atomically whenever it detects a change. Each FilterSet's
+ *   filters are classified by pattern when the snapshot is built, and the
+ *   resulting chains are immutable arrays shared by all the paths that
+ *   select the same filters.
  * </p>
  */
 public class Controller
@@ -87,22 +113,38 @@ public class Controller
   implements Filter,Contextual
 {
   
+  /**
+   * The ServletContext attribute that holds the version of the filter tree
+   *   snapshot, a Long that changes whenever the code tree is found to have
+   *   changed.
+   */
+  public static final String TREE_VERSION_ATTRIBUTE
+    ="spiralcraft.servlet.autofilter.Controller.treeVersion";
+  
   private int updateIntervalMs=10000;
   private boolean enableDynamicUpdates=false;
+  private boolean watchUpdates=false;
   
-  private final HashMap<String,CacheEntry> uriCache
-    =new HashMap<String,CacheEntry>();
-  
+  // Owned by the scan thread- never read by request threads
   private final PathTree<FilterSet> pathTree
     =new PathTree<FilterSet>(null);
+  private boolean treeChanged;
+  private boolean firstScanComplete;
+  private Throwable lastThrowable;
+  private ControlFileWatcher watcher;
+  
+  private volatile ChainSnapshot snapshot
+    =ChainSnapshot.empty();
+  private ScheduledExecutorService updateExecutor;
+  
+  private final ChainCache chainCache=new ChainCache(1024);
+  
+  private WarmUp warmUp;
   
   private FilterConfig config;
-  private long lastUpdate;
   
-  private Throwable throwable;
   private boolean showExceptions=false;
   private boolean tracePathResolution=false;
-  private boolean firstScanComplete;
   
   private ResourceFilter exclusionFilter
     =new ResourceFilter()
@@ -227,6 +269,16 @@ public class Controller
       updateIntervalMs
         =Integer.parseInt(config.getInitParameter("updateIntervalMs"));
     }
+    
+    if ("watch".equals(config.getInitParameter("updateMode")))
+    { watchUpdates=true;
+    }
+    
+    if (config.getInitParameter("chainCacheSize")!=null)
+    { 
+      chainCache.setMaxEntries
+        (Integer.parseInt(config.getInitParameter("chainCacheSize")));
+    }
 
     appContextFilter.setContainer(publishRoot.asContainer());
     appContextFilter.init(config);
@@ -280,15 +332,112 @@ public class Controller
         log.fine("publishOverlay="+publishOverlay);
       }
       
+      if (enableDynamicUpdates && watchUpdates)
+      { 
+        try
+        { watcher=new ControlFileWatcher();
+        }
+        catch (IOException x)
+        { log.log(Level.WARNING,"WatchService not available, polling",x);
+        }
+      }
+      
       updateConfig();
     }
     finally
     { pop();
     }
     
+    if (enableDynamicUpdates && updateIntervalMs>0)
+    { startUpdates();
+    }
     
     // Prime various paths
     prime("/");
+    
+    String warmUpMode=config.getInitParameter("warmUp");
+    if (warmUpMode!=null)
+    { startWarmUp(warmUpMode,config);
+    }
+  }
+  
+  /**
+   * <p>Register a WarmUp for the UIServlet to start, or start it now if 
+   *   pages are served by a Filter
+   * </p>
+   */
+  private void startWarmUp(String warmUpMode,FilterConfig config)
+  {
+    int threads=Runtime.getRuntime().availableProcessors();
+    if (config.getInitParameter("warmUpThreads")!=null)
+    { threads=Integer.parseInt(config.getInitParameter("warmUpThreads"));
+    }
+    
+    URI manifestURI=URI.create("context://data/.warmup");
+    if (config.getInitParameter("warmUpManifestURI")!=null)
+    { manifestURI=URI.create(config.getInitParameter("warmUpManifestURI"));
+    }
+    
+    warmUp
+      =new WarmUp
+        (this
+        ,config.getServletContext()
+        ,publishOverlay
+        ,exclusionFilter
+        ,threads
+        ,manifestURI
+        );
+    config.getServletContext().setAttribute(WarmUp.ATTRIBUTE,warmUp);
+    if ("filter".equals(warmUpMode))
+    { warmUp.start(null);
+    }
+  }
+  
+  /**
+   * Start the single background thread that re-scans the resource tree
+   *   and publishes new snapshots
+   */
+  private void startUpdates()
+  {
+    final String threadName="autofilter.Controller-update "+publishRoot.getURI();
+    updateExecutor
+      =Executors.newSingleThreadScheduledExecutor
+        (new ThreadFactory()
+        {
+          @Override
+          public Thread newThread(Runnable runnable)
+          { 
+            Thread thread=new Thread(runnable,threadName);
+            thread.setDaemon(true);
+            return thread;
+          }
+        }
+        );
+    
+    updateExecutor.scheduleWithFixedDelay
+      (new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          push();
+          try
+          { updateConfig();
+          }
+          catch (RuntimeException x)
+          { 
+            // Keep the schedule alive
+            log.log(Level.WARNING,"Error updating filter tree",x);
+          }
+          finally
+          { pop();
+          }
+        }
+      }
+      ,updateIntervalMs
+      ,updateIntervalMs
+      ,TimeUnit.MILLISECONDS
+      );
   }
   
   
@@ -297,7 +446,7 @@ public class Controller
   {
     InternalHttpServletRequest request
       =new InternalHttpServletRequest();
-    request.setRequestURI("/");
+    request.setRequestURI(path);
     
     HttpServletResponse response
       =new InternalHttpServletResponse();
@@ -452,11 +601,10 @@ public class Controller
     try
     {
     
-      updateConfig();
-      
+      ChainSnapshot snapshot=this.snapshot;
       HttpServletRequest request=(HttpServletRequest) servletRequest;
     
-      if (throwable==null)
+      if (snapshot.throwable==null)
       {
         String pathString=request.getRequestURI();
         
@@ -470,7 +618,7 @@ public class Controller
         
         try
         {
-          FilterChain chain=resolveChain(pathString,endpoint);
+          FilterChain chain=resolveChain(snapshot,pathString,endpoint);
           if (chain!=null)
           { chain.doFilter(servletRequest,servletResponse);
           }
@@ -489,7 +637,7 @@ public class Controller
       else
       { 
         if (showExceptions)
-        { sendError(servletResponse,throwable);
+        { sendError(servletResponse,snapshot.throwable);
         }
         else
         { ((HttpServletResponse) servletResponse).sendError(500);
@@ -530,6 +678,62 @@ public class Controller
   
 
   
+  /**
+   * <p>Bind the Focus of each FocusFilter in the chain for the request,
+   *   without performing any of the filter functions, and compile the page
+   *   in that context (see WarmUp).
+   * </p>
+   * 
+   * @param endpoint The Servlet that serves the pages, or null if the pages
+   *   are served by a Filter
+   * @return Whether the request maps to a page, which is now compiled
+   */
+  boolean warmUp
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    ,WarmUp.Endpoint endpoint
+    )
+    throws ServletException,IOException
+  {
+    push();
+    try
+    {
+      ChainSnapshot snapshot=this.snapshot;
+      if (snapshot.throwable!=null)
+      { 
+        throw new ServletException
+          ("Filter tree failed to load",snapshot.throwable);
+      }
+      
+      if (focus!=null)
+      { FocusFilter.setFocusChain(request,focus);
+      }
+      
+      if (appContextFilter.warmUp(request,response))
+      { return true;
+      }
+      
+      Path path=new Path(request.getRequestURI(),'/');
+      ChainSnapshot.Node node=snapshot.findDeepestNode(path);
+      if (node!=null && node.filters!=null)
+      {
+        BitSet matches=node.selector.select(path);
+        for (int i=matches.nextSetBit(0);i>=0;i=matches.nextSetBit(i+1))
+        {
+          if (node.filters[i] instanceof FocusFilter
+              && ((FocusFilter<?>) node.filters[i]).warmUp(request,response)
+             )
+          { return true;
+          }
+        }
+      }
+      return endpoint!=null && endpoint.warmUp(request);
+    }
+    finally
+    { pop();
+    }
+  }
+  
   /**
    * Filter.destroy()
    */
@@ -537,6 +741,31 @@ public class Controller
   public void destroy()
   { 
     log.info("Shutting down WebApplicationContext");
+    if (warmUp!=null)
+    {
+      warmUp.cancel();
+      config.getServletContext().removeAttribute(WarmUp.ATTRIBUTE);
+      warmUp=null;
+    }
+    if (updateExecutor!=null)
+    { 
+      updateExecutor.shutdown();
+      try
+      { 
+        if (!updateExecutor.awaitTermination(updateIntervalMs,TimeUnit.MILLISECONDS))
+        { log.warning("Timed out waiting for resource tree scan to complete");
+        }
+      }
+      catch (InterruptedException x)
+      { Thread.currentThread().interrupt();
+      }
+      updateExecutor=null;
+    }
+    if (watcher!=null)
+    { 
+      watcher.close();
+      watcher=null;
+    }
     deleteRecursive(pathTree);
     try
     { stop();
@@ -546,34 +775,82 @@ public class Controller
     }
   }
   
-  private synchronized void updateConfig()
+  /**
+   * <p>Scan the resource tree and publish a new snapshot if anything
+   *   changed.
+   * </p>
+   * 
+   * <p>Called once from init() and subsequently only from the update
+   *   thread, so the pathTree has a single writer.
+   * </p>
+   */
+  private void updateConfig()
   {
     if (publishOverlay==null)
     { return;
     }
     
-    if (enableDynamicUpdates || lastUpdate==0)
-    {
-      long time=Clock.instance().approxTimeMillis();
-      if (time==0 || (updateIntervalMs>0 && time-lastUpdate>updateIntervalMs))
-      { 
-        throwable=null;
-        // System.err.println("Controller.updateConfig(): scanning");
-        try
-        { 
-          updateRecursive(pathTree,publishOverlay,false);
-          firstScanComplete=true;
-          // log.fine("Tree scan took "+(Clock.instance().approxTimeMillis()-time)+"ms ");
-        }
-        catch (Throwable x)
-        { 
-          throwable=x;
-          log.log(Level.WARNING,"Uncaught exception loading AutoFilters",x);
-        }
-        finally
-        { lastUpdate=Clock.instance().approxTimeMillis();
-        }
+    Throwable throwable=null;
+    treeChanged=false;
+    // System.err.println("Controller.updateConfig(): scanning");
+    try
+    { 
+      if (watcher!=null && firstScanComplete)
+      { updateWatched();
       }
+      else
+      {
+        updateRecursive(pathTree,publishOverlay,false,!firstScanComplete);
+        firstScanComplete=true;
+      }
+    }
+    catch (Throwable x)
+    { 
+      throwable=x;
+      log.log(Level.WARNING,"Uncaught exception loading AutoFilters",x);
+    }
+    
+    ChainSnapshot current=snapshot;
+    if (treeChanged 
+        || current.version==0
+        || throwable!=lastThrowable
+        )
+    { 
+      snapshot=ChainSnapshot.create(current.version+1,pathTree,throwable);
+      chainCache.clear();
+      config.getServletContext()
+        .setAttribute(TREE_VERSION_ATTRIBUTE,snapshot.version);
+      if (tracePathResolution)
+      { log.fine("Published filter tree snapshot "+snapshot.version);
+      }
+    }
+    lastThrowable=throwable;
+  }
+  
+  /**
+   * <p>Re-scan only the parts of the tree reported by the watcher, plus
+   *   any parts that could not be watched.
+   * </p>
+   */
+  private void updateWatched()
+    throws IOException,ContextualException
+  {
+    List<ControlFileWatcher.Update> updates=watcher.poll();
+    if (updates==null)
+    { 
+      // Events were lost
+      log.fine("Filesystem events overflowed, re-scanning "+publishRoot.getURI());
+      updateRecursive(pathTree,publishOverlay,false,false);
+      return;
+    }
+    
+    updates.addAll(watcher.getUnwatched());
+    for (ControlFileWatcher.Update update: updates)
+    { 
+      if (tracePathResolution)
+      { log.fine("Re-scanning "+update.node.getPath());
+      }
+      updateRecursive(update.node,update.resource,false,update.discover);
     }
   }
   
@@ -663,10 +940,19 @@ public class Controller
     return resource;
   }
   
+  /**
+   * Bring a branch of the FilterSet tree up to date with the resource tree
+   * 
+   * @param dirty Whether a FilterSet above this node has changed, requiring
+   *   the effective filters of this branch to be recomputed
+   * @param discover Whether to look for child directories that are not
+   *   already in the tree
+   */
   private void updateRecursive
     (PathTree<FilterSet> node
     ,Resource resource
     ,boolean dirty
+    ,boolean discover
     )
     throws IOException,ContextualException
   {
@@ -689,6 +975,10 @@ public class Controller
     }
     else
     {
+      if (watcher!=null && discover && isDynamicResource(resource))
+      { watcher.register(node,resource);
+      }
+      
       FilterSet filterSet=node.get();
       if (filterSet!=null)
       { 
@@ -719,8 +1009,8 @@ public class Controller
       { filterSet.compute();
       }
       
-      if (dirty && uriCache.size()>0)
-      { uriCache.clear();
+      if (dirty)
+      { treeChanged=true;
       }
       
       if (filterSet!=null && filterSet.getException()!=null)
@@ -741,6 +1031,7 @@ public class Controller
             ?child.get().getContainerResource()
             :resource.asContainer().getChild(child.getName())
           ,dirty
+          ,discover
           );
       }
 
@@ -748,7 +1039,7 @@ public class Controller
       { log.fine("Checking for new children in "+resource);
       }
       
-      if (!firstScanComplete)
+      if (discover)
       {
         // Handle any new children
         for (Resource childResource: resource.asContainer().listChildren(exclusionFilter))
@@ -767,7 +1058,7 @@ public class Controller
             if (debug)
             { log.fine("Added "+childResource);
             }
-            updateRecursive(childNode,childResource,dirty);
+            updateRecursive(childNode,childResource,dirty,true);
           }
         }
         
@@ -802,7 +1093,7 @@ public class Controller
               if (debug)
               { log.fine("Added "+childResource);
               }
-              updateRecursive(childNode,childResource,dirty);
+              updateRecursive(childNode,childResource,dirty,true);
             }
           } 
           
@@ -826,6 +1117,10 @@ public class Controller
    */
   private void deleteRecursive(PathTree<FilterSet> node)
   {
+    treeChanged=true;
+    if (watcher!=null)
+    { watcher.unregister(node);
+    }
     FilterSet filterSet=node.get();
     if (filterSet!=null)
     { 
@@ -857,69 +1152,83 @@ public class Controller
   /**
    * @return A FilterChain from the cache, or a newly created FilterChain
    */
-  private synchronized FilterChain resolveChain
-    (String pathString
+  private FilterChain resolveChain
+    (ChainSnapshot snapshot
+    ,String pathString
     ,FilterChain endpoint
     )
   {
-    FilterChain chain=findCachedChain(pathString,endpoint);
+    Path path=new Path(pathString,'/');
+    ChainSnapshot.Node node=snapshot.findDeepestNode(path);
+    if (tracePathResolution && node!=null)
+    { log.fine("Deepest path for "+pathString+" is "+node.path);
+    }
+    
+    if (node==null || node.filters==null)
+    { 
+      // No filters anywhere
+      return endpoint;
+    }
+    
+    AutoFilter[] filters=node.filters;
+    BitSet matches=node.selector.select(path);
+    
+    ChainCache.Key key=new ChainCache.Key(filters,matches,endpoint);
+    FilterChain chain=chainCache.get(key);
     if (chain==null)
     { 
-      chain=createChain(pathString,endpoint);
-      CacheEntry entry=new CacheEntry();
-      entry.chain=chain;
-      entry.endpoint=endpoint;
-      entry.pathString=pathString;
-      uriCache.put(pathString, entry);
+      // Concurrent misses for the same key may each build a chain- they
+      //   are equivalent and the last one cached wins.
+      chain=createChain(filters,matches,endpoint);
+      chainCache.put(key,chain);
     }
     return chain;
       
   }
   
   /**
-   * @return A new, uncached chain for the specified path
+   * @return A new, uncached chain for the specified filter selection
    */
   private FilterChain createChain
-    (String pathString,FilterChain endpoint)
+    (AutoFilter[] filters,BitSet matches,FilterChain endpoint)
   {
-    Path path=new Path(pathString,'/');
-    PathTree<FilterSet> pathTree=this.pathTree.findDeepestChild(path);
-    if (tracePathResolution)
-    { log.fine("Deepest path for "+pathString+" is "+pathTree.getPath());
-    }
-    
-    FilterSet filterSet=pathTree.get();
-    while (filterSet==null)
-    {
-      pathTree=pathTree.getParent();
-      if (pathTree==null)
-      { break;
-      }
-      filterSet=pathTree.get();
+    Filter[] selected=new Filter[matches.cardinality()+1];
+    selected[0]=appContextFilter;
+    int j=1;
+    for (int i=matches.nextSetBit(0);i>=0;i=matches.nextSetBit(i+1))
+    { selected[j++]=filters[i];
     }
+    return new ArrayFilterChain(selected,endpoint);
     
-    if (filterSet==null)
-    { 
-      // No filters anywhere
-      return endpoint;
-    }
+  }
+  
+  /**
+   * @return The number of requests that were served a cached FilterChain
+   */
+  public long getChainCacheHits()
+  { return chainCache.getHits();
+  }
 
-    LinkedFilterChain first=new LinkedFilterChain(appContextFilter);
-    LinkedFilterChain last=first;
-    
-    for (AutoFilter autoFilter: filterSet.getEffectiveFilters())
-    {
-      if (autoFilter.appliesToPath(path))
-      {
-        LinkedFilterChain next=last;
-        last=new LinkedFilterChain(autoFilter);
-        next.setNext(last);
-      }
-    }
-    
-    last.setNext(endpoint);
-    return first;
-    
+  /**
+   * @return The number of requests that required a new FilterChain
+   */
+  public long getChainCacheMisses()
+  { return chainCache.getMisses();
+  }
+  
+  /**
+   * @return The number of FilterChains discarded to keep the cache within
+   *   its configured size
+   */
+  public long getChainCacheEvictions()
+  { return chainCache.getEvictions();
+  }
+  
+  /**
+   * @return The number of FilterChains currently cached
+   */
+  public int getChainCacheSize()
+  { return chainCache.size();
   }
   
   public void sendError(ServletResponse servletResponse,Throwable x)
@@ -935,33 +1244,6 @@ public class Controller
     printWriter.flush();
   }
   
-  /**
-   * 
-   * @return An FilterChain from the cache that matches the path and the specified endpoint
-   */
-  private FilterChain
-    findCachedChain(String pathString,FilterChain endpoint)
-  {
-    CacheEntry entry=uriCache.get(pathString);
-    if (entry==null)
-    { return null;
-    }
-    if (entry.endpoint!=endpoint)
-    { 
-      // Container has changed its servlet mapping
-      uriCache.remove(pathString);
-      return null;
-    }
-    return entry.chain;
-  }
-  
-  class CacheEntry
-  {
-    String pathString;
-    FilterChain endpoint;
-    FilterChain chain;
-  }
-  
 
 
 
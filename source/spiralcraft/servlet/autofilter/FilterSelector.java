@@ -0,0 +1,181 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.autofilter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import spiralcraft.util.Path;
+
+/**
+ * <p>Selects the filters from a FilterSet's effective filter array that
+ *   apply to a request path, with the same result as calling
+ *   AutoFilter.appliesToPath() on each filter.
+ * </p>
+ *
+ * <p>The filters are classified by pattern when the selector is built.
+ *   Filters with the "*" pattern always apply, and filters with suffix and
+ *   global name patterns are looked up by the extension and the name of the
+ *   last path element. Only the remaining filters are tested individually.
+ * </p>
+ */
+class FilterSelector
+{
+  private static final int[] NONE=new int[0];
+
+  private final AutoFilter[] filters;
+  private final int[] depths;
+  private final String[] suffixOf;
+  private final BitSet always=new BitSet();
+  private final HashMap<String,int[]> names=new HashMap<String,int[]>();
+  private final HashMap<String,int[]> extensions=new HashMap<String,int[]>();
+  private final int[] suffixes;
+  private final int[] general;
+
+  FilterSelector(AutoFilter[] filters)
+  {
+    this.filters=filters;
+    this.depths=new int[filters.length];
+    this.suffixOf=new String[filters.length];
+
+    HashMap<String,List<Integer>> names=new HashMap<String,List<Integer>>();
+    HashMap<String,List<Integer>> extensions
+      =new HashMap<String,List<Integer>>();
+    List<Integer> suffixes=new ArrayList<Integer>();
+    List<Integer> general=new ArrayList<Integer>();
+
+    for (int i=0;i<filters.length;i++)
+    {
+      AutoFilter filter=filters[i];
+      String pattern=filter.getPattern();
+      if (filter.getPath()==null || pattern==null)
+      {
+        // Let appliesToPath() report the problem
+        general.add(i);
+        continue;
+      }
+
+      depths[i]=filter.getPath().size();
+      if (pattern.equals("*"))
+      { always.set(i);
+      }
+      else if (pattern.startsWith("*"))
+      {
+        String suffix=pattern.substring(1);
+        suffixOf[i]=suffix;
+        int dot=suffix.lastIndexOf('.');
+        if (dot>-1)
+        { add(extensions,suffix.substring(dot+1),i);
+        }
+        else
+        { suffixes.add(i);
+        }
+      }
+      else if (filter.isGlobal())
+      { add(names,pattern,i);
+      }
+      else
+      { general.add(i);
+      }
+    }
+
+    for (String name: names.keySet())
+    { this.names.put(name,toArray(names.get(name)));
+    }
+    for (String extension: extensions.keySet())
+    { this.extensions.put(extension,toArray(extensions.get(extension)));
+    }
+    this.suffixes=toArray(suffixes);
+    this.general=toArray(general);
+  }
+
+  /**
+   * @return The indexes of the filters that apply to the path
+   */
+  BitSet select(Path path)
+  {
+    BitSet matches=(BitSet) always.clone();
+    int size=path.size();
+    String name=size>0?path.lastElement():null;
+
+    if (name!=null)
+    {
+      int[] candidates=names.get(name);
+      if (candidates!=null)
+      {
+        for (int i: candidates)
+        {
+          if (size>depths[i])
+          { matches.set(i);
+          }
+        }
+      }
+
+      int dot=name.lastIndexOf('.');
+      candidates=dot>-1?extensions.get(name.substring(dot+1)):null;
+      matchSuffixes(candidates!=null?candidates:NONE,name,size,matches);
+      matchSuffixes(suffixes,name,size,matches);
+    }
+
+    for (int i: general)
+    {
+      if (filters[i].appliesToPath(path))
+      { matches.set(i);
+      }
+    }
+    return matches;
+  }
+
+  private void matchSuffixes
+    (int[] candidates
+    ,String name
+    ,int size
+    ,BitSet matches
+    )
+  {
+    for (int i: candidates)
+    {
+      if (size>depths[i] && name.endsWith(suffixOf[i]))
+      { matches.set(i);
+      }
+    }
+  }
+
+  private static void add
+    (HashMap<String,List<Integer>> map
+    ,String key
+    ,int index
+    )
+  {
+    List<Integer> list=map.get(key);
+    if (list==null)
+    {
+      list=new ArrayList<Integer>();
+      map.put(key,list);
+    }
+    list.add(index);
+  }
+
+  private static int[] toArray(List<Integer> list)
+  {
+    int[] array=new int[list.size()];
+    for (int i=0;i<array.length;i++)
+    { array[i]=list.get(i);
+    }
+    return array;
+  }
+}
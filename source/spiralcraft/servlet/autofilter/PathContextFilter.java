@@ -103,7 +103,7 @@ public class PathContextFilter
   private URI codeSearchRoot;
   private PathContext context;
   private URI resourceURI;
-  private AutoFilter filterSet;
+  private CompoundFilter filterSet;
   
   PathContextFilter()
   { // debug=true;
@@ -439,6 +439,15 @@ public class PathContextFilter
       
     }
   }
+  
+  @Override
+  protected boolean warmUpChain
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    )
+    throws IOException,ServletException
+  { return filterSet!=null && filterSet.warmUp(request,response);
+  }
     
   @Override
   public String toString()
@@ -0,0 +1,924 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.autofilter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+import spiralcraft.servlet.util.BoundedCache;
+import spiralcraft.servlet.util.HttpExchange;
+import spiralcraft.time.Clock;
+import spiralcraft.vfs.Resolver;
+import spiralcraft.vfs.Resource;
+import spiralcraft.vfs.UnresolvableURIException;
+import spiralcraft.vfs.file.FileResource;
+
+/**
+ * <p>A shared cache of the responses to GET requests relayed by a
+ *   ProxyFilter.
+ * </p>
+ *
+ * <p>Responses are cached according to the origin server's Cache-Control
+ *   and Expires headers, and are keyed on the upstream URL, which includes
+ *   the query as rewritten by the ProxyFilter's queryBindings. A stale
+ *   response that has an ETag or Last-Modified validator is revalidated
+ *   with a conditional request, so an unchanged response is not transferred
+ *   again. Requests for the same URL that arrive while a response is being
+ *   fetched wait for that fetch instead of going to the origin server.
+ * </p>
+ *
+ * <p>Response content is held in memory up to maxMemory bytes in total.
+ *   If a diskCacheURI is configured, content larger than
+ *   maxMemoryEntrySize is written to a file in that directory instead.
+ *   The directory belongs to this cache, and files left in it by a previous
+ *   run are deleted when it is first used.
+ * </p>
+ *
+ * <p>Requests that carry an Authorization, Cookie or Range header are
+ *   proxied directly. Responses that are private, no-store, set cookies,
+ *   Vary on "*" or are too large to cache are not stored, and the client's
+ *   request is proxied directly with its own headers instead.
+ * </p>
+ */
+public class ProxyCache
+{
+  private static final ClassLog log=ClassLog.getInstance(ProxyCache.class);
+
+  private final ResponseCache cache=new ResponseCache();
+  private final ConcurrentHashMap<String,CompletableFuture<CachedResponse>>
+    pending=new ConcurrentHashMap<String,CompletableFuture<CachedResponse>>();
+
+  private final AtomicLong hits=new AtomicLong();
+  private final AtomicLong misses=new AtomicLong();
+  private final AtomicLong revalidations=new AtomicLong();
+  private final AtomicLong collapsed=new AtomicLong();
+  private final AtomicLong uncacheable=new AtomicLong();
+  private final AtomicLong diskSize=new AtomicLong();
+
+  private int maxMemoryEntrySize=256*1024;
+  private long maxEntrySize=16*1024*1024;
+  private long maxDiskSize=256L*1024*1024;
+  private URI diskCacheURI;
+  private volatile File diskCacheDirectory;
+
+  public ProxyCache()
+  {
+    cache.setMaxEntries(4096);
+    cache.setMaxWeight(32L*1024*1024);
+  }
+
+  /**
+   * The maximum number of responses to cache. Defaults to 4096.
+   */
+  public void setMaxEntries(int maxEntries)
+  { cache.setMaxEntries(maxEntries);
+  }
+
+  /**
+   * The maximum number of content bytes to hold in memory. Defaults to
+   *   32MB.
+   */
+  public void setMaxMemory(long maxMemory)
+  { cache.setMaxWeight(maxMemory);
+  }
+
+  /**
+   * The largest response content to hold in memory. Larger content is
+   *   written to the disk cache, if there is one. Defaults to 256K.
+   */
+  public void setMaxMemoryEntrySize(int maxMemoryEntrySize)
+  { this.maxMemoryEntrySize=maxMemoryEntrySize;
+  }
+
+  /**
+   * The largest response content to cache. Defaults to 16MB.
+   */
+  public void setMaxEntrySize(long maxEntrySize)
+  { this.maxEntrySize=maxEntrySize;
+  }
+
+  /**
+   * A local directory for response content that is too large to hold in
+   *   memory. By default, large responses are not cached.
+   */
+  public void setDiskCacheURI(URI diskCacheURI)
+  { this.diskCacheURI=diskCacheURI;
+  }
+
+  /**
+   * The maximum number of bytes to store in the disk cache. Defaults to
+   *   256MB.
+   */
+  public void setMaxDiskSize(long maxDiskSize)
+  { this.maxDiskSize=maxDiskSize;
+  }
+
+  /**
+   * @return The number of requests served from a fresh cached response
+   */
+  public long getHits()
+  { return hits.get();
+  }
+
+  /**
+   * @return The number of requests forwarded to the origin server
+   */
+  public long getMisses()
+  { return misses.get();
+  }
+
+  /**
+   * @return The number of stale responses the origin server confirmed
+   *   unchanged
+   */
+  public long getRevalidations()
+  { return revalidations.get();
+  }
+
+  /**
+   * @return The number of requests that waited for another request's fetch
+   *   instead of going to the origin server
+   */
+  public long getCollapsed()
+  { return collapsed.get();
+  }
+
+  /**
+   * @return The number of responses that could not be cached
+   */
+  public long getUncacheable()
+  { return uncacheable.get();
+  }
+
+  public int getSize()
+  { return cache.size();
+  }
+
+  public long getMemorySize()
+  { return cache.getWeight();
+  }
+
+  public long getDiskSize()
+  { return diskSize.get();
+  }
+
+  /**
+   * Discard all cached responses
+   */
+  public void clear()
+  { cache.clear();
+  }
+
+  /**
+   * @return Whether the request may be served from the cache. Requests
+   *   with cookies may belong to an origin session, and range requests
+   *   are left to the origin, so both are proxied directly.
+   */
+  boolean isCacheable(HttpServletRequest request)
+  {
+    String method=request.getMethod();
+    return (method.equals("GET") || method.equals("HEAD"))
+      && request.getHeader("Authorization")==null
+      && request.getHeader("Cookie")==null
+      && request.getHeader("Range")==null;
+  }
+
+  /**
+   * Serve the request from the cache, fetching or revalidating the
+   *   response as needed
+   */
+  void service
+    (ProxyFilter filter
+    ,HttpServletRequest request
+    ,HttpServletResponse response
+    ,String url
+    )
+    throws IOException,ServletException
+  {
+    boolean noCache
+      =hasDirective(request.getHeader("Cache-Control"),"no-cache")
+      || hasDirective(request.getHeader("Pragma"),"no-cache");
+
+    CachedResponse entry=cache.get(url);
+    if (entry!=null && !entry.matchesVary(request))
+    { entry=null;
+    }
+    if (entry!=null
+        && !noCache
+        && entry.isFresh(Clock.instance().approxTimeMillis())
+        && send(entry,request,response)
+        )
+    {
+      hits.incrementAndGet();
+      return;
+    }
+
+    CompletableFuture<CachedResponse> fetch
+      =new CompletableFuture<CachedResponse>();
+    CompletableFuture<CachedResponse> inProgress
+      =pending.putIfAbsent(url,fetch);
+    if (inProgress!=null)
+    {
+      // Another request is already fetching this URL
+      collapsed.incrementAndGet();
+      CachedResponse result=await(inProgress);
+      if (result==null 
+          || !result.matchesVary(request)
+          || !send(result,request,response)
+          )
+      { filter.doProxy(request,response,url);
+      }
+      return;
+    }
+
+    CachedResponse result=null;
+    try
+    { result=fetch(filter,request,response,url,entry);
+    }
+    finally
+    {
+      pending.remove(url,fetch);
+      fetch.complete(result);
+    }
+  }
+
+  /**
+   * Fetch or revalidate the response and send it to the client
+   *
+   * @return The cached response, or null if the response could not be
+   *   cached and was relayed directly
+   */
+  private CachedResponse fetch
+    (ProxyFilter filter
+    ,HttpServletRequest request
+    ,HttpServletResponse response
+    ,String url
+    ,CachedResponse stale
+    )
+    throws IOException,ServletException
+  {
+    misses.incrementAndGet();
+    HttpExchange exchange
+      =filter.fetch
+        (request
+        ,URI.create(url)
+        ,stale!=null?stale.etag:null
+        ,stale!=null?stale.lastModified:null
+        );
+    try
+    {
+      long now=Clock.instance().approxTimeMillis();
+      int status=exchange.getStatus();
+      if (status==304 && stale!=null)
+      {
+        revalidations.incrementAndGet();
+        stale.revalidated(exchange,now);
+        exchange.getResponseContent().close();
+        if (!send(stale,request,response))
+        { 
+          // Evicted meanwhile
+          filter.doProxy(request,response,url);
+          return null;
+        }
+        return stale;
+      }
+
+      if (!isCacheable(exchange) || isTooLarge(exchange))
+      {
+        // Fetched without the client's conditional headers, so proxy the
+        //   client's own request instead of relaying this response
+        uncacheable.incrementAndGet();
+        if (stale!=null)
+        { cache.remove(url,stale);
+        }
+        exchange.abort();
+        filter.doProxy(request,response,url);
+        return null;
+      }
+
+      CachedResponse entry=read(exchange,request,response,now);
+      if (entry!=null)
+      {
+        cache.put(url,entry,entry.weight());
+        if (!send(entry,request,response))
+        { 
+          filter.doProxy(request,response,url);
+          return null;
+        }
+      }
+      else
+      { uncacheable.incrementAndGet();
+      }
+      return entry;
+    }
+    finally
+    { exchange.close();
+    }
+  }
+
+  private boolean isCacheable(HttpExchange exchange)
+    throws IOException
+  {
+    int status=exchange.getStatus();
+    if (status!=200 && status!=203 && status!=301
+        && status!=404 && status!=410
+        )
+    { return false;
+    }
+
+    String cacheControl=exchange.getResponseHeader("Cache-Control");
+    if (hasDirective(cacheControl,"no-store")
+        || hasDirective(cacheControl,"private")
+        )
+    { return false;
+    }
+
+    String vary=exchange.getResponseHeader("Vary");
+    if (vary!=null && vary.trim().equals("*"))
+    { return false;
+    }
+
+    if (exchange.getResponseHeader("Set-Cookie")!=null)
+    { return false;
+    }
+
+    // Without a freshness lifetime, the response is only worth caching if
+    //   it can be revalidated
+    return freshnessLifetime(exchange)>0
+      || exchange.getResponseHeader("ETag")!=null
+      || exchange.getResponseHeader("Last-Modified")!=null;
+  }
+
+  /**
+   * @return Whether the declared content length is too large to cache
+   */
+  private boolean isTooLarge(HttpExchange exchange)
+    throws IOException
+  {
+    long contentLength=exchange.getResponseContentLength();
+    return contentLength>maxEntrySize
+      || (contentLength>maxMemoryEntrySize && !canUseDisk(contentLength));
+  }
+
+  /**
+   * Read the response content into memory or the disk cache. If the content
+   *   is too large to cache, relay it to the client instead.
+   *
+   * @return The new entry, or null if the content was relayed
+   */
+  private CachedResponse read
+    (HttpExchange exchange
+    ,HttpServletRequest request
+    ,HttpServletResponse response
+    ,long now
+    )
+    throws IOException
+  {
+    long contentLength=exchange.getResponseContentLength();
+    InputStream in=exchange.getResponseContent();
+    ByteArrayOutputStream memory
+      =new ByteArrayOutputStream
+        (contentLength>0 && contentLength<=maxMemoryEntrySize
+        ?(int) contentLength
+        :8192
+        );
+    File file=null;
+    OutputStream fileOut=null;
+    long size=0;
+    byte[] buffer=new byte[8192];
+    try
+    {
+      int count;
+      while ((count=in.read(buffer))>=0)
+      {
+        size+=count;
+        if (size>maxEntrySize
+            || (fileOut==null && size>maxMemoryEntrySize
+                && !canUseDisk(contentLength>0?contentLength:size)
+               )
+            )
+        {
+          // Give up on caching and relay what we have and the rest
+          ProxyFilter.relayHeaders(request,response,exchange);
+          OutputStream out=response.getOutputStream();
+          if (fileOut!=null)
+          {
+            fileOut.close();
+            fileOut=null;
+            copyFile(file,out);
+          }
+          else
+          { memory.writeTo(out);
+          }
+          out.write(buffer,0,count);
+          while ((count=in.read(buffer))>=0)
+          { out.write(buffer,0,count);
+          }
+          response.flushBuffer();
+          return null;
+        }
+
+        if (fileOut==null && size>maxMemoryEntrySize)
+        {
+          file=File.createTempFile("proxy",".cache",diskCacheDirectory);
+          fileOut=new FileOutputStream(file);
+          memory.writeTo(fileOut);
+          memory=null;
+        }
+
+        if (fileOut!=null)
+        { fileOut.write(buffer,0,count);
+        }
+        else
+        { memory.write(buffer,0,count);
+        }
+      }
+      if (fileOut!=null)
+      {
+        fileOut.close();
+        fileOut=null;
+        diskSize.addAndGet(size);
+        CachedResponse entry
+          =new CachedResponse(exchange,request,null,file,size,now);
+        file=null;
+        return entry;
+      }
+      return new CachedResponse
+        (exchange,request,memory.toByteArray(),null,size,now);
+    }
+    finally
+    {
+      if (fileOut!=null)
+      { fileOut.close();
+      }
+      if (file!=null)
+      { file.delete();
+      }
+    }
+  }
+
+  /**
+   * @return Whether a response of the specified size can be stored in the
+   *   disk cache
+   */
+  private boolean canUseDisk(long size)
+  {
+    if (diskCacheURI==null)
+    { return false;
+    }
+
+    if (diskCacheDirectory==null)
+    {
+      try
+      {
+        Resource resource=Resolver.getInstance().resolve(diskCacheURI);
+        if (resource instanceof FileResource)
+        {
+          File directory=((FileResource) resource).getFile();
+          directory.mkdirs();
+          clearDiskCache(directory);
+          diskCacheDirectory=directory;
+        }
+        else
+        {
+          log.warning("Disk cache "+diskCacheURI+" is not a local directory");
+          diskCacheURI=null;
+          return false;
+        }
+      }
+      catch (UnresolvableURIException x)
+      {
+        log.log(Level.WARNING,"Could not resolve disk cache "+diskCacheURI,x);
+        diskCacheURI=null;
+        return false;
+      }
+    }
+    return diskSize.get()+size<=maxDiskSize;
+  }
+
+  /**
+   * Delete the content files of a previous run, which no entry refers to
+   */
+  private void clearDiskCache(File directory)
+  {
+    File[] files=directory.listFiles();
+    if (files==null)
+    { return;
+    }
+    for (File file: files)
+    {
+      String name=file.getName();
+      if (name.startsWith("proxy") && name.endsWith(".cache") && file.isFile())
+      { file.delete();
+      }
+    }
+  }
+
+  /**
+   * Send a cached response to the client
+   *
+   * @return false if nothing was sent because the entry was evicted and its
+   *   content file deleted
+   */
+  private boolean send
+    (CachedResponse entry
+    ,HttpServletRequest request
+    ,HttpServletResponse response
+    )
+    throws IOException
+  {
+    if (!entry.retain())
+    { return false;
+    }
+    try
+    { sendRetained(entry,request,response);
+    }
+    finally
+    { release(entry);
+    }
+    return true;
+  }
+
+  private void sendRetained
+    (CachedResponse entry
+    ,HttpServletRequest request
+    ,HttpServletResponse response
+    )
+    throws IOException
+  {
+    String ifNoneMatch=request.getHeader("If-None-Match");
+    String ifModifiedSince=request.getHeader("If-Modified-Since");
+    boolean notModified;
+    if (ifNoneMatch!=null)
+    {
+      notModified
+        =entry.status==200
+        && entry.etag!=null
+        && (ifNoneMatch.trim().equals("*") 
+            || ifNoneMatch.contains(entry.etag)
+           );
+    }
+    else
+    {
+      notModified
+        =entry.status==200
+        && entry.lastModified!=null
+        && ifModifiedSince!=null
+        && ifModifiedSince.trim().equals(entry.lastModified);
+    }
+
+    response.setStatus(notModified?304:entry.status);
+    for (String[] header: entry.headers)
+    {
+      if (header[0].equalsIgnoreCase("Content-Type"))
+      { response.setContentType(header[1]);
+      }
+      else
+      { response.addHeader(header[0],header[1]);
+      }
+    }
+    long age=(Clock.instance().approxTimeMillis()-entry.responseTime)/1000;
+    response.setHeader("Age",Long.toString(Math.max(0,age)));
+
+    if (notModified)
+    { return;
+    }
+    if (entry.size<=Integer.MAX_VALUE)
+    { response.setContentLength((int) entry.size);
+    }
+    if (request.getMethod().equals("HEAD"))
+    { return;
+    }
+
+    OutputStream out=response.getOutputStream();
+    if (entry.content!=null)
+    { out.write(entry.content);
+    }
+    else
+    { copyFile(entry.file,out);
+    }
+    response.flushBuffer();
+  }
+
+  private static void copyFile(File file,OutputStream out)
+    throws IOException
+  {
+    InputStream in=new FileInputStream(file);
+    try
+    {
+      byte[] buffer=new byte[8192];
+      int count;
+      while ((count=in.read(buffer))>=0)
+      { out.write(buffer,0,count);
+      }
+    }
+    finally
+    { in.close();
+    }
+  }
+
+  private static CachedResponse await(CompletableFuture<CachedResponse> future)
+    throws IOException
+  {
+    try
+    { return future.get();
+    }
+    catch (InterruptedException x)
+    { throw new IOException("Interrupted waiting for proxied response",x);
+    }
+    catch (ExecutionException x)
+    { return null;
+    }
+  }
+
+  /**
+   * @return The freshness lifetime in ms from s-maxage, max-age or Expires,
+   *   or 0 if the response must be revalidated before it is reused
+   */
+  static long freshnessLifetime(HttpExchange exchange)
+  {
+    String cacheControl=exchange.getResponseHeader("Cache-Control");
+    if (hasDirective(cacheControl,"no-cache"))
+    { return 0;
+    }
+
+    long maxAge=directiveValue(cacheControl,"s-maxage");
+    if (maxAge<0)
+    { maxAge=directiveValue(cacheControl,"max-age");
+    }
+    if (maxAge>=0)
+    { return maxAge*1000;
+    }
+
+    String expires=exchange.getResponseHeader("Expires");
+    if (expires!=null)
+    {
+      long expiresTime=parseDate(expires);
+      String date=exchange.getResponseHeader("Date");
+      long dateTime=date!=null?parseDate(date):-1;
+      if (expiresTime>0)
+      {
+        long base=dateTime>0?dateTime:Clock.instance().approxTimeMillis();
+        return Math.max(0,expiresTime-base);
+      }
+    }
+    return 0;
+  }
+
+  static boolean hasDirective(String header,String directive)
+  {
+    if (header==null)
+    { return false;
+    }
+    for (String token: header.split(","))
+    {
+      String trimmed=token.trim();
+      int eq=trimmed.indexOf('=');
+      String name=eq<0?trimmed:trimmed.substring(0,eq).trim();
+      if (name.equalsIgnoreCase(directive))
+      { return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return The numeric value of the directive, or -1 if not present
+   */
+  private static long directiveValue(String header,String directive)
+  {
+    if (header==null)
+    { return -1;
+    }
+    for (String token: header.split(","))
+    {
+      String trimmed=token.trim();
+      int eq=trimmed.indexOf('=');
+      if (eq>0 && trimmed.substring(0,eq).trim().equalsIgnoreCase(directive))
+      {
+        String value=trimmed.substring(eq+1).trim();
+        if (value.startsWith("\"") && value.endsWith("\"") && value.length()>1)
+        { value=value.substring(1,value.length()-1);
+        }
+        try
+        { return Long.parseLong(value);
+        }
+        catch (NumberFormatException x)
+        { return 0;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static long parseDate(String date)
+  {
+    try
+    {
+      return ZonedDateTime
+        .parse(date.trim(),DateTimeFormatter.RFC_1123_DATE_TIME)
+        .toInstant()
+        .toEpochMilli();
+    }
+    catch (DateTimeParseException x)
+    {
+      // An invalid Expires date means already expired
+      return 0;
+    }
+  }
+
+  /**
+   * Deletes the disk content of responses that leave the cache
+   */
+  private class ResponseCache
+    extends BoundedCache<String,CachedResponse>
+  {
+    ResponseCache()
+    { super(4096);
+    }
+
+    @Override
+    protected void removed(String key,CachedResponse value)
+    { release(value);
+    }
+  }
+
+  /**
+   * Release a reference to the entry, deleting its content file when the
+   *   entry has left the cache and is no longer being sent
+   */
+  private void release(CachedResponse entry)
+  {
+    if (entry.references.decrementAndGet()==0 && entry.file!=null)
+    {
+      entry.file.delete();
+      diskSize.addAndGet(-entry.size);
+    }
+  }
+
+  /**
+   * A cached response
+   */
+  static final class CachedResponse
+  {
+    final int status;
+    final List<String[]> headers;
+    final byte[] content;
+    final File file;
+    final long size;
+    final String etag;
+    final String lastModified;
+    final String[] varyNames;
+    final String[] varyValues;
+    volatile long lifetime;
+    volatile long responseTime;
+    volatile long expires;
+
+    // One for the cache, plus one for each response being sent
+    final AtomicInteger references=new AtomicInteger(1);
+
+    CachedResponse
+      (HttpExchange exchange
+      ,HttpServletRequest request
+      ,byte[] content
+      ,File file
+      ,long size
+      ,long now
+      )
+      throws IOException
+    {
+      this.status=exchange.getStatus();
+      this.content=content;
+      this.file=file;
+      this.size=size;
+      this.etag=exchange.getResponseHeader("ETag");
+      this.lastModified=exchange.getResponseHeader("Last-Modified");
+      this.lifetime=freshnessLifetime(exchange);
+      this.responseTime=now;
+      this.expires=now+lifetime;
+
+      ArrayList<String[]> headers=new ArrayList<String[]>();
+      for (String[] header: exchange.getResponseHeaders())
+      {
+        if (!ProxyFilter.isHopByHop(header[0])
+            && !header[0].equalsIgnoreCase("Age")
+            )
+        { headers.add(header);
+        }
+      }
+      this.headers=headers;
+
+      String vary=exchange.getResponseHeader("Vary");
+      if (vary!=null)
+      {
+        varyNames=vary.split(",");
+        varyValues=new String[varyNames.length];
+        for (int i=0;i<varyNames.length;i++)
+        {
+          varyNames[i]=varyNames[i].trim();
+          varyValues[i]=request.getHeader(varyNames[i]);
+        }
+      }
+      else
+      {
+        varyNames=null;
+        varyValues=null;
+      }
+    }
+
+    boolean isFresh(long now)
+    { return now<expires;
+    }
+
+    /**
+     * Add a reference that keeps the content file while it is sent
+     *
+     * @return false if the entry has left the cache and has no references
+     */
+    boolean retain()
+    {
+      while (true)
+      {
+        int count=references.get();
+        if (count==0)
+        { return false;
+        }
+        if (references.compareAndSet(count,count+1))
+        { return true;
+        }
+      }
+    }
+
+    /**
+     * @return Whether the request selects this response according to the
+     *   Vary header
+     */
+    boolean matchesVary(HttpServletRequest request)
+    {
+      if (varyNames==null)
+      { return true;
+      }
+      for (int i=0;i<varyNames.length;i++)
+      {
+        String value=request.getHeader(varyNames[i]);
+        if (value==null?varyValues[i]!=null:!value.equals(varyValues[i]))
+        { return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Restart the freshness lifetime after a 304 response, which may 
+     *   specify a new lifetime
+     */
+    void revalidated(HttpExchange exchange,long now)
+    {
+      if (exchange.getResponseHeader("Cache-Control")!=null
+          || exchange.getResponseHeader("Expires")!=null
+          )
+      { lifetime=freshnessLifetime(exchange);
+      }
+      responseTime=now;
+      expires=now+lifetime;
+    }
+
+    long weight()
+    { return 256+(content!=null?content.length:0);
+    }
+  }
+}
@@ -19,8 +19,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import java.net.URI;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -35,6 +36,9 @@ import spiralcraft.lang.BindException;
 import spiralcraft.lang.Focus;
 import spiralcraft.net.http.VariableMap;
 import spiralcraft.servlet.autofilter.spi.FocusFilter;
+import spiralcraft.servlet.util.HttpConnectionPool;
+import spiralcraft.servlet.util.HttpExchange;
+import spiralcraft.servlet.util.RequestParameters;
 import spiralcraft.text.ParseException;
 import spiralcraft.util.ArrayUtil;
 import spiralcraft.util.ContextDictionary;
@@ -46,6 +50,27 @@ public class ProxyFilter
     extends AutoFilter
 {
 
+  /**
+   * Headers that apply to a single connection, or that are generated for
+   *   the relayed message
+   */
+  private static final HashSet<String> HOP_BY_HOP_HEADERS
+    =new HashSet<String>
+      (Arrays.asList
+        ("connection"
+        ,"keep-alive"
+        ,"proxy-authenticate"
+        ,"proxy-authorization"
+        ,"proxy-connection"
+        ,"te"
+        ,"trailer"
+        ,"transfer-encoding"
+        ,"upgrade"
+        ,"host"
+        ,"content-length"
+        )
+      );
+
   private String proxyURL;
   private String proxyQuery;
   private boolean useRequestPath=false;
@@ -54,6 +79,12 @@ public class ProxyFilter
   private ParameterBinding<?>[] queryBindings;
   private String[] permittedAuthorities;
   private String proxyURLParameter;
+  private int maxConnectionsPerAuthority=20;
+  private int connectTimeoutMs=15000;
+  private int readTimeoutMs=5000;
+  private long idleTimeoutMs=30000;
+  private volatile HttpConnectionPool connectionPool;
+  private ProxyCache responseCache;
   
   
 //  private PathPattern pattern;
@@ -101,6 +132,86 @@ public class ProxyFilter
   { this.queryBindings=queryBindings;
   }
   
+  /**
+   * The maximum number of concurrent connections to each origin server.
+   *   Defaults to 20.
+   * 
+   * @param maxConnectionsPerAuthority
+   */
+  public void setMaxConnectionsPerAuthority(int maxConnectionsPerAuthority)
+  { this.maxConnectionsPerAuthority=maxConnectionsPerAuthority;
+  }
+  
+  /**
+   * The time allowed to connect to the origin server. Defaults to 15000ms.
+   * 
+   * @param connectTimeoutMs
+   */
+  public void setConnectTimeoutMs(int connectTimeoutMs)
+  { this.connectTimeoutMs=connectTimeoutMs;
+  }
+  
+  /**
+   * The time allowed between reads from the origin server. Defaults to
+   *   5000ms.
+   * 
+   * @param readTimeoutMs
+   */
+  public void setReadTimeoutMs(int readTimeoutMs)
+  { this.readTimeoutMs=readTimeoutMs;
+  }
+  
+  /**
+   * How long to keep an unused connection to the origin server open. 
+   *   Defaults to 30000ms.
+   * 
+   * @param idleTimeoutMs
+   */
+  public void setIdleTimeoutMs(long idleTimeoutMs)
+  { this.idleTimeoutMs=idleTimeoutMs;
+  }
+  
+  /**
+   * Cache the responses to GET requests according to the origin server's
+   *   caching headers. Not enabled by default.
+   * 
+   * @param responseCache
+   */
+  public void setResponseCache(ProxyCache responseCache)
+  { this.responseCache=responseCache;
+  }
+  
+  public ProxyCache getResponseCache()
+  { return responseCache;
+  }
+  
+  /**
+   * @return The pool of keep-alive connections to the origin servers, 
+   *   which provides the in-use, idle and wait time metrics
+   */
+  public HttpConnectionPool getConnectionPool()
+  {
+    HttpConnectionPool pool=connectionPool;
+    if (pool==null)
+    {
+      synchronized (this)
+      {
+        pool=connectionPool;
+        if (pool==null)
+        {
+          pool=new HttpConnectionPool();
+          pool.setMaxConnectionsPerAuthority(maxConnectionsPerAuthority);
+          pool.setConnectTimeoutMs(connectTimeoutMs);
+          pool.setAcquireTimeoutMs(connectTimeoutMs);
+          pool.setReadTimeoutMs(readTimeoutMs);
+          pool.setIdleTimeoutMs(idleTimeoutMs);
+          connectionPool=pool;
+        }
+      }
+    }
+    return pool;
+  }
+  
   /**
    * Adds the entire path of the incoming request to the specified proxy URL.
    *    
@@ -212,7 +323,9 @@ public class ProxyFilter
       
       VariableMap map;
       if (queryString!=null && queryString.length()>0)
-      { map=VariableMap.fromUrlEncodedString(queryString);
+      { 
+        // The bindings modify the map, so it can't be the shared copy
+        map=RequestParameters.parse(queryString);
       }
       else
       { map=new VariableMap();
@@ -282,12 +395,19 @@ public class ProxyFilter
       }
     }
     
-    doProxy(httpRequest,httpResponse,url);
-    
+    if (responseCache!=null && responseCache.isCacheable(httpRequest))
+    { responseCache.service(this,httpRequest,httpResponse,url);
+    }
+    else
+    { doProxy(httpRequest,httpResponse,url);
+    }
     
   }
   
-  private void doProxy
+  /**
+   * Relay the request to the origin server and relay the response back
+   */
+  void doProxy
     (HttpServletRequest httpRequest
     ,HttpServletResponse httpResponse
     ,String url
@@ -297,120 +417,243 @@ public class ProxyFilter
     if (debug)
     { log.debug("Connecting to "+url);
     }
-    URLConnection connection=new URL(url).openConnection();
-    connection.setAllowUserInteraction(false);
-    connection.setConnectTimeout(15000);
-    connection.setUseCaches(false);
-    connection.setReadTimeout(5000);
+    URI uri=URI.create(url);
+    int contentLength=httpRequest.getContentLength();
+    boolean hasContent
+      =contentLength>0 || httpRequest.getHeader("Transfer-Encoding")!=null;
     
-    if (httpRequest.getMethod().equals("POST"))
+    HttpConnectionPool pool=getConnectionPool();
+    HttpExchange exchange=pool.open(uri);
+    try
     {
-      setupRequest(httpRequest,connection);
-      
-      connection.setDoOutput(true);
-      connection.setDoInput(true);
-      connection.connect();
-      
-      if (debug)
-      { log.debug("Connected to "+url);
+      try
+      { sendRequest(httpRequest,exchange,hasContent,contentLength);
       }
-      relayRequestContent(httpRequest,connection);
-      
-      setupResponse(httpResponse,connection);
-      
-      relayResponse(httpResponse,connection);
-      if (debug)
-      { log.debug("Completed "+url);
+      catch (IOException x)
+      {
+        if (!exchange.isClosedBeforeResponse() 
+            || hasContent
+            || !isRetryable(httpRequest.getMethod())
+            )
+        { throw x;
+        }
+        
+        // The origin server closed the idle connection before it saw the
+        //   request, or without acting on it, so retry on a new connection.
+        if (debug)
+        { log.debug("Retrying "+url+" on a new connection: "+x);
+        }
+        exchange.abort();
+        exchange=pool.open(uri,false);
+        sendRequest(httpRequest,exchange,hasContent,contentLength);
       }
-    }
-    else if (httpRequest.getMethod().equals("GET"))
-    {
-      setupRequest(httpRequest,connection);
-      connection.setDoInput(true);
-      connection.setDoOutput(false);
-      connection.connect();
+      
       if (debug)
       { log.debug("Connected to "+url);
       }
-      setupResponse(httpResponse,connection);
-      relayResponse(httpResponse,connection);
+      relayResponse(httpRequest,httpResponse,exchange);
       if (debug)
       { log.debug("Completed "+url);
       }
     }
-    else
-    { throw new ServletException("Can't proxy a "+httpRequest.getMethod());
+    finally
+    { exchange.close();
     }
   }
 
-  private void setupRequest
+  /**
+   * @return Whether a request with the method is safe to send again after
+   *   the connection failed
+   */
+  private static boolean isRetryable(String method)
+  {
+    return method.equals("GET")
+      || method.equals("HEAD")
+      || method.equals("OPTIONS")
+      || method.equals("TRACE");
+  }
+  
+  /**
+   * Send the request line, the end-to-end request headers and any content,
+   *   and read the response headers
+   */
+  private void sendRequest
     (HttpServletRequest httpRequest
-    ,URLConnection connection
+    ,HttpExchange exchange
+    ,boolean hasContent
+    ,int contentLength
     )
+    throws IOException
   {
-    connection.setRequestProperty("Connection","close");
-    if (httpRequest.getContentType()!=null)
-    { connection.setRequestProperty("ContentType",httpRequest.getContentType());
-    }
-    if (httpRequest.getContentLength()>0)
+    exchange.setMethod(httpRequest.getMethod());
+    copyRequestHeaders(httpRequest,exchange,false);
+    
+    if (hasContent)
     { 
-      connection.setRequestProperty
-        ("ContentLength",Integer.toString(httpRequest.getContentLength()));
-      
+      OutputStream out
+        =exchange.sendRequest(contentLength>0?contentLength:-1);
+      StreamUtil.copyRaw(httpRequest.getInputStream(),out,8192,contentLength);
+      out.close();
+    }
+    else
+    { exchange.sendRequest();
     }
+    exchange.getStatus();
   }
-
-  private void relayRequestContent
+  
+  /**
+   * Open a GET exchange for the ProxyCache. The client's conditional
+   *   headers are replaced by the validators of the cached response, if
+   *   any.
+   * 
+   * @return The exchange, with the response headers read
+   */
+  HttpExchange fetch
     (HttpServletRequest httpRequest
-    ,URLConnection connection
+    ,URI uri
+    ,String etag
+    ,String lastModified
     )
     throws IOException
   {
-    OutputStream out=connection.getOutputStream();
+    HttpConnectionPool pool=getConnectionPool();
+    HttpExchange exchange=pool.open(uri);
     try
+    {
+      try
+      { sendConditional(httpRequest,exchange,etag,lastModified);
+      }
+      catch (IOException x)
+      {
+        if (!exchange.isClosedBeforeResponse())
+        { throw x;
+        }
+        exchange.abort();
+        exchange=pool.open(uri,false);
+        sendConditional(httpRequest,exchange,etag,lastModified);
+      }
+      return exchange;
+    }
+    catch (IOException | RuntimeException x)
     { 
-      StreamUtil.copyRaw
-        (httpRequest.getInputStream(),out,8192,httpRequest.getContentLength());
+      exchange.abort();
+      throw x;
     }
-    finally
-    { out.close();
+  }
+  
+  private void sendConditional
+    (HttpServletRequest httpRequest
+    ,HttpExchange exchange
+    ,String etag
+    ,String lastModified
+    )
+    throws IOException
+  {
+    exchange.setMethod("GET");
+    copyRequestHeaders(httpRequest,exchange,true);
+    if (etag!=null)
+    { exchange.addRequestHeader("If-None-Match",etag);
     }
+    if (lastModified!=null)
+    { exchange.addRequestHeader("If-Modified-Since",lastModified);
+    }
+    exchange.sendRequest();
+    exchange.getStatus();
   }
   
-  private void setupResponse
-    (HttpServletResponse httpResponse
-    ,URLConnection connection
+  /**
+   * Copy the end-to-end request headers
+   * 
+   * @param forCache Omit the conditional and range headers, which apply to
+   *   the client's copy and not to the cached response
+   */
+  private void copyRequestHeaders
+    (HttpServletRequest httpRequest
+    ,HttpExchange exchange
+    ,boolean forCache
     )
   {
-    String contentType=connection.getContentType();
-    int contentLength=connection.getContentLength();
-        
-    if (contentType!=null)
-    { httpResponse.setContentType(contentType);
+    Enumeration<String> names=httpRequest.getHeaderNames();
+    while (names.hasMoreElements())
+    {
+      String name=names.nextElement();
+      String lowerName=name.toLowerCase();
+      if (HOP_BY_HOP_HEADERS.contains(lowerName)
+          || (forCache
+              && (lowerName.startsWith("if-") 
+                  || lowerName.equals("range")
+                 )
+             )
+          )
+      { continue;
+      }
+      Enumeration<String> values=httpRequest.getHeaders(name);
+      while (values.hasMoreElements())
+      { exchange.addRequestHeader(name,values.nextElement());
+      }
     }
-    if (contentLength>-1)
-    { httpResponse.setContentLength(contentLength);
+  }
+  
+  static boolean isHopByHop(String headerName)
+  { return HOP_BY_HOP_HEADERS.contains(headerName.toLowerCase());
+  }
+  
+  /**
+   * Relay the status and end-to-end headers of the origin server's 
+   *   response
+   */
+  static void relayHeaders
+    (HttpServletRequest httpRequest
+    ,HttpServletResponse httpResponse
+    ,HttpExchange exchange
+    )
+    throws IOException
+  {
+    httpResponse.setStatus(exchange.getStatus());
+    for (String[] header: exchange.getResponseHeaders())
+    {
+      String name=header[0];
+      if (name.equalsIgnoreCase("Content-Type"))
+      { httpResponse.setContentType(header[1]);
+      }
+      else if (!HOP_BY_HOP_HEADERS.contains(name.toLowerCase()))
+      { httpResponse.addHeader(name,header[1]);
+      }
     }
     
+    long contentLength=exchange.getResponseContentLength();
+    if (httpRequest.getMethod().equals("HEAD"))
+    { 
+      // Report the length of the content that a GET would return
+      String headLength=exchange.getResponseHeader("Content-Length");
+      if (headLength!=null)
+      { httpResponse.setHeader("Content-Length",headLength);
+      }
+    }
+    else if (contentLength>-1 && contentLength<=Integer.MAX_VALUE)
+    { httpResponse.setContentLength((int) contentLength);
+    }
+    else if (contentLength>-1)
+    { httpResponse.setHeader("Content-Length",Long.toString(contentLength));
+    }
   }
-
+  
   private void relayResponse
-    (HttpServletResponse httpResponse
-    ,URLConnection connection
+    (HttpServletRequest httpRequest
+    ,HttpServletResponse httpResponse
+    ,HttpExchange exchange
     )
     throws IOException
   {
-
-    int contentLength=connection.getContentLength();
-    InputStream in=connection.getInputStream();
-    try
-    { 
-      StreamUtil.copyRaw
-        (in,httpResponse.getOutputStream(),8192,contentLength);
-    }
-    finally
-    { in.close();
-    }      
+    relayHeaders(httpRequest,httpResponse,exchange);
+    long contentLength=exchange.getResponseContentLength();
+    
+    // Stream the content straight through
+    InputStream in=exchange.getResponseContent();
+    StreamUtil.copyRaw
+      (in,httpResponse.getOutputStream(),8192
+      ,contentLength<=Integer.MAX_VALUE?(int) contentLength:-1
+      );
     httpResponse.flushBuffer();
     
   }
@@ -418,5 +661,15 @@ public class ProxyFilter
   public String getFilterType()
   { return "proxy";
   }
+  
+  @Override
+  public void destroy()
+  {
+    HttpConnectionPool pool=connectionPool;
+    if (pool!=null)
+    { pool.close();
+    }
+    super.destroy();
+  }
 
 }
\ No newline at end of file
@@ -30,6 +30,7 @@ import spiralcraft.lang.SimpleFocus;
 import spiralcraft.lang.spi.ThreadLocalChannel;
 import spiralcraft.net.http.VariableMap;
 import spiralcraft.servlet.autofilter.spi.FocusFilter;
+import spiralcraft.servlet.util.RequestParameters;
 
 
 /**
@@ -132,10 +133,10 @@ public class RequestDataFilter
   {
     dataChannel.push(new EditableArrayTuple(dataType));
     Setter.applyArray(newSetters);
-    if (queryBindings!=null && request.getQueryString()!=null)
+    VariableMap map
+      =queryBindings!=null?RequestParameters.getQuery(request):null;
+    if (map!=null)
     { 
-      VariableMap map
-        =VariableMap.fromUrlEncodedString(request.getQueryString());
       for (ParameterBinding<?> binding: queryBindings)
       { binding.read(map);
       }
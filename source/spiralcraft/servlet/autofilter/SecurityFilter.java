@@ -27,6 +27,7 @@ import spiralcraft.security.auth.Authenticator;
 import spiralcraft.security.auth.LoginEntry;
 import spiralcraft.security.auth.TestAuthenticator;
 import spiralcraft.servlet.autofilter.spi.FocusFilter;
+import spiralcraft.servlet.util.RequestParameters;
 import spiralcraft.codec.text.Base64Codec;
 import spiralcraft.command.Command;
 import spiralcraft.command.CommandAdapter;
@@ -300,7 +301,7 @@ public class SecurityFilter
     //   perhaps by using the expiry time at a minimum, to ensure the
     //   uniqueness of each ticket.
     
-    VariableMap map=VariableMap.fromUrlEncodedString(cookie.getValue());
+    VariableMap map=RequestParameters.parse(cookie.getValue());
     String username=map.getFirst("username");
     String ticketBase64=map.getFirst("ticket");
     if (username!=null && ticketBase64!=null)
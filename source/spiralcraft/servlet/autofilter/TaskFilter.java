@@ -28,6 +28,7 @@ import spiralcraft.lang.SimpleFocus;
 import spiralcraft.lang.spi.ThreadLocalChannel;
 import spiralcraft.net.http.VariableMap;
 import spiralcraft.servlet.autofilter.spi.FocusFilter;
+import spiralcraft.servlet.util.RequestParameters;
 import spiralcraft.task.Scenario;
 import spiralcraft.task.Task;
 
@@ -153,10 +154,10 @@ public class TaskFilter<Tcontext,Tresult>
     try
     {
       Setter.applyArray(commandSetters);
-      if (queryBindings!=null && request.getQueryString()!=null)
+      VariableMap map
+        =queryBindings!=null?RequestParameters.getQuery(request):null;
+      if (map!=null)
       { 
-        VariableMap map
-          =VariableMap.fromUrlEncodedString(request.getQueryString());
         for (ParameterBinding<?> binding: queryBindings)
         { binding.read(map);
         }
@@ -14,13 +14,25 @@
 //
 package spiralcraft.servlet.autofilter;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -32,6 +44,7 @@ import javax.servlet.http.HttpServletResponse;
 import spiralcraft.log.Level;
 import spiralcraft.net.http.Headers;
 import spiralcraft.net.http.RangeHeader;
+import spiralcraft.servlet.util.BoundedCache;
 import spiralcraft.time.Clock;
 import spiralcraft.util.Path;
 
@@ -39,6 +52,8 @@ import spiralcraft.vfs.Resolver;
 import spiralcraft.vfs.Resource;
 import spiralcraft.vfs.StreamUtil;
 import spiralcraft.vfs.Translator;
+import spiralcraft.vfs.UnresolvableURIException;
+import spiralcraft.vfs.file.FileResource;
 
 /**
  * <P>A filter which generates a virtual translated resources from existing
@@ -66,6 +81,15 @@ import spiralcraft.vfs.Translator;
  *   
  *   
  * </UL> 
+ * 
+ * <P>Translations are cached in memory, up to maxEntries and maxMemory.
+ *   Concurrent requests for a resource that is not yet translated wait for
+ *   a single translation. If a diskCacheURI is specified, translations are
+ *   also written to that directory, keyed by the source URI and
+ *   last-modified time, so they survive restarts and can be shared by
+ *   servers that use the same volume. The file for an earlier version of a
+ *   source is deleted supersededRetainMs after it is replaced, so requests
+ *   that are still reading it are not cut short.
  */
 public class TranslationFilter
     extends AutoFilter
@@ -79,8 +103,15 @@ public class TranslationFilter
   private int bufferSize=8192;
   private boolean useSourceLastModified=true;
   
-  private final HashMap<URI,TranslationBuffer> translationMap
-    =new HashMap<>();
+  private final BoundedCache<URI,TranslationBuffer> translationMap
+    =new BoundedCache<>(1024);
+  private final ConcurrentHashMap<URI,CompletableFuture<TranslationBuffer>>
+    pending=new ConcurrentHashMap<>();
+  private URI diskCacheURI;
+  private volatile File diskCacheDirectory;
+  private long supersededRetainMs=60000;
+  private final ConcurrentHashMap<File,Long> superseded
+    =new ConcurrentHashMap<>();
   
   /**
    * <P>The suffix of the resource that will be translated. If
@@ -139,6 +170,40 @@ public class TranslationFilter
   { this.useSourceLastModified=useSourceLastModified;
   }
   
+  /**
+   * The maximum number of translations to keep in memory. Defaults to 1024.
+   */
+  public void setMaxEntries(int maxEntries)
+  { translationMap.setMaxEntries(maxEntries);
+  }
+  
+  /**
+   * The maximum total size in bytes of the translations to keep in memory.
+   *   Translations read from the disk cache are not counted. Defaults to
+   *   unlimited.
+   */
+  public void setMaxMemory(long maxMemory)
+  { translationMap.setMaxWeight(maxMemory);
+  }
+  
+  /**
+   * A local directory in which to store translations so that they are not
+   *   repeated after a restart. The directory may be shared by several
+   *   servers. Only used when useSourceLastModified is true.
+   */
+  public void setDiskCacheURI(URI diskCacheURI)
+  { this.diskCacheURI=diskCacheURI;
+  }
+  
+  /**
+   * How long to keep the disk cache file for an earlier version of a source
+   *   after it has been replaced, for requests on this or another server
+   *   that are still serving it. Defaults to 60 seconds.
+   */
+  public void setSupersededRetainMs(long supersededRetainMs)
+  { this.supersededRetainMs=supersededRetainMs;
+  }
+  
   @Override
   public void doFilter
     (ServletRequest request
@@ -197,49 +262,302 @@ public class TranslationFilter
     
   }
 
-  private synchronized Resource findTranslation(URI requestURI, URI targetURI)
+  private Resource findTranslation(URI requestURI, URI targetURI)
     throws IOException
   {
     TranslationBuffer translation=translationMap.get(targetURI);
-    if (translation==null)
+    if (translation!=null && isCurrent(translation))
+    { return translation.translation;
+    }
+    
+    CompletableFuture<TranslationBuffer> future=new CompletableFuture<>();
+    CompletableFuture<TranslationBuffer> inProgress
+      =pending.putIfAbsent(targetURI,future);
+    if (inProgress!=null)
     { 
-      translation=createTranslation(requestURI,targetURI);
+      // Another request is already translating this resource
+      translation=await(inProgress);
+      return translation!=null?translation.translation:null;
+    }
+    
+    try
+    {
+      TranslationBuffer result;
       if (translation!=null)
-      { translationMap.put(targetURI,translation);
+      { result=translate(translation.source,requestURI,targetURI,translation);
+      }
+      else
+      { 
+        Resource source=findSource(targetURI);
+        result=source!=null
+          ?translate(source,requestURI,targetURI,null)
+          :null;
+      }
+      
+      if (result!=null)
+      { translationMap.put(targetURI,result,result.weight);
       }
+      future.complete(result);
+      return result!=null?result.translation:null;
+    }
+    catch (IOException | RuntimeException x)
+    { 
+      future.completeExceptionally(x);
+      throw x;
+    }
+    finally
+    { pending.remove(targetURI,future);
+    }
+  }
+  
+  private boolean isCurrent(TranslationBuffer translation)
+    throws IOException
+  { 
+    return useSourceLastModified 
+      && translation.sourceModified>=getLastModified(translation.source);
+  }
+  
+  private TranslationBuffer await(CompletableFuture<TranslationBuffer> future)
+    throws IOException
+  {
+    try
+    { return future.get();
+    }
+    catch (InterruptedException x)
+    { throw new IOException("Interrupted waiting for translation",x);
+    }
+    catch (ExecutionException x)
+    { 
+      if (x.getCause() instanceof IOException)
+      { throw (IOException) x.getCause();
+      }
+      throw new IOException("Translation failed",x.getCause());
+    }
+  }
+  
+  private long getLastModified(Resource source)
+    throws IOException
+  { return source.getLastModified();
+  }
+  
+  /**
+   * Translate the source, or read a translation of the current version of
+   *   the source from the disk cache
+   */
+  private TranslationBuffer translate
+    (Resource source
+    ,URI requestURI
+    ,URI targetURI
+    ,TranslationBuffer previous
+    )
+    throws IOException
+  {
+    long sourceModified=getLastModified(source);
+    TranslationBuffer translation=new TranslationBuffer();
+    translation.uri=targetURI;
+    translation.source=source;
+    translation.sourceModified=sourceModified;
+    
+    File directory=useSourceLastModified?getDiskCacheDirectory():null;
+    String diskKey=null;
+    if (directory!=null)
+    {
+      diskKey=diskKey(source);
+      File file=diskFile(directory,diskKey,sourceModified);
+      if (file.isFile())
+      { 
+        if (debug)
+        { log.fine("Using translation "+file+" for "+source.getURI());
+        }
+        translation.translation=new FileResource(file);
+        translation.file=file;
+        translation.weight=0;
+        return translation;
+      }
+    }
+    
+    // The previous translation may still be in use by other requests, so
+    //   it is not passed to the Translator for reuse
+    Resource result=translator.translate(source,requestURI);
+    if (useSourceLastModified)
+    { result.setLastModified(sourceModified);
     }
     else
+    { translation.sourceModified=result.getLastModified();
+    }
+    translation.translation=result;
+    translation.weight=Math.max(0,result.getSize());
+    
+    if (diskKey!=null)
+    { translation.file=store(directory,diskKey,sourceModified,result);
+    }
+    return translation;
+  }
+  
+  /**
+   * Write a translation to the disk cache, and schedule the deletion of any
+   *   translation of an earlier version of the source
+   *   
+   * @return The file, or null if the translation could not be written
+   */
+  private File store
+    (File directory
+    ,String diskKey
+    ,long sourceModified
+    ,Resource translation
+    )
+  {
+    File file=diskFile(directory,diskKey,sourceModified);
+    File temp=null;
+    try
     {
-      if (!useSourceLastModified || translation.sourceModified<getLastModified(translation.source))
+      // Write to a temporary file first so other servers sharing the
+      //   directory never see a partial translation
+      temp=File.createTempFile(diskKey,".tmp",directory);
+      try (InputStream in=translation.getInputStream();
+          OutputStream out=new FileOutputStream(temp)
+          )
+      { StreamUtil.copyRaw(in,out,bufferSize);
+      }
+      temp.setLastModified(sourceModified);
+      try
+      { 
+        Files.move
+          (temp.toPath()
+          ,file.toPath()
+          ,StandardCopyOption.ATOMIC_MOVE
+          ,StandardCopyOption.REPLACE_EXISTING
+          );
+      }
+      catch (AtomicMoveNotSupportedException x)
       { 
-        translation.translation
-          =translator.translate(translation.source,requestURI,translation.translation);
-        if (useSourceLastModified)
+        Files.move
+          (temp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+      }
+      temp=null;
+      
+      String prefix=diskKey+"-";
+      File[] older
+        =directory.listFiles
+          ((dir,name) ->
+            name.startsWith(prefix) && !name.equals(file.getName())
+          );
+      if (older!=null)
+      { 
+        long now=Clock.instance().approxTimeMillis();
+        for (File stale: older)
+        { superseded.putIfAbsent(stale,now+supersededRetainMs);
+        }
+        collectSuperseded(now);
+      }
+      return file;
+    }
+    catch (IOException x)
+    { 
+      log.log(Level.WARNING,"Could not write translation to "+file,x);
+      return null;
+    }
+    finally
+    { 
+      if (temp!=null)
+      { temp.delete();
+      }
+    }
+  }
+  
+  /**
+   * Delete the superseded translations that are past their retention time
+   */
+  private void collectSuperseded(long now)
+  {
+    for (Map.Entry<File,Long> entry: superseded.entrySet())
+    {
+      if (entry.getValue()<=now 
+          && superseded.remove(entry.getKey(),entry.getValue())
+          )
+      { entry.getKey().delete();
+      }
+    }
+  }
+  
+  private File diskFile(File directory,String diskKey,long sourceModified)
+  { return new File(directory,diskKey+"-"+Long.toHexString(sourceModified));
+  }
+  
+  /**
+   * @return The name of the disk cache files for translations of the
+   *   source by this filter
+   */
+  private String diskKey(Resource source)
+  {
+    try
+    {
+      MessageDigest digest=MessageDigest.getInstance("SHA-256");
+      digest.update
+        ((source.getURI().toString()+" "+translatedSuffix)
+          .getBytes(StandardCharsets.UTF_8)
+        );
+      byte[] hash=digest.digest();
+      StringBuilder key=new StringBuilder(40);
+      for (int i=0;i<20;i++)
+      { 
+        key.append(Character.forDigit((hash[i]>>4) & 0xF,16))
+          .append(Character.forDigit(hash[i] & 0xF,16));
+      }
+      return key.toString();
+    }
+    catch (NoSuchAlgorithmException x)
+    { throw new RuntimeException("SHA-256 not available",x);
+    }
+  }
+  
+  private File getDiskCacheDirectory()
+  {
+    if (diskCacheURI==null)
+    { return null;
+    }
+    
+    if (diskCacheDirectory==null)
+    {
+      try
+      {
+        Resource resource=Resolver.getInstance().resolve(diskCacheURI);
+        if (resource instanceof FileResource)
         {
-          translation.sourceModified=getLastModified(translation.source);
-          translation.translation.setLastModified(translation.sourceModified);
+          File directory=((FileResource) resource).getFile();
+          directory.mkdirs();
+          diskCacheDirectory=directory;
         }
         else
-        { translation.sourceModified=translation.translation.getLastModified();
+        {
+          log.warning("Disk cache "+diskCacheURI+" is not a local directory");
+          diskCacheURI=null;
         }
       }
+      catch (UnresolvableURIException x)
+      {
+        log.log(Level.WARNING,"Could not resolve disk cache "+diskCacheURI,x);
+        diskCacheURI=null;
+      }
     }
-    return translation!=null?translation.translation:null;
-  }
-  
-  private long getLastModified(Resource source)
-    throws IOException
-  { return source.getLastModified();
+    return diskCacheDirectory;
   }
   
-  private TranslationBuffer createTranslation(URI requestURI,URI targetURI)
+  /**
+   * @return The resource to translate for the target URI, or null if
+   *   there is none
+   */
+  private Resource findSource(URI targetURI)
     throws IOException
   {
+    String translatedSuffix=this.translatedSuffix;
     if (translatedSuffix==null
         && pattern.startsWith("*")
         && pattern.length()>2
         )
-    { translatedSuffix=pattern.substring(2);
+    { 
+      translatedSuffix=pattern.substring(2);
+      this.translatedSuffix=translatedSuffix;
     }
     
     Path targetPath=new Path(targetURI.getPath(),'/');
@@ -274,19 +592,7 @@ public class TranslationFilter
         =targetURI.resolve(new URI(null,null,sourcePath.format("/"),null));
     
       Resource sourceResource=Resolver.getInstance().resolve(sourceURI);
-      if (sourceResource.exists())
-      { 
-        TranslationBuffer translation=new TranslationBuffer();
-        translation.source=sourceResource;
-        translation.sourceModified=getLastModified(sourceResource);
-        translation.translation=translator.translate(sourceResource,requestURI);
-        translation.translation.setLastModified(translation.sourceModified);
-        translation.uri=targetURI;
-        return translation;
-      }
-      else
-      { return null;
-      }
+      return sourceResource.exists()?sourceResource:null;
     }
     catch (URISyntaxException x)
     { 
@@ -519,4 +825,6 @@ class TranslationBuffer
   Resource translation;
   Resource source;
   long sourceModified;
+  File file;
+  long weight;
 }
@@ -0,0 +1,493 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.autofilter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+import spiralcraft.servlet.kit.InternalHttpServletRequest;
+import spiralcraft.servlet.kit.InternalHttpServletResponse;
+import spiralcraft.vfs.Container;
+import spiralcraft.vfs.Resolver;
+import spiralcraft.vfs.Resource;
+import spiralcraft.vfs.ResourceFilter;
+
+/**
+ * <p>Compiles and binds all the ".webui" resources in the publish overlay
+ *   (the document tree and the code context) at startup, so the first
+ *   requests after a deploy don't pay the compile cost.
+ * </p>
+ *
+ * <p>Each page is compiled directly through the UIService of the UIServlet
+ *   or UIFilter that serves it, for an internal request that never runs the
+ *   filter chain. The FocusFilters that apply to the page are bound without
+ *   performing their filter functions (see FocusFilter.warmUp()), so the
+ *   page is bound in the context it is served in, but the sessionless
+ *   request is not subject to security checks or redirects.
+ * </p>
+ *
+ * <p>Pages are processed in parallel on a bounded pool. When all pages are
+ *   done, the per-page compile times and failures are logged and
+ *   isComplete() returns true.
+ * </p>
+ *
+ * <p>The warm-up is started by the UIServlet when it is initialized, or by
+ *   the Controller itself when pages are served by a UIFilter.
+ * </p>
+ *
+ * <p>The compile times from the last run are saved to a manifest, and the
+ *   next run starts with the slowest pages so the pool finishes sooner.
+ * </p>
+ */
+public class WarmUp
+{
+  private static final ClassLog log=ClassLog.getInstance(WarmUp.class);
+
+  public static final String ATTRIBUTE
+    ="spiralcraft.servlet.autofilter.WarmUp";
+
+  /**
+   * @return The WarmUp registered by the Controller, or null if warm-up is
+   *   not enabled.
+   */
+  public static WarmUp getInstance(ServletContext context)
+  { return (WarmUp) context.getAttribute(ATTRIBUTE);
+  }
+
+  private final Controller controller;
+  private final ServletContext context;
+  private final Resource root;
+  private final ResourceFilter filter;
+  private final int threads;
+  private final URI manifestURI;
+  private final AtomicBoolean started=new AtomicBoolean();
+  private volatile boolean complete;
+  private volatile boolean cancelled;
+  private volatile List<Result> results=Collections.emptyList();
+  private volatile ExecutorService executor;
+  private volatile Thread coordinator;
+
+  WarmUp
+    (Controller controller
+    ,ServletContext context
+    ,Resource root
+    ,ResourceFilter filter
+    ,int threads
+    ,URI manifestURI
+    )
+  {
+    this.controller=controller;
+    this.context=context;
+    this.root=root;
+    this.filter=filter;
+    this.threads=threads;
+    this.manifestURI=manifestURI;
+  }
+
+  /**
+   * <p>Start warming up in the background. Only the first call has any
+   *   effect.
+   * </p>
+   *
+   * @param endpoint The Servlet that serves the pages, or null if the pages
+   *   are served by a UIFilter in the Controller's chain.
+   */
+  public void start(final Endpoint endpoint)
+  {
+    if (!started.compareAndSet(false,true))
+    { return;
+    }
+
+    final AtomicInteger count=new AtomicInteger();
+    executor
+      =Executors.newFixedThreadPool
+        (threads
+        ,new ThreadFactory()
+        {
+          @Override
+          public Thread newThread(Runnable runnable)
+          {
+            Thread thread
+              =new Thread(runnable,"autofilter.WarmUp-"+count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }
+        );
+
+    coordinator
+      =new Thread("autofilter.WarmUp")
+      {
+        @Override
+        public void run()
+        { warmUp(endpoint);
+        }
+      };
+    coordinator.setDaemon(true);
+    coordinator.start();
+  }
+
+  /**
+   * @return Whether all pages have been processed
+   */
+  public boolean isComplete()
+  { return complete;
+  }
+
+  /**
+   * @return The results of the completed warm-up, slowest first
+   */
+  public List<Result> getResults()
+  { return results;
+  }
+
+  /**
+   * Abandon any pages that have not been processed
+   */
+  void cancel()
+  {
+    cancelled=true;
+    if (executor!=null)
+    {
+      // Pages that never ran would leave the coordinator waiting forever
+      for (Runnable task: executor.shutdownNow())
+      {
+        if (task instanceof Future)
+        { ((Future<?>) task).cancel(false);
+        }
+      }
+    }
+    if (coordinator!=null)
+    { coordinator.interrupt();
+    }
+  }
+
+  private void warmUp(final Endpoint endpoint)
+  {
+    long startTime=System.currentTimeMillis();
+    List<String> paths;
+    HashMap<String,Long> history;
+    controller.push();
+    try
+    {
+      paths=discover();
+      history=readManifest();
+    }
+    finally
+    { controller.pop();
+    }
+
+    // Start the pages that took longest last time first
+    final HashMap<String,Long> lastElapsed=history;
+    Collections.sort
+      (paths
+      ,(a,b) -> Long.compare
+          (lastElapsed.getOrDefault(b,0L),lastElapsed.getOrDefault(a,0L))
+      );
+    log.info("Warming up "+paths.size()+" pages on "+threads+" threads");
+
+    ArrayList<Future<Result>> futures=new ArrayList<>();
+    ArrayList<Result> results=new ArrayList<>();
+    try
+    {
+      for (final String path: paths)
+      { futures.add(executor.submit(() -> warmUp(path,endpoint)));
+      }
+      
+      for (Future<Result> future: futures)
+      {
+        try
+        { results.add(future.get());
+        }
+        catch (CancellationException x)
+        { // Abandoned by cancel()
+        }
+        catch (ExecutionException x)
+        { log.log(Level.WARNING,"Warm-up failed",x.getCause());
+        }
+      }
+    }
+    catch (RejectedExecutionException x)
+    { // Shut down by cancel()
+    }
+    catch (InterruptedException x)
+    {
+      log.warning("Warm-up interrupted");
+      return;
+    }
+    finally
+    { 
+      executor.shutdown();
+      coordinator=null;
+    }
+
+    if (cancelled)
+    { return;
+    }
+
+    Collections.sort(results,(a,b) -> Long.compare(b.elapsedMs,a.elapsedMs));
+    this.results=Collections.unmodifiableList(results);
+    report(results,System.currentTimeMillis()-startTime);
+
+    controller.push();
+    try
+    { writeManifest(results);
+    }
+    finally
+    { controller.pop();
+    }
+
+    complete=true;
+  }
+
+  private Result warmUp(String path,Endpoint endpoint)
+  {
+    if (cancelled)
+    { return new Result(path,0,false,null);
+    }
+
+    InternalHttpServletRequest request=new InternalHttpServletRequest();
+    request.start();
+    request.setServletContext(context);
+    request.setMethod("HEAD");
+    request.updateURI(path);
+    InternalHttpServletResponse response=new InternalHttpServletResponse();
+
+    long start=System.nanoTime();
+    boolean compiled=false;
+    Throwable exception=null;
+    try
+    { compiled=controller.warmUp(request,response,endpoint);
+    }
+    catch (Exception x)
+    { exception=x;
+    }
+    long elapsedMs=(System.nanoTime()-start)/1000000;
+    if (log.canLog(Level.FINE))
+    { log.fine("Warmed up "+path+" in "+elapsedMs+"ms");
+    }
+    return new Result(path,elapsedMs,compiled,exception);
+  }
+
+  private void report(List<Result> results,long totalMs)
+  {
+    int failures=0;
+    StringBuilder buf=new StringBuilder();
+    for (Result result: results)
+    {
+      buf.append("\r\n  ").append(result.elapsedMs).append("ms ")
+        .append(result.path);
+      if (!result.isSuccess())
+      {
+        failures++;
+        buf.append(" FAILED");
+        if (!result.compiled && result.exception==null)
+        { buf.append(" no page found");
+        }
+        if (result.exception!=null)
+        {
+          buf.append(" ").append(result.exception);
+          log.log
+            (Level.WARNING
+            ,"Warm-up failed for "+result.path
+            ,result.exception
+            );
+        }
+      }
+    }
+    log.info
+      ("Warmed up "+results.size()+" pages in "+totalMs+"ms, "
+      +failures+" failed:"+buf
+      );
+  }
+
+  /**
+   * @return The context relative request paths for all the .webui resources
+   */
+  private List<String> discover()
+  {
+    ArrayList<String> paths=new ArrayList<>();
+    try
+    { discover(root,"/",paths);
+    }
+    catch (IOException x)
+    { log.log(Level.WARNING,"Error discovering .webui resources",x);
+    }
+    return paths;
+  }
+
+  private void discover(Resource resource,String path,List<String> paths)
+    throws IOException
+  {
+    Container container=resource.asContainer();
+    if (container==null)
+    { return;
+    }
+
+    for (Resource child: container.listChildren(filter))
+    {
+      String name=child.getLocalName();
+      if (name.startsWith("."))
+      { continue;
+      }
+
+      if (child.asContainer()!=null)
+      { discover(child,path+name+"/",paths);
+      }
+      else if (name.equals("default.webui"))
+      { paths.add(path);
+      }
+      else if (name.endsWith(".webui"))
+      { paths.add(path+name.substring(0,name.length()-6));
+      }
+    }
+  }
+
+  private HashMap<String,Long> readManifest()
+  {
+    HashMap<String,Long> history=new HashMap<>();
+    if (manifestURI==null)
+    { return history;
+    }
+
+    try
+    {
+      Resource resource=Resolver.getInstance().resolve(manifestURI);
+      if (resource.exists())
+      {
+        try (BufferedReader reader
+              =new BufferedReader
+                (new InputStreamReader
+                  (resource.getInputStream(),StandardCharsets.UTF_8)
+                )
+            )
+        {
+          String line;
+          while ((line=reader.readLine())!=null)
+          {
+            int space=line.indexOf(' ');
+            if (space>0)
+            {
+              try
+              {
+                history.put
+                  (line.substring(space+1)
+                  ,Long.parseLong(line.substring(0,space))
+                  );
+              }
+              catch (NumberFormatException x)
+              { // Ignore corrupt line
+              }
+            }
+          }
+        }
+      }
+    }
+    catch (IOException x)
+    { log.log(Level.WARNING,"Error reading warm-up manifest "+manifestURI,x);
+    }
+    return history;
+  }
+
+  private void writeManifest(List<Result> results)
+  {
+    if (manifestURI==null)
+    { return;
+    }
+
+    try
+    {
+      Resource resource=Resolver.getInstance().resolve(manifestURI);
+      try (PrintWriter writer
+            =new PrintWriter
+              (new OutputStreamWriter
+                (resource.getOutputStream(),StandardCharsets.UTF_8)
+              )
+          )
+      {
+        for (Result result: results)
+        {
+          if (result.isSuccess())
+          { writer.println(result.elapsedMs+" "+result.path);
+          }
+        }
+      }
+    }
+    catch (IOException x)
+    { log.log(Level.WARNING,"Error writing warm-up manifest "+manifestURI,x);
+    }
+  }
+
+  /**
+   * A Servlet that can compile and bind a page without serving it
+   */
+  public interface Endpoint
+  {
+    /**
+     * @param request An internal request for the page, with the Focus chain
+     *   of the FocusFilters that apply to it
+     * @return Whether the request maps to a page, which is now compiled
+     */
+    boolean warmUp(HttpServletRequest request)
+      throws ServletException,IOException;
+  }
+
+  /**
+   * The outcome of warming up a single page
+   */
+  public static class Result
+  {
+    public final String path;
+    public final long elapsedMs;
+    public final boolean compiled;
+    public final Throwable exception;
+
+    Result(String path,long elapsedMs,boolean compiled,Throwable exception)
+    {
+      this.path=path;
+      this.elapsedMs=elapsedMs;
+      this.compiled=compiled;
+      this.exception=exception;
+    }
+
+    public boolean isSuccess()
+    { return exception==null && compiled;
+    }
+  }
+}
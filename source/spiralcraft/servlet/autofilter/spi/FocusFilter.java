@@ -306,37 +306,10 @@ public abstract class FocusFilter<T>
       
       FilterChain preChain;
       
-      if (!preInitialized)
-      { 
-        synchronized (this)
-        {
-          if (!preInitialized)
-          { 
-            Focus<?> requestFocus=(Focus<?>) request.getAttribute(attributeName);
-            try
-            { preInitialize(requestFocus);
-            }
-            catch (ContextualException x)
-            { throw new ServletException(x);
-            }
-            preInitialized=true;
-          }
-        }
-      }
-      
+      ensurePreInitialized(request);
       
       if (preFilters!=null && preFilters.length>0)
-      { 
-        if (preFilter==null)
-        { 
-          preFilter=new CompoundFilter(preFilters);
-          preFilter.setPath(getPath());
-          preFilter.setPattern(getPattern());
-          preFilter.setGlobal(isGlobal());
-          preFilter.setContainer(getContainer());
-          preFilter.init(config);
-        }
-        preChain=new LinkedFilterChain(preFilter,localChain);
+      { preChain=new LinkedFilterChain(ensurePreFilter(),localChain);
       }
       else
       { preChain=localChain;
@@ -351,6 +324,111 @@ public abstract class FocusFilter<T>
   }
   
 
+  /**
+   * <p>Bind this filter for a request that is prepared outside of the filter
+   *   chain and make its Focus the request's Focus chain, without performing
+   *   the filter function.
+   * </p>
+   * 
+   * <p>Used by WarmUp to compile pages in the same context they are served
+   *   in, without subjecting a sessionless internal request to the checks
+   *   and redirects of the filters.
+   * </p>
+   * 
+   * @return true if the page was compiled by this filter, in which case
+   *   the rest of the chain would not be reached
+   */
+  public boolean warmUp
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    )
+    throws ServletException,IOException
+  {
+    ensurePreInitialized(request);
+    if (preFilters!=null 
+        && preFilters.length>0
+        && ensurePreFilter().warmUp(request,response)
+       )
+    { return true;
+    }
+    
+    Focus<?> requestFocus=(Focus<?>) request.getAttribute(attributeName);
+    try
+    {
+      if (!initialized)
+      { 
+        synchronized (this)
+        { 
+          if (!initialized)
+          { init(requestFocus,request,response);
+          }
+        }
+      }
+    }
+    catch (ContextualException x)
+    { 
+      ServletException sx=new ServletException(x.toString());
+      sx.initCause(x);
+      throw sx;
+    }
+    
+    request.setAttribute(attributeName,exportFocus);
+    return warmUpChain(request,response);
+  }
+  
+  /**
+   * <p>Override to bind the filters that this filter runs as part of its
+   *   function, or to compile the page if this filter serves it, when
+   *   warming up (see warmUp()).
+   * </p>
+   * 
+   * @return true if the page was compiled
+   */
+  protected boolean warmUpChain
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    )
+    throws ServletException,IOException
+  { return false;
+  }
+  
+  private void ensurePreInitialized(ServletRequest request)
+    throws ServletException
+  {
+    if (!preInitialized)
+    { 
+      synchronized (this)
+      {
+        if (!preInitialized)
+        { 
+          Focus<?> requestFocus=(Focus<?>) request.getAttribute(attributeName);
+          try
+          { preInitialize(requestFocus);
+          }
+          catch (ContextualException x)
+          { throw new ServletException(x);
+          }
+          preInitialized=true;
+        }
+      }
+    }
+  }
+  
+  private CompoundFilter ensurePreFilter()
+    throws ServletException
+  {
+    if (preFilter==null)
+    { 
+      preFilter=new CompoundFilter(preFilters);
+      preFilter.setPath(getPath());
+      preFilter.setPattern(getPattern());
+      preFilter.setGlobal(isGlobal());
+      preFilter.setContainer(getContainer());
+      preFilter.init(config);
+    }
+    return preFilter;
+  }
+
   public void destroy()
   {
     if (preFilter!=null)
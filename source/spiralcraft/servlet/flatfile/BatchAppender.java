@@ -0,0 +1,269 @@
+//
+// Copyright (c) 2012 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.flatfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+
+/**
+ * <p>Appends records to a file from a single thread, committing them in
+ *   batches (group commit).
+ * </p>
+ *
+ * <p>append() queues a record and blocks until the batch that contains it
+ *   has been written and forced to disk. The appender thread collects the
+ *   records that arrive within commitIntervalMs of the first record in a
+ *   batch, writes them with one gathering write, and calls
+ *   FileChannel.force() once for the whole batch.
+ * </p>
+ */
+class BatchAppender
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(BatchAppender.class);
+
+  private final File file;
+  private final FileChannel channel;
+  private final BlockingQueue<Record> queue;
+  private final long commitIntervalMs;
+  private final int maxBatchBytes;
+  private final Thread thread;
+  private volatile boolean closed;
+
+  /**
+   * @param file The file to append to
+   * @param commitIntervalMs How long to collect records for a batch
+   * @param maxBatchBytes The size of a batch that is committed without
+   *   waiting for the rest of the interval
+   * @param maxPending The number of records that can wait to be written
+   *   before append() blocks
+   */
+  BatchAppender
+    (File file
+    ,long commitIntervalMs
+    ,int maxBatchBytes
+    ,int maxPending
+    )
+    throws IOException
+  {
+    this.file=file;
+    this.commitIntervalMs=commitIntervalMs;
+    this.maxBatchBytes=maxBatchBytes;
+    this.queue=new ArrayBlockingQueue<Record>(maxPending);
+    this.channel
+      =FileChannel.open
+        (file.toPath()
+        ,StandardOpenOption.CREATE
+        ,StandardOpenOption.WRITE
+        ,StandardOpenOption.APPEND
+        );
+
+    thread
+      =new Thread("BatchAppender "+file.getName())
+      {
+        @Override
+        public void run()
+        { appendLoop();
+        }
+      };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Append a record and wait until it is durable
+   *
+   * @throws IOException If the batch could not be written, or the appender
+   *   is closed
+   */
+  void append(byte[] data)
+    throws IOException
+  {
+    if (closed)
+    { throw new IOException("Appender for "+file+" is closed");
+    }
+
+    Record record=new Record(data);
+    try
+    {
+      queue.put(record);
+      synchronized (record)
+      {
+        while (!record.done)
+        {
+          record.wait(1000);
+          if (!record.done && !thread.isAlive())
+          {
+            // Queued after the appender finished
+            throw new IOException("Appender for "+file+" is closed");
+          }
+        }
+      }
+    }
+    catch (InterruptedException x)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException
+        ("Interrupted waiting for commit to "+file);
+    }
+    if (record.failure!=null)
+    { throw new IOException("Error writing to "+file,record.failure);
+    }
+  }
+
+  /**
+   * Commit the records that are already queued and close the file
+   */
+  void close()
+  {
+    // Not interrupted, because an interrupt closes the FileChannel
+    closed=true;
+    try
+    { thread.join(10000);
+    }
+    catch (InterruptedException x)
+    { Thread.currentThread().interrupt();
+    }
+  }
+
+  private void appendLoop()
+  {
+    List<Record> batch=new ArrayList<Record>();
+    try
+    {
+      while (!closed || !queue.isEmpty())
+      {
+        Record first;
+        try
+        { first=queue.poll(100,TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException x)
+        { continue;
+        }
+        if (first==null)
+        { continue;
+        }
+
+        batch.add(first);
+        long size=first.data.length;
+        long deadline=System.nanoTime()+commitIntervalMs*1000000;
+        while (size<maxBatchBytes)
+        {
+          Record next=queue.poll();
+          if (next==null && !closed)
+          {
+            long wait=deadline-System.nanoTime();
+            if (wait<=0)
+            { break;
+            }
+            try
+            { next=queue.poll(wait,TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException x)
+            { next=queue.poll();
+            }
+          }
+          if (next==null)
+          { break;
+          }
+          batch.add(next);
+          size+=next.data.length;
+        }
+
+        commit(batch);
+        batch.clear();
+      }
+    }
+    finally
+    {
+      try
+      { channel.close();
+      }
+      catch (IOException x)
+      { log.log(Level.WARNING,"Error closing "+file,x);
+      }
+
+      // Anything queued after the loop exited can't be written
+      Record record;
+      while ((record=queue.poll())!=null)
+      {
+        record.finish
+          (new IOException("Appender for "+file+" is closed"));
+      }
+    }
+  }
+
+  private void commit(List<Record> batch)
+  {
+    IOException failure=null;
+    try
+    {
+      ByteBuffer[] buffers=new ByteBuffer[batch.size()];
+      for (int i=0;i<buffers.length;i++)
+      { buffers[i]=ByteBuffer.wrap(batch.get(i).data);
+      }
+
+      // A gathering write may be partial
+      int index=0;
+      while (index<buffers.length)
+      {
+        channel.write(buffers,index,buffers.length-index);
+        while (index<buffers.length && !buffers[index].hasRemaining())
+        { index++;
+        }
+      }
+      channel.force(false);
+    }
+    catch (IOException x)
+    {
+      log.log(Level.WARNING,"Error committing batch to "+file,x);
+      failure=x;
+    }
+
+    for (Record record: batch)
+    { record.finish(failure);
+    }
+  }
+
+  private static class Record
+  {
+    final byte[] data;
+    boolean done;
+    IOException failure;
+
+    Record(byte[] data)
+    { this.data=data;
+    }
+
+    synchronized void finish(IOException failure)
+    {
+      this.failure=failure;
+      done=true;
+      notifyAll();
+    }
+  }
+}
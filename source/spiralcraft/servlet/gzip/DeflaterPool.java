@@ -0,0 +1,103 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.gzip;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * <p>A bounded pool of raw (nowrap) Deflaters that share a compression
+ *   level and strategy.
+ * </p>
+ *
+ * <p>A Deflater holds native zlib memory which is otherwise only released
+ *   when the Deflater is garbage collected. Deflaters are reset when they are
+ *   returned to the pool, and ended immediately when the pool is full or
+ *   closed.
+ * </p>
+ */
+class DeflaterPool
+{
+
+  private final ArrayBlockingQueue<Deflater> idle;
+  private final int level;
+  private final int strategy;
+  private final AtomicLong created=new AtomicLong();
+  private volatile boolean closed;
+
+  DeflaterPool(int level,int strategy,int maxIdle)
+  {
+    this.level=level;
+    this.strategy=strategy;
+    this.idle=new ArrayBlockingQueue<Deflater>(Math.max(1,maxIdle));
+  }
+
+  /**
+   * @return An idle Deflater, or a new one if none are idle
+   */
+  Deflater acquire()
+  {
+    Deflater deflater=idle.poll();
+    if (deflater==null)
+    {
+      deflater=new Deflater(level,true);
+      deflater.setStrategy(strategy);
+      created.incrementAndGet();
+    }
+    return deflater;
+  }
+
+  /**
+   * Return a Deflater to the pool, or end it if the pool is full
+   */
+  void release(Deflater deflater)
+  {
+    if (closed)
+    {
+      deflater.end();
+      return;
+    }
+
+    deflater.reset();
+    if (!idle.offer(deflater))
+    { deflater.end();
+    }
+  }
+
+  /**
+   * @return The number of Deflaters allocated over the life of the pool
+   */
+  long getCreated()
+  { return created.get();
+  }
+
+  int getIdle()
+  { return idle.size();
+  }
+
+  /**
+   * End all idle Deflaters. Deflaters released after the pool is closed
+   *   are ended immediately.
+   */
+  void close()
+  {
+    closed=true;
+    Deflater deflater;
+    while ((deflater=idle.poll())!=null)
+    { deflater.end();
+    }
+  }
+}
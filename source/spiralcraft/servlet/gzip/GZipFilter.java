@@ -16,6 +16,8 @@ package spiralcraft.servlet.gzip;
 
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -26,10 +28,36 @@ import javax.servlet.http.HttpServletRequest;
 
 import spiralcraft.servlet.autofilter.AutoFilter;
 
-
+/**
+ * <p>Compresses responses of compressible content types for clients that
+ *   accept gzip encoding.
+ * </p>
+ * 
+ * <p>Deflaters are drawn from a bounded pool shared by all requests that
+ *   pass through this filter, and are configured with the compressionLevel
+ *   and compressionStrategy properties. Responses smaller than
+ *   minCompressSize are sent uncompressed.
+ * </p>
+ * 
+ * <p>Totals of bytes compressed, bytes sent and time spent deflating are
+ *   maintained for monitoring.
+ * </p>
+ */
 public class GZipFilter
     extends AutoFilter
 {
+  
+  private int compressionLevel=Deflater.DEFAULT_COMPRESSION;
+  private int compressionStrategy=Deflater.DEFAULT_STRATEGY;
+  private int minCompressSize=256;
+  private int maxIdleDeflaters=Runtime.getRuntime().availableProcessors()*2;
+  private volatile DeflaterPool deflaterPool;
+  
+  private final AtomicLong compressedCount=new AtomicLong();
+  private final AtomicLong uncompressedCount=new AtomicLong();
+  private final AtomicLong bytesIn=new AtomicLong();
+  private final AtomicLong bytesOut=new AtomicLong();
+  private final AtomicLong deflateNanos=new AtomicLong();
 
   private HashSet<String> contentTypes=new HashSet<>();
   {
@@ -49,6 +77,159 @@ public class GZipFilter
   }
 
   
+  /**
+   * The zlib compression level, from 0 (none) to 9 (smallest), or -1 for
+   *   the zlib default (6). Defaults to -1.
+   */
+  public void setCompressionLevel(int compressionLevel)
+  { 
+    if (compressionLevel<Deflater.DEFAULT_COMPRESSION || compressionLevel>9)
+    { 
+      throw new IllegalArgumentException
+        ("Compression level must be between -1 and 9");
+    }
+    this.compressionLevel=compressionLevel;
+  }
+  
+  /**
+   * The zlib compression strategy- "default", "filtered" or "huffmanOnly"
+   */
+  public void setCompressionStrategy(String compressionStrategy)
+  { 
+    switch (compressionStrategy)
+    {
+      case "default":
+        this.compressionStrategy=Deflater.DEFAULT_STRATEGY;
+        break;
+      case "filtered":
+        this.compressionStrategy=Deflater.FILTERED;
+        break;
+      case "huffmanOnly":
+        this.compressionStrategy=Deflater.HUFFMAN_ONLY;
+        break;
+      default:
+        throw new IllegalArgumentException
+          ("Unknown compression strategy '"+compressionStrategy+"'");
+    }
+  }
+  
+  /**
+   * Responses smaller than this number of bytes are sent uncompressed.
+   *   Defaults to 256.
+   */
+  public void setMinCompressSize(int minCompressSize)
+  { this.minCompressSize=minCompressSize;
+  }
+  
+  public int getMinCompressSize()
+  { return minCompressSize;
+  }
+  
+  /**
+   * The maximum number of idle Deflaters to retain for re-use. Defaults to
+   *   twice the number of processors.
+   */
+  public void setMaxIdleDeflaters(int maxIdleDeflaters)
+  { this.maxIdleDeflaters=maxIdleDeflaters;
+  }
+  
+  /**
+   * @return The number of responses that were compressed
+   */
+  public long getCompressedCount()
+  { return compressedCount.get();
+  }
+  
+  /**
+   * @return The number of compressible responses that were sent 
+   *   uncompressed because they were below the minimum compress size
+   */
+  public long getUncompressedCount()
+  { return uncompressedCount.get();
+  }
+  
+  /**
+   * @return The total number of bytes compressed
+   */
+  public long getBytesIn()
+  { return bytesIn.get();
+  }
+  
+  /**
+   * @return The total number of compressed bytes sent
+   */
+  public long getBytesOut()
+  { return bytesOut.get();
+  }
+  
+  /**
+   * @return The total time spent deflating, in milliseconds
+   */
+  public long getDeflateTimeMs()
+  { return deflateNanos.get()/1000000;
+  }
+  
+  /**
+   * @return The number of Deflaters allocated
+   */
+  public long getDeflatersCreated()
+  { 
+    DeflaterPool pool=deflaterPool;
+    return pool!=null?pool.getCreated():0;
+  }
+  
+  Deflater acquireDeflater()
+  {
+    DeflaterPool pool=deflaterPool;
+    if (pool==null)
+    {
+      synchronized (this)
+      {
+        if (deflaterPool==null)
+        { 
+          deflaterPool
+            =new DeflaterPool
+              (compressionLevel,compressionStrategy,maxIdleDeflaters);
+        }
+        pool=deflaterPool;
+      }
+    }
+    return pool.acquire();
+  }
+  
+  void releaseDeflater(Deflater deflater)
+  {
+    DeflaterPool pool=deflaterPool;
+    if (pool!=null)
+    { pool.release(deflater);
+    }
+    else
+    { deflater.end();
+    }
+  }
+  
+  void recordCompressed(long in,long out,long nanos)
+  {
+    compressedCount.incrementAndGet();
+    bytesIn.addAndGet(in);
+    bytesOut.addAndGet(out);
+    deflateNanos.addAndGet(nanos);
+  }
+  
+  void recordUncompressed()
+  { uncompressedCount.incrementAndGet();
+  }
+  
+  @Override
+  public void destroy()
+  {
+    DeflaterPool pool=deflaterPool;
+    if (pool!=null)
+    { pool.close();
+    }
+    super.destroy();
+  }
+  
   @Override
   public void doFilter
     (ServletRequest request
@@ -77,6 +258,30 @@ public class GZipFilter
     ,HttpServletResponseCompressionWrapper response
     )
   { 
+    if (response.alreadyEncoded || response.containsHeader("Content-Encoding"))
+    { 
+      if (debug)
+      { log.fine("Response already encoded");
+      }
+      return false;
+    }
+    
+    if (response.status==206 || response.containsHeader("Content-Range"))
+    {
+      if (debug)
+      { log.fine("Partial content is not compressed");
+      }
+      return false;
+    }
+    
+    if (response.contentLength>=0 && response.contentLength<minCompressSize)
+    { 
+      if (debug)
+      { log.fine("Response below minimum compress size");
+      }
+      return false;
+    }
+    
     String acceptEncoding=httpRequest.getHeader("Accept-Encoding");
     String userAgent=httpRequest.getHeader("User-Agent");
     String contentType=response.getContentType();
@@ -0,0 +1,147 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.gzip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * <p>Writes the gzip (RFC 1952) format using a caller supplied raw
+ *   Deflater, which unlike GZIPOutputStream allows the Deflater to be 
+ *   pooled.
+ * </p>
+ *
+ * <p>flush() performs a SYNC_FLUSH so that all data written so far can be
+ *   decompressed by the client. finish() writes the trailer but does not
+ *   end the Deflater or close the underlying stream.
+ * </p>
+ *
+ * <p>The time spent deflating, excluding the time spent writing to the
+ *   underlying stream, is recorded for monitoring.
+ * </p>
+ */
+class GzipDeflaterStream
+  extends DeflaterOutputStream
+{
+  private static final byte[] HEADER
+    ={(byte) 0x1f
+     ,(byte) 0x8b
+     ,Deflater.DEFLATED
+     ,0 // flags
+     ,0,0,0,0 // mtime
+     ,0 // xfl
+     ,(byte) 0xff // OS unknown
+     };
+
+  private final CRC32 crc=new CRC32();
+  private boolean finished;
+  private long deflateNanos;
+
+  GzipDeflaterStream(OutputStream out,Deflater deflater,int bufferSize)
+    throws IOException
+  {
+    super(out,deflater,bufferSize,true);
+    out.write(HEADER);
+  }
+
+  @Override
+  public void write(byte[] data,int off,int len)
+    throws IOException
+  {
+    super.write(data,off,len);
+    crc.update(data,off,len);
+  }
+
+  @Override
+  protected void deflate()
+    throws IOException
+  {
+    long start=System.nanoTime();
+    int len=def.deflate(buf,0,buf.length);
+    deflateNanos+=System.nanoTime()-start;
+    if (len>0)
+    { out.write(buf,0,len);
+    }
+  }
+
+  @Override
+  public void flush()
+    throws IOException
+  {
+    if (!finished && !def.finished())
+    {
+      int len;
+      do
+      {
+        long start=System.nanoTime();
+        len=def.deflate(buf,0,buf.length,Deflater.SYNC_FLUSH);
+        deflateNanos+=System.nanoTime()-start;
+        out.write(buf,0,len);
+      }
+      while (len==buf.length);
+    }
+    out.flush();
+  }
+
+  /**
+   * Complete the compressed data and write the gzip trailer
+   */
+  @Override
+  public void finish()
+    throws IOException
+  {
+    if (finished)
+    { return;
+    }
+    super.finish();
+    writeInt((int) crc.getValue());
+    writeInt((int) def.getBytesRead());
+    finished=true;
+  }
+
+  /**
+   * Finish the gzip stream without closing the underlying stream, which
+   *   belongs to the container.
+   */
+  @Override
+  public void close()
+    throws IOException
+  { finish();
+  }
+
+  long getBytesIn()
+  { return def.getBytesRead();
+  }
+
+  long getBytesOut()
+  { return def.getBytesWritten()+HEADER.length+(finished?8:0);
+  }
+
+  long getDeflateNanos()
+  { return deflateNanos;
+  }
+
+  private void writeInt(int value)
+    throws IOException
+  {
+    out.write(value & 0xff);
+    out.write((value>>8) & 0xff);
+    out.write((value>>16) & 0xff);
+    out.write((value>>24) & 0xff);
+  }
+}
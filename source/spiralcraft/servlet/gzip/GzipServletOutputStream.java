@@ -22,7 +22,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.BufferedOutputStream;
 
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 /**
  * <p>A SevletOutputStream which uses Gzip compression
@@ -33,6 +33,13 @@ import java.util.zip.GZIPOutputStream;
  *   compression is enabled.
  * </p>
  * 
+ * <p>When a minimum compress size is specified, up to that many bytes are
+ *   held until it is known whether the response is large enough to be
+ *   worth compressing. A response that finishes below the threshold is
+ *   sent uncompressed. A flush() before the threshold is reached commits to
+ *   compression so streamed responses are not delayed.
+ * </p>
+ * 
  * @author mike
  *
  */
@@ -43,78 +50,182 @@ public class GzipServletOutputStream
     =ClassLog.getInstance(GzipServletOutputStream.class);
   private ServletOutputStream _downStream;
   private OutputStream _out;
-  private GZIPOutputStream _gzout;
+  private GzipDeflaterStream _gzout;
   private boolean dirty=false;
   private boolean compressing;
+  private boolean finished;
+  private boolean finishing;
   private boolean debug;
   
+  private final HttpServletResponseCompressionWrapper response;
+  private final GZipFilter filter;
+  private Deflater deflater;
+  private byte[] pending;
+  private int pendingCount;
+  
   public GzipServletOutputStream(ServletOutputStream downStream)
     throws IOException
-  { this._downStream=downStream;
+  { this(downStream,null,null);
   }
 
+  GzipServletOutputStream
+    (ServletOutputStream downStream
+    ,HttpServletResponseCompressionWrapper response
+    ,GZipFilter filter
+    )
+    throws IOException
+  { 
+    this._downStream=downStream;
+    this.response=response;
+    this.filter=filter;
+  }
+  
   void startCompressing()
   { compressing=true;
   }
   
+  /**
+   * Revert to pass-through behavior, if nothing has been compressed yet
+   * 
+   * @return Whether compression was stopped
+   */
+  boolean stopCompressing()
+  {
+    if (_out!=null)
+    { return false;
+    }
+    compressing=false;
+    return true;
+  }
+  
+  /**
+   * Called when the response is about to complete, so that draining a
+   *   Writer's buffered output isn't taken as an explicit flush that
+   *   commits to compression
+   */
+  void beginFinish()
+  { finishing=true;
+  }
+  
+  /**
+   * @return Whether compressed output has been committed to
+   */
+  boolean isCompressed()
+  { return _out!=null;
+  }
+  
+  private int getMinCompressSize()
+  { return filter!=null?filter.getMinCompressSize():0;
+  }
+  
   private void init()
     throws IOException
   {
-    _gzout=new GZIPOutputStream(_downStream,true);
-    _out=new BufferedOutputStream(_gzout);
+    if (response!=null)
+    { response.compressionCommitted();
+    }
+    
+    deflater
+      =filter!=null
+      ?filter.acquireDeflater()
+      :new Deflater(Deflater.DEFAULT_COMPRESSION,true);
+    _gzout=new GzipDeflaterStream(_downStream,deflater,8192);
+    _out=new BufferedOutputStream(_gzout,8192);
+    if (pendingCount>0)
+    { 
+      _out.write(pending,0,pendingCount);
+      pendingCount=0;
+      dirty=true;
+    }
+    pending=null;
     if (debug)
     { log.fine("Initialized streams");
     }
   }
 
-  @Override
-  public final void write(final int data)
+  /**
+   * Hold data until the minimum compress size is reached
+   * 
+   * @return true if the data was held, false if compression has started
+   */
+  private boolean hold(byte[] data,int start,int len)
     throws IOException
-  { 
-    if (compressing)
+  {
+    int minCompressSize=getMinCompressSize();
+    if (minCompressSize<=0)
+    { 
+      init();
+      return false;
+    }
+    
+    if (pendingCount+len<minCompressSize)
     {
-      if (_out==null)
-      { init();
+      if (pending==null)
+      { pending=new byte[minCompressSize];
       }
-      _out.write(data);
-      dirty=true;
+      System.arraycopy(data,start,pending,pendingCount,len);
+      pendingCount+=len;
+      return true;
     }
-    else
-    { _downStream.write(data);
+    init();
+    return false;
+  }
+  
+  /**
+   * Write any held data uncompressed after compression has been abandoned
+   */
+  private void drainPending()
+    throws IOException
+  {
+    if (pendingCount>0)
+    {
+      _downStream.write(pending,0,pendingCount);
+      pendingCount=0;
     }
+    pending=null;
   }
-
+  
   @Override
-  public final void write(final byte[] data)
+  public final void write(final int data)
     throws IOException
   { 
     if (compressing)
     {
-      if (_out==null)
-      { init();
+      if (_out==null && hold(new byte[] {(byte) data},0,1))
+      { return;
       }
       _out.write(data);
       dirty=true;
     }
     else
-    { _downStream.write(data);
+    { 
+      drainPending();
+      _downStream.write(data);
     }
   }
 
+  @Override
+  public final void write(final byte[] data)
+    throws IOException
+  { write(data,0,data.length);
+  }
+
   @Override
   public final void write(final byte[] data,final int start,final int len)
     throws IOException
   { 
     if (compressing)
     {
-      if (_out==null)
-      { init();
+      if (_out==null && hold(data,start,len))
+      { return;
       }
       _out.write(data,start,len);
       dirty=true;
     }
     else
-    { _downStream.write(data,start,len);
+    { 
+      drainPending();
+      _downStream.write(data,start,len);
     }
   }
 
@@ -124,6 +235,10 @@ public class GzipServletOutputStream
   { 
     if (compressing)
     {
+      if (_out==null && pendingCount>0 && !finishing)
+      { init();
+      }
+      
       if (_out!=null && dirty)
       { 
         if (debug)
@@ -140,35 +255,88 @@ public class GzipServletOutputStream
       }
     }
     else
-    { _downStream.flush();
+    { 
+      drainPending();
+      _downStream.flush();
     }
   }
 
+  /**
+   * <p>Complete the response. Compressed output is terminated with the gzip
+   *   trailer, and the Deflater is released. Held output below the
+   *   minimum compress size is written uncompressed.
+   * </p>
+   */
   public void finish()
     throws IOException
   {
-    if (compressing)
-    {
-      if (dirty)
-      { flush();
+    if (finished)
+    { return;
+    }
+    finished=true;
+    
+    if (_out!=null)
+    { 
+      try
+      {
+        _out.flush();
+        _gzout.finish();
+        _downStream.flush();
       }
-      else 
-      { 
-        if (debug)
-        { log.fine("Not dirty");
-        }
+      finally
+      { release();
+      }
+    }
+    else if (pendingCount>0)
+    { 
+      if (debug)
+      { log.fine("Below minimum compress size: "+pendingCount);
+      }
+      if (response!=null)
+      { response.compressionAbandoned(pendingCount);
+      }
+      if (filter!=null && compressing)
+      { filter.recordUncompressed();
+      }
+      drainPending();
+    }
+    else 
+    { 
+      if (debug)
+      { log.fine("Not dirty");
       }
     }
   }
   
+  private void release()
+  {
+    if (deflater==null)
+    { return;
+    }
+    
+    if (filter!=null)
+    { 
+      filter.recordCompressed
+        (_gzout.getBytesIn()
+        ,_gzout.getBytesOut()
+        ,_gzout.getDeflateNanos()
+        );
+      filter.releaseDeflater(deflater);
+    }
+    else
+    { deflater.end();
+    }
+    deflater=null;
+  }
+  
   @Override
   public void close()
     throws IOException
   { 
     if (compressing)
-    {
-      _out.close();
-      _gzout.close();
+    { 
+      finish();
+      _downStream.close();
     }
   }
 }
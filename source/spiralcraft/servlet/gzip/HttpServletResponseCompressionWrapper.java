@@ -29,6 +29,22 @@ import java.io.PrintWriter;
  * <p>Compresses a servlet response
  * </p>
  * 
+ * <p>Responses that downstream components have already encoded (ie. by
+ *   setting a Content-Encoding header for pre-compressed content) are
+ *   passed through unchanged.
+ * </p>
+ * 
+ * <p>The Content-Encoding header is not set until the output stream
+ *   commits to compression, so that a response found to be smaller than
+ *   the GZipFilter's minimum compress size can be sent uncompressed.
+ * </p>
+ * 
+ * <p>Partial content (206 or Content-Range) responses are never 
+ *   compressed. When a response is compressed, its ETag is made weak, so
+ *   that the compressed and identity representations don't share a strong
+ *   validator.
+ * </p>
+ * 
  * @author mike
  *
  */
@@ -41,11 +57,15 @@ public class HttpServletResponseCompressionWrapper
   protected PrintWriter writer=null;
   protected boolean compress=false;
   private boolean contentLengthSet=false;
+  int contentLength=-1;
   private final GZipFilter filter;
   private final HttpServletRequest request;
   private Level logLevel=Level.INFO;
   boolean bypass;
   boolean contentTypeSet;
+  boolean alreadyEncoded;
+  int status=200;
+  private String etag;
 
   public HttpServletResponseCompressionWrapper
     (HttpServletRequest request
@@ -93,7 +113,7 @@ public class HttpServletResponseCompressionWrapper
       { log.warning("Content length set before compression enabled");
       }
       compress=true;
-      delegate.setHeader("Content-Encoding","gzip");
+      delegate.addHeader("Vary","Accept-Encoding");
       if (out!=null)
       { out.startCompressing();
       }
@@ -103,6 +123,160 @@ public class HttpServletResponseCompressionWrapper
     }
   }
 
+  /**
+   * <p>Called when a downstream component supplies its own 
+   *   Content-Encoding. Compression is abandoned if no content has been
+   *   written yet.
+   * </p>
+   */
+  private void contentEncoded()
+  {
+    alreadyEncoded=true;
+    abandonCompression("Content-Encoding");
+  }
+  
+  /**
+   * <p>Called when the response turns out to be partial content, which
+   *   describes a range of the identity representation and can't be 
+   *   compressed.
+   * </p>
+   */
+  private void partialContent()
+  { abandonCompression("partial content");
+  }
+  
+  private void abandonCompression(String reason)
+  {
+    if (compress)
+    {
+      if (out==null || out.stopCompressing())
+      { 
+        if (logLevel.isDebug())
+        { log.debug("Response has "+reason+", bypassing compression for "
+                     +request.getRequestURL()
+                     );
+        }
+        compress=false;
+        bypass=true;
+      }
+      else
+      { log.warning(reason+" set after compressed content written");
+      }
+    }
+  }
+  
+  /**
+   * Called by the output stream when it starts writing compressed data
+   */
+  void compressionCommitted()
+  { 
+    delegate.setHeader("Content-Encoding","gzip");
+    if (etag!=null)
+    { delegate.setHeader("ETag",weakETag(etag));
+    }
+  }
+  
+  /**
+   * A 304 response to a client that holds the compressed representation
+   *   carries the weak ETag that the client has
+   */
+  private void checkNotModifiedETag()
+  {
+    if (status==304 && etag!=null && !etag.startsWith("W/"))
+    {
+      String ifNoneMatch=request.getHeader("If-None-Match");
+      if (ifNoneMatch!=null && ifNoneMatch.contains(weakETag(etag)))
+      { delegate.setHeader("ETag",weakETag(etag));
+      }
+    }
+  }
+  
+  private static String weakETag(String etag)
+  { return etag.startsWith("W/")?etag:"W/"+etag;
+  }
+  
+  @Override
+  public void setStatus(int code)
+  {
+    status=code;
+    if (code==206)
+    { partialContent();
+    }
+    super.setStatus(code);
+    checkNotModifiedETag();
+  }
+  
+  /**
+   * @deprecated
+   */
+  @SuppressWarnings("deprecation")
+  @Override
+  @Deprecated
+  public void setStatus(int code,String message)
+  {
+    status=code;
+    if (code==206)
+    { partialContent();
+    }
+    super.setStatus(code,message);
+    checkNotModifiedETag();
+  }
+  
+  /**
+   * Called by the output stream when the complete response is smaller than
+   *   the minimum compress size and will be sent uncompressed
+   */
+  void compressionAbandoned(int length)
+  {
+    compress=false;
+    if (!delegate.isCommitted())
+    { delegate.setContentLength(length);
+    }
+  }
+  
+  @Override
+  public void setHeader(String name,String value)
+  { 
+    if (headerSet(name,value))
+    { 
+      super.setHeader(name,value);
+      checkNotModifiedETag();
+    }
+  }
+
+  @Override
+  public void addHeader(String name,String value)
+  { 
+    if (headerSet(name,value))
+    { 
+      super.addHeader(name,value);
+      checkNotModifiedETag();
+    }
+  }
+  
+  /**
+   * @return Whether to pass the header through as is
+   */
+  private boolean headerSet(String name,String value)
+  {
+    if ("Content-Encoding".equalsIgnoreCase(name))
+    { contentEncoded();
+    }
+    else if ("Content-Range".equalsIgnoreCase(name))
+    { partialContent();
+    }
+    else if ("ETag".equalsIgnoreCase(name))
+    {
+      etag=value;
+      if (out!=null && out.isCompressed())
+      { 
+        delegate.setHeader(name,weakETag(value));
+        return false;
+      }
+    }
+    return true;
+  }
+  
   @Override
   public ServletOutputStream getOutputStream()
     throws IOException
@@ -110,7 +284,8 @@ public class HttpServletResponseCompressionWrapper
     
     if (out==null)
     { 
-      out=new GzipServletOutputStream(delegate.getOutputStream());
+      out
+        =new GzipServletOutputStream(delegate.getOutputStream(),this,filter);
       if (compress)
       { out.startCompressing();
       }
@@ -146,6 +321,12 @@ public class HttpServletResponseCompressionWrapper
   public void finish()
     throws IOException
   { 
+    if (out!=null)
+    { out.beginFinish();
+    }
+    if (writer!=null)
+    { writer.flush();
+    }
     if (out!=null)
     { out.finish();
     }
@@ -154,6 +335,20 @@ public class HttpServletResponseCompressionWrapper
   @Override
   public void setContentLength(int length)
   { 
+    if (compress 
+        && length<filter.getMinCompressSize()
+        && (out==null || out.stopCompressing())
+       )
+    {
+      if (logLevel.isDebug())
+      { log.debug("Below minimum compress size, bypassing compression for "
+                   +request.getRequestURL()
+                   );
+      }
+      compress=false;
+      bypass=true;
+    }
+    
     if (!compress)
     { 
       if (logLevel.isFine())
@@ -161,6 +356,7 @@ public class HttpServletResponseCompressionWrapper
       }
       delegate.setContentLength(length);
       contentLengthSet=true;
+      contentLength=length;
     }
   }
 }
@@ -42,6 +42,7 @@ import spiralcraft.log.Level;
 import spiralcraft.log.ClassLog;
 import spiralcraft.net.http.VariableMap;
 import spiralcraft.net.mime.ContentTypeHeader;
+import spiralcraft.servlet.util.RequestParameters;
 import spiralcraft.time.Clock;
 
 
@@ -487,7 +488,7 @@ public abstract class AbstractHttpServletRequest
   protected synchronized void ensureQuery()
   {
     if (_query==null)
-    { _query=VariableMap.fromUrlEncodedString(getQueryString());
+    { _query=RequestParameters.parse(getQueryString());
     }
   }
 
@@ -510,7 +511,7 @@ public abstract class AbstractHttpServletRequest
               ,getContentLength()
               ,_characterEncoding!=null?Charset.forName(_characterEncoding):UTF_8
               );
-          _post=VariableMap.fromUrlEncodedString(postString);
+          _post=RequestParameters.parse(postString);
         }
         catch (IOException x)
         { 
@@ -20,6 +20,7 @@ package spiralcraft.servlet.kit;
 public class InternalHttpServletRequest
   extends AbstractHttpServletRequest
 {
+  private String method;
 
   @Override
   public byte[] getRawRemoteAddress()
@@ -31,6 +32,15 @@ public class InternalHttpServletRequest
   public void setRequestURI(String requestURI)
   { this.requestURI=requestURI;
   }
+  
+  public void setMethod(String method)
+  { this.method=method;
+  }
+  
+  @Override
+  public String getMethod()
+  { return method;
+  }
 
   
 }
\ No newline at end of file
@@ -0,0 +1,22 @@
+package spiralcraft.servlet.rpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the content of a Response directly to the servlet output stream,
+ *   for content that is too large to buffer. The Content-Length is not known
+ *   in advance, so the response is sent with chunked transfer encoding.
+ *
+ * @author mike
+ *
+ */
+public interface ContentWriter
+{
+
+  /**
+   * Write the content. The stream is committed to the client as it fills.
+   */
+  public void write(OutputStream out)
+    throws IOException;
+}
@@ -31,6 +31,8 @@ import spiralcraft.servlet.autofilter.AutoFilter;
 import spiralcraft.servlet.autofilter.PathContext;
 
 import spiralcraft.servlet.kit.HttpFocus;
+import spiralcraft.servlet.util.MultipartParser;
+import spiralcraft.servlet.util.UploadLimitException;
 import spiralcraft.vfs.StreamUtil;
 
 import javax.servlet.http.HttpServletRequest;
@@ -64,6 +66,7 @@ public class Filter
   private boolean reflectOriginHeader;
   private boolean requireHandler;
   private HashSet<String> forwardList=new HashSet<>();
+  private MultipartParser multipartParser;
   
   
   /**
@@ -128,6 +131,17 @@ public class Filter
   { this.requireHandler=requireHandler;
   }
   
+  /**
+   * The parser for request bodies, which defines the upload size limits.
+   *   Defaults to the web application's MultipartParser (see 
+   *   MultipartParser.forContext()).
+   * 
+   * @param multipartParser
+   */
+  public void setMultipartParser(MultipartParser multipartParser)
+  { this.multipartParser=multipartParser;
+  }
+  
   @SuppressWarnings({ "unchecked", "rawtypes" })
   private final void init
     (ServletRequest request
@@ -218,6 +232,7 @@ public class Filter
     HttpServletResponse httpResponse=(HttpServletResponse) response;
     boolean pushed=false;
     boolean httpPushed=false;
+    RootCall call=null;
     
     try
     {
@@ -262,7 +277,10 @@ public class Filter
       }
       
       PathContext pc=pathContext.get();
-      RootCall call=new RootCall(httpRequest,pc.getPathInfo());
+      if (multipartParser==null)
+      { multipartParser=MultipartParser.forContext(config.getServletContext());
+      }
+      call=new RootCall(httpRequest,pc.getPathInfo(),multipartParser);
       if (debug)
       { log.fine("PathContext.getPathInfo(): "+pc.getPathInfo());
       }
@@ -390,6 +408,12 @@ public class Filter
           { in.close();
           }
         }
+        else if (call.response.writer!=null)
+        { 
+          // Length unknown- the container will use chunked encoding
+          call.response.writer.write(response.getOutputStream());
+          response.flushBuffer();
+        }
       }
       
     }
@@ -399,8 +423,22 @@ public class Filter
       sx.initCause(x);
       throw sx;
     }
+    catch (UploadLimitException x)
+    {
+      if (!response.isCommitted())
+      { 
+        httpResponse.sendError
+          (HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,x.getMessage());
+      }
+      else
+      { throw x;
+      }
+    }
     finally
     { 
+      if (call!=null)
+      { call.request.release();
+      }
       if (pushed)
       { 
         // If we changed this Thread's Focus subject, put it back
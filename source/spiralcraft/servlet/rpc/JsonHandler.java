@@ -50,6 +50,7 @@ public class JsonHandler<Tcontext,Tresult>
   private ThreadLocalChannel<Tcontext> paramsLocal;
   private Binding<Tresult> result=new Binding<Tresult>(Expression.create("null"));
   private boolean transactional;
+  private boolean streaming;
   
   
   public void setQueryParams(String[] queryParams)
@@ -68,6 +69,17 @@ public class JsonHandler<Tcontext,Tresult>
   { this.transactional=transactional;
   }
   
+  /**
+   * Write the JSON result directly to the client with chunked encoding
+   *   instead of buffering the encoded result to determine the 
+   *   Content-Length. Use for large results.
+   * 
+   * @param streaming
+   */
+  public void setStreaming(boolean streaming)
+  { this.streaming=streaming;
+  }
+  
   @SuppressWarnings({"unchecked","rawtypes"})
   @Override
   public Focus<?> bind(
@@ -222,7 +234,18 @@ public class JsonHandler<Tcontext,Tresult>
         }
       }
       else if (command.getResult()!=null)
-      { call.get().respond(200,jsonOutput.get());
+      { 
+        if (streaming)
+        { 
+          Response response=new Response();
+          response.setStatus(200);
+          response.setStreamingText
+            ("application/json; charset=UTF-8",jsonOutput.get());
+          call.get().respond(response);
+        }
+        else
+        { call.get().respond(200,jsonOutput.get());
+        }
       }
     }
     catch (AccessException x)
@@ -38,6 +38,7 @@ public class JsonTaskHandler<Tcontext,Tresult>
     =new ThreadLocalChannel<byte[]>(BeanReflector.<byte[]>getInstance(byte[].class));
   private Channel<Tcontext> jsonInput;
   private Channel<String> jsonOutput;
+  private boolean streaming;
   
   
   @SuppressWarnings("unchecked")
@@ -85,6 +86,13 @@ public class JsonTaskHandler<Tcontext,Tresult>
   { this.task=task;
   }
   
+  /**
+   * Stream the JSON result to the client (see JsonHandler.setStreaming())
+   */
+  public void setStreaming(boolean streaming)
+  { this.streaming=streaming;
+  }
+  
   
   @Override
   public void handle()
@@ -129,7 +137,18 @@ public class JsonTaskHandler<Tcontext,Tresult>
           }
         }
         else if (command.getResult()!=null)
-        { call.get().respond(200,jsonOutput.get());
+        { 
+          if (streaming)
+          { 
+            Response response=new Response();
+            response.setStatus(200);
+            response.setStreamingText
+              ("application/json; charset=UTF-8",jsonOutput.get());
+            call.get().respond(response);
+          }
+          else
+          { call.get().respond(200,jsonOutput.get());
+          }
         }
       }
       catch (AccessException x)
@@ -2,29 +2,46 @@ package spiralcraft.servlet.rpc;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.function.Function;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
-import spiralcraft.net.http.MultipartVariableMap;
 import spiralcraft.net.http.VariableMap;
+import spiralcraft.servlet.util.MultipartForm;
+import spiralcraft.servlet.util.MultipartParser;
+import spiralcraft.servlet.util.RequestParameters;
+import spiralcraft.servlet.util.UploadPart;
 import spiralcraft.vfs.Resource;
 import spiralcraft.vfs.StreamUtil;
 import spiralcraft.vfs.util.ByteArrayResource;
 
 public class Request
 {
-  private Resource content;
+  private static final int INITIAL_BUFFER_SIZE=64*1024;
+  
+  private UploadPart content;
   private boolean contentRead;
+  private byte[] contentBytes;
+  private final MultipartParser multipartParser;
   public final HttpServletRequest hsr;
   public VariableMap post;
   
   public Request(HttpServletRequest hsr)
-  { this.hsr=hsr;
+  { this(hsr,new MultipartParser());
+  }
+  
+  /**
+   * @param multipartParser Parses request bodies and enforces the size
+   *   limits
+   */
+  public Request(HttpServletRequest hsr,MultipartParser multipartParser)
+  { 
+    this.hsr=hsr;
+    this.multipartParser=multipartParser;
   }
   
   public String getURI()
@@ -52,6 +69,7 @@ public class Request
       post = new VariableMap();
       if (hsr.getContentLength()>0)
       { 
+        multipartParser.checkContentLength(hsr.getContentLength());
         String content= StreamUtil.readString
             (hsr.getInputStream(), hsr.getContentLength(),StandardCharsets.UTF_8);
         post.parseEncodedForm(content);
@@ -60,7 +78,13 @@ public class Request
     }
     else if (mainContentType.startsWith("multipart/form-data"))
     {
-      post = new MultipartVariableMap(hsr.getInputStream(),hsr.getContentType(),hsr.getContentLength());
+      post
+        =multipartParser.parse
+          (hsr.getInputStream()
+          ,hsr.getContentType()
+          ,hsr.getContentLength()
+          ,hsr.getCharacterEncoding()
+          );
       return post;
     }
     else
@@ -72,10 +96,13 @@ public class Request
   public Resource getContent()
     throws IOException
   { 
+    if (contentBytes!=null)
+    { return new ByteArrayResource(contentBytes);
+    }
     if (!contentRead)
     { readContent();
     }
-    return content;
+    return content!=null?content.getResource():null;
   }
   
   public boolean isGet()
@@ -86,9 +113,47 @@ public class Request
   { return hsr.getMethod().equals("POST");
   }
 
+  /**
+   * @return The request body. If the body has not already been read, it is
+   *   read directly into an array without being spooled first. The array
+   *   grows as data arrives, up to the declared content length.
+   */
   public byte[] getContentBytes()
     throws IOException
   { 
+    if (contentBytes!=null)
+    { return contentBytes;
+    }
+    
+    int contentLength=hsr.getContentLength();
+    if (!contentRead && contentLength>0)
+    {
+      contentRead=true;
+      multipartParser.checkContentLength(contentLength);
+      
+      // Don't trust the client's Content-Length for the allocation
+      byte[] bytes=new byte[Math.min(contentLength,INITIAL_BUFFER_SIZE)];
+      InputStream in=hsr.getInputStream();
+      int pos=0;
+      while (pos<contentLength)
+      {
+        if (pos==bytes.length)
+        { 
+          bytes=Arrays.copyOf
+            (bytes,(int) Math.min(bytes.length*2L,contentLength));
+        }
+        int count=in.read(bytes,pos,bytes.length-pos);
+        if (count<0)
+        { 
+          throw new IOException
+            ("Unexpected EOF after "+pos+" of "+contentLength+" bytes");
+        }
+        pos+=count;
+      }
+      contentBytes=bytes;
+      return contentBytes;
+    }
+    
     Resource content=getContent();
     if (content==null)
     { return null;
@@ -102,15 +167,12 @@ public class Request
     }
   }
   
+  /**
+   * @return The shared, read-only query parameters, or null if the request
+   *   has no query string
+   */
   public VariableMap getQueryParameters()
-  { 
-    String queryString=hsr.getQueryString();
-    if (queryString!=null && queryString.length()>0)
-    { return VariableMap.fromUrlEncodedString(queryString);
-    }
-    else 
-    { return null;
-    }
+  { return RequestParameters.getQuery(hsr);
   }
 
   private void readContent()
@@ -118,14 +180,24 @@ public class Request
   {
     contentRead=true;
     if (hsr.getContentLength()>0)
-    {
-      content
-        =new ByteArrayResource();
-      InputStream in=hsr.getInputStream();
-      OutputStream out=content.getOutputStream();
-      StreamUtil.copyRaw(in, out, 8192, hsr.getContentLength());
-      out.flush();
-      out.close();
+    { 
+      // Large bodies are spooled to disk
+      content=multipartParser.spool(hsr.getInputStream(),hsr.getContentLength());
     }  
   }
+  
+  /**
+   * Delete any temporary files created for the request body
+   */
+  public void release()
+  {
+    if (content!=null)
+    { 
+      content.delete();
+      content=null;
+    }
+    if (post instanceof MultipartForm)
+    { ((MultipartForm) post).delete();
+    }
+  }
 }
\ No newline at end of file
@@ -1,5 +1,11 @@
 package spiralcraft.servlet.rpc;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
 import spiralcraft.vfs.Resource;
 import spiralcraft.vfs.util.ByteArrayResource;
 
@@ -8,6 +14,7 @@ public class Response
   Integer status=null;
   String contentType=null;
   Resource result;
+  ContentWriter writer;
   
   public Response()
   {
@@ -26,8 +33,50 @@ public class Response
   public void setText(String text)
   { 
     this.result=new ByteArrayResource(text.getBytes());
+    this.writer=null;
     if (this.contentType==null)
     { this.contentType="text/plain; charset=UTF-8";
     }
   }
+  
+  /**
+   * Stream the content to the client instead of buffering it
+   * 
+   * @param contentType
+   * @param writer
+   */
+  public void setContentWriter(String contentType,ContentWriter writer)
+  { 
+    this.writer=writer;
+    this.result=null;
+    this.contentType=contentType;
+  }
+  
+  /**
+   * Encode the text as UTF-8 directly to the client, without creating a
+   *   copy of the encoded content
+   * 
+   * @param contentType
+   * @param text
+   */
+  public void setStreamingText(String contentType,final String text)
+  { 
+    setContentWriter
+      (contentType
+      ,new ContentWriter()
+      {
+        @Override
+        public void write(OutputStream out)
+          throws IOException
+        { 
+          Writer writer=new OutputStreamWriter(out,StandardCharsets.UTF_8);
+          int len=text.length();
+          for (int pos=0;pos<len;pos+=8192)
+          { writer.write(text,pos,Math.min(8192,len-pos));
+          }
+          writer.flush();
+        }
+      }
+      );
+  }
 }
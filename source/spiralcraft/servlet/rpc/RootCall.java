@@ -6,6 +6,7 @@ import java.io.OutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 
+import spiralcraft.servlet.util.MultipartParser;
 import spiralcraft.util.Path;
 import spiralcraft.vfs.StreamUtil;
 import spiralcraft.vfs.util.ByteArrayResource;
@@ -19,8 +20,13 @@ public class RootCall
   final String pathInfo;
   
   public RootCall(HttpServletRequest request,String pathInfo)
+  { this(request,pathInfo,new MultipartParser());
+  }
+  
+  public RootCall
+    (HttpServletRequest request,String pathInfo,MultipartParser multipartParser)
   { 
-    this.request=new Request(request);
+    this.request=new Request(request,multipartParser);
     this.response=new Response();
     this.pathInfo=pathInfo;
     int query=pathInfo.indexOf('?');
@@ -67,6 +73,7 @@ public class RootCall
     response.status=r.status;
     response.contentType=r.contentType;
     response.result=r.result;
+    response.writer=r.writer;
   }
   
 }
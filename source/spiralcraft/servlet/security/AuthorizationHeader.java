@@ -0,0 +1,185 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.security;
+
+import java.util.Arrays;
+
+/**
+ * <p>Parses the parts of an HTTP Authorization header in place, without
+ *   copying the header value.
+ * </p>
+ */
+class AuthorizationHeader
+{
+  private static final int MAX_RETAINED_BUFFER=4096;
+
+  private static final byte[] BASE64=new byte[128];
+  static
+  {
+    Arrays.fill(BASE64,(byte) -1);
+    String alphabet
+      ="ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i=0;i<alphabet.length();i++)
+    { BASE64[alphabet.charAt(i)]=(byte) i;
+    }
+  }
+
+  private static final ThreadLocal<Decoded> decoded
+    =ThreadLocal.withInitial(() -> new Decoded());
+
+  /**
+   * Bytes decoded from a header, reused by each call from the same thread
+   */
+  static final class Decoded
+  {
+    byte[] bytes=new byte[256];
+    int length;
+  }
+
+  /**
+   * @return The index of the credentials that follow the named scheme in
+   *   the header, or -1 if the header is for a different scheme or has no
+   *   credentials
+   */
+  static int credentialsStart(String header,String scheme)
+  {
+    int len=scheme.length();
+    if (header.length()<=len
+        || !header.regionMatches(true,0,scheme,0,len)
+        || header.charAt(len)!=' '
+        )
+    { return -1;
+    }
+
+    int start=len+1;
+    while (start<header.length() && header.charAt(start)==' ')
+    { start++;
+    }
+    return start<header.length()?start:-1;
+  }
+
+  /**
+   * @return The index after the last non-space character of the header
+   */
+  static int credentialsEnd(String header)
+  {
+    int end=header.length();
+    while (end>0 && header.charAt(end-1)==' ')
+    { end--;
+    }
+    return end;
+  }
+
+  /**
+   * <p>Decode the base64 characters between start and end into a buffer
+   *   owned by the calling thread.
+   * </p>
+   *
+   * <p>The result is only valid until the next call from the same thread.
+   * </p>
+   *
+   * @return The decoded bytes, or null if the characters are not valid
+   *   base64
+   */
+  static Decoded decodeBase64(String header,int start,int end)
+  {
+    int chars=end-start;
+    while (chars>0 && header.charAt(start+chars-1)=='=')
+    { chars--;
+    }
+    if (end-start-chars>2 || chars%4==1)
+    { return null;
+    }
+
+    int size=chars*3/4;
+    Decoded result;
+    if (size>MAX_RETAINED_BUFFER)
+    {
+      // Don't keep an oversized buffer for the life of the thread
+      result=new Decoded();
+      result.bytes=new byte[size];
+    }
+    else
+    {
+      result=decoded.get();
+      if (result.bytes.length<size)
+      { result.bytes=new byte[size];
+      }
+    }
+    byte[] bytes=result.bytes;
+
+    int bits=0;
+    int count=0;
+    int pos=0;
+    for (int i=start;i<start+chars;i++)
+    {
+      char c=header.charAt(i);
+      int value=c<128?BASE64[c]:-1;
+      if (value<0)
+      { return null;
+      }
+      bits=(bits<<6) | value;
+      if (++count==4)
+      {
+        bytes[pos++]=(byte) (bits>>16);
+        bytes[pos++]=(byte) (bits>>8);
+        bytes[pos++]=(byte) bits;
+        bits=0;
+        count=0;
+      }
+    }
+    if (count==3)
+    {
+      bytes[pos++]=(byte) (bits>>10);
+      bytes[pos++]=(byte) (bits>>2);
+    }
+    else if (count==2)
+    { bytes[pos++]=(byte) (bits>>4);
+    }
+    result.length=pos;
+    return result;
+  }
+
+  /**
+   * @return Whether the characters between start and end form a token68,
+   *   the syntax of a Bearer token
+   */
+  static boolean isToken68(String header,int start,int end)
+  {
+    int i=start;
+    for (;i<end;i++)
+    {
+      char c=header.charAt(i);
+      if (!((c>='A' && c<='Z')
+            || (c>='a' && c<='z')
+            || (c>='0' && c<='9')
+            || c=='-' || c=='.' || c=='_' || c=='~' || c=='+' || c=='/'
+           )
+         )
+      { break;
+      }
+    }
+    if (i==start)
+    { return false;
+    }
+    for (;i<end;i++)
+    {
+      if (header.charAt(i)!='=')
+      { return false;
+      }
+    }
+    return true;
+  }
+}
@@ -16,16 +16,12 @@ package spiralcraft.servlet.security;
 
 import java.io.IOException;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.ServletException;
 
-import spiralcraft.codec.text.Base64Codec;
-import spiralcraft.codec.CodecException;
-
 import spiralcraft.log.ClassLog;
 import spiralcraft.security.auth.Credential;
 import spiralcraft.security.auth.UsernameCredential;
@@ -33,8 +29,13 @@ import spiralcraft.security.auth.PasswordCleartextCredential;
 
 
 /**
- * Provides low level HTTP Authentication functionality using the "Basic"
+ * <p>Provides low level HTTP Authentication functionality using the "Basic"
  *   authentication method
+ * </p>
+ * 
+ * <p>The credentials are decoded directly from the header value into a
+ *   per-thread buffer, and the user-id and password are read as UTF-8.
+ * </p>
  * 
  * @author mike
  */
@@ -68,51 +69,52 @@ public class BasicHttpAdapter
   {
     // Get encoded username and password 
     String headerValue = request.getHeader("Authorization");
-    String encodedCredentials=null;
-    if (headerValue!=null)
-    {
-      // XXX Support other auth methods, ie. md5 digest
-      
-      
-      // remove "Basic " from header value
-      encodedCredentials = headerValue.substring(6);
+    if (headerValue==null)
+    { return null;
+    }
+    
+    // XXX Support other auth methods, ie. md5 digest
+    int start=AuthorizationHeader.credentialsStart(headerValue,"Basic");
+    if (start<0)
+    { return null;
+    }
+    int end=AuthorizationHeader.credentialsEnd(headerValue);
+    
+    AuthorizationHeader.Decoded decoded
+      =AuthorizationHeader.decodeBase64(headerValue,start,end);
+    if (decoded==null)
+    { 
+      log.info("Credentials were not valid base64");
+      return null;
     }
-    //System.out.println("Authorization header= "+encodedCredentials);
-    if (encodedCredentials!=null && encodedCredentials.length()>0)
+    
+    // RFC 7617- the user-id can't contain a ':', but the password can
+    byte[] bytes=decoded.bytes;
+    int length=decoded.length;
+    int separator=-1;
+    for (int i=0;i<length;i++)
     {
-      ByteArrayInputStream in
-        =new ByteArrayInputStream(encodedCredentials.getBytes());
-      ByteArrayOutputStream out
-        =new ByteArrayOutputStream();
-      
-      try
-      { new Base64Codec().decode(in,out);
-      }
-      catch (CodecException x)
-      { throw new ServletException(x.toString());
-      }
-      
-      String decodedCredentials=new String(out.toByteArray());
-      int separator=decodedCredentials.lastIndexOf(":");
-      if (separator<0)
+      if (bytes[i]==':')
       { 
-        log.info
-          ("Credentials didn't contain ':' separator: "+encodedCredentials+"->"+decodedCredentials);
-        return null;
+        separator=i;
+        break;
       }
-      String user 
-        = decodedCredentials.substring
-          (0, decodedCredentials.lastIndexOf(":"));
-      String password 
-        = decodedCredentials.substring
-          (decodedCredentials.lastIndexOf(":")+1);
-      
-      return new Credential<?>[]
-        {new UsernameCredential(user)
-        ,new PasswordCleartextCredential(password)
-        };
     }
-    return null;
+    if (separator<0)
+    { 
+      log.info("Credentials didn't contain ':' separator");
+      return null;
+    }
+    
+    String user=new String(bytes,0,separator,StandardCharsets.UTF_8);
+    String password
+      =new String
+        (bytes,separator+1,length-separator-1,StandardCharsets.UTF_8);
+      
+    return new Credential<?>[]
+      {new UsernameCredential(user)
+      ,new PasswordCleartextCredential(password)
+      };
   }
   
   
@@ -0,0 +1,83 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.security;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.ServletException;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.security.auth.Credential;
+
+
+/**
+ * <p>Provides low level HTTP Authentication functionality using the "Bearer"
+ *   authentication method (RFC 6750), for API clients that present an 
+ *   access token instead of a user-id and password.
+ * </p>
+ * 
+ * <p>The token is supplied to the Authenticator as a BearerTokenCredential.
+ * </p>
+ */
+public class BearerHttpAdapter
+  implements HttpAdapter
+{
+
+  private static final ClassLog log
+    =ClassLog.getInstance(BearerHttpAdapter.class);
+  
+  private String realm;
+
+  @Override
+  public void setRealm(String realm)
+  { this.realm=realm;
+  }
+    
+  @Override
+  public Credential<?>[] readAuthorization(HttpServletRequest request)
+    throws IOException,ServletException
+  {
+    String headerValue = request.getHeader("Authorization");
+    if (headerValue==null)
+    { return null;
+    }
+    
+    int start=AuthorizationHeader.credentialsStart(headerValue,"Bearer");
+    if (start<0)
+    { return null;
+    }
+    int end=AuthorizationHeader.credentialsEnd(headerValue);
+    if (!AuthorizationHeader.isToken68(headerValue,start,end))
+    { 
+      log.info("Bearer token contained invalid characters");
+      return null;
+    }
+    
+    return new Credential<?>[]
+      {new BearerTokenCredential(headerValue.substring(start,end))
+      };
+  }
+  
+  
+  @Override
+  public void writeChallenge(HttpServletResponse response)
+    throws IOException
+  {
+    response.setHeader("WWW-Authenticate", "Bearer realm=\""+realm+"\"");
+    response.sendError(401);
+  }
+}
@@ -0,0 +1,30 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.security;
+
+import spiralcraft.security.auth.Credential;
+
+/**
+ * An opaque access token presented with the HTTP "Bearer" authentication
+ *   scheme (RFC 6750)
+ */
+public class BearerTokenCredential
+  extends Credential<String>
+{
+
+  public BearerTokenCredential(String token)
+  { super(String.class,token);
+  }
+}
@@ -0,0 +1,98 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * <p>An immutable FilterChain that runs a fixed array of Filters followed
+ *   by an endpoint.
+ * </p>
+ *
+ * <p>The positions in the chain are created once, when the chain is
+ *   constructed, so a chain can be shared by any number of concurrent
+ *   requests without allocating anything per request.
+ * </p>
+ */
+public class ArrayFilterChain
+  implements FilterChain
+{
+
+  private final Filter[] filters;
+  private final FilterChain[] positions;
+
+  /**
+   * @param filters The Filters to run, in order. The array is copied.
+   * @param end The FilterChain to call after the last filter
+   */
+  public ArrayFilterChain(Filter[] filters,FilterChain end)
+  {
+    this.filters=filters.clone();
+    this.positions=new FilterChain[filters.length+1];
+    for (int i=0;i<filters.length;i++)
+    { positions[i]=new Position(i);
+    }
+    positions[filters.length]=end;
+  }
+
+  /**
+   * @return The number of filters in the chain, not including the end
+   */
+  public int size()
+  { return filters.length;
+  }
+
+  /**
+   * Pass the request and response through the first filter
+   */
+  @Override
+  public void doFilter
+    (ServletRequest request
+    ,ServletResponse response
+    )
+    throws IOException
+      ,ServletException
+  { positions[0].doFilter(request,response);
+  }
+
+  /**
+   * The FilterChain passed to the filter at a given index
+   */
+  private final class Position
+    implements FilterChain
+  {
+    private final int index;
+
+    Position(int index)
+    { this.index=index;
+    }
+
+    @Override
+    public void doFilter
+      (ServletRequest request
+      ,ServletResponse response
+      )
+      throws IOException
+        ,ServletException
+    { filters[index].doFilter(request,response,positions[index+1]);
+    }
+  }
+}
@@ -0,0 +1,309 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>A concurrent cache bounded by entry count and, optionally, by the
+ *   total weight of its entries, with an optional time-to-live.
+ * </p>
+ *
+ * <p>Reads do not lock. When a put causes the cache to exceed a bound,
+ *   entries are evicted using a "second chance" (CLOCK) approximation of
+ *   LRU: an entry that has been read since the last sweep survives one
+ *   more sweep.
+ * </p>
+ *
+ * <p>Hit, miss and eviction counts are maintained for monitoring.
+ * </p>
+ *
+ * <p>Subclasses that hold external resources for an entry can release
+ *   them in removed(), which is called for every entry that leaves the
+ *   cache.
+ * </p>
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class BoundedCache<K,V>
+{
+
+  private final ConcurrentHashMap<K,Entry<V>> map
+    =new ConcurrentHashMap<K,Entry<V>>();
+
+  private final AtomicBoolean evicting=new AtomicBoolean();
+  private final AtomicLong weight=new AtomicLong();
+  private final AtomicLong hits=new AtomicLong();
+  private final AtomicLong misses=new AtomicLong();
+  private final AtomicLong evictions=new AtomicLong();
+
+  private volatile int maxEntries;
+  private volatile long maxWeight=Long.MAX_VALUE;
+  private volatile long timeToLiveMs;
+
+  public BoundedCache(int maxEntries)
+  { this.maxEntries=maxEntries;
+  }
+
+  /**
+   * The maximum number of entries to retain
+   */
+  public void setMaxEntries(int maxEntries)
+  { this.maxEntries=maxEntries;
+  }
+
+  public int getMaxEntries()
+  { return maxEntries;
+  }
+
+  /**
+   * The maximum total weight of the entries to retain. Defaults to
+   *   unlimited.
+   */
+  public void setMaxWeight(long maxWeight)
+  { this.maxWeight=maxWeight;
+  }
+
+  public long getMaxWeight()
+  { return maxWeight;
+  }
+
+  /**
+   * How long an entry remains valid after it is put into the cache. A
+   *   value of 0 (the default) retains entries until they are evicted.
+   */
+  public void setTimeToLiveMs(long timeToLiveMs)
+  { this.timeToLiveMs=timeToLiveMs;
+  }
+
+  public long getTimeToLiveMs()
+  { return timeToLiveMs;
+  }
+
+  /**
+   * @return The cached value, or null if there is no unexpired value for
+   *   the key
+   */
+  public V get(K key)
+  {
+    Entry<V> entry=map.get(key);
+    if (entry!=null
+        && entry.expires>0
+        && entry.expires<Clock.instance().approxTimeMillis()
+        )
+    {
+      if (map.remove(key,entry))
+      {
+        weight.addAndGet(-entry.weight);
+        removed(key,entry.value);
+      }
+      entry=null;
+    }
+
+    if (entry==null)
+    {
+      misses.incrementAndGet();
+      return null;
+    }
+    entry.referenced=true;
+    hits.incrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Put a value with a weight of 1
+   */
+  public void put(K key,V value)
+  { put(key,value,1);
+  }
+
+  /**
+   * Put a value with the specified weight
+   */
+  public void put(K key,V value,long entryWeight)
+  {
+    long ttl=timeToLiveMs;
+    Entry<V> entry
+      =new Entry<V>
+        (value
+        ,entryWeight
+        ,ttl>0?Clock.instance().approxTimeMillis()+ttl:0
+        );
+    Entry<V> old=map.put(key,entry);
+    weight.addAndGet(old!=null?entryWeight-old.weight:entryWeight);
+    if (old!=null && old.value!=value)
+    { removed(key,old.value);
+    }
+    if (map.size()>maxEntries || weight.get()>maxWeight)
+    { evict();
+    }
+  }
+
+  /**
+   * Remove the value for the key
+   *
+   * @return The value that was removed, or null if none
+   */
+  public V remove(K key)
+  {
+    Entry<V> entry=map.remove(key);
+    if (entry!=null)
+    {
+      weight.addAndGet(-entry.weight);
+      removed(key,entry.value);
+      return entry.value;
+    }
+    return null;
+  }
+
+  /**
+   * Remove the entry for the key only if it maps to the specified value
+   */
+  public boolean remove(K key,V value)
+  {
+    Entry<V> entry=map.get(key);
+    if (entry!=null && entry.value==value && map.remove(key,entry))
+    {
+      weight.addAndGet(-entry.weight);
+      removed(key,value);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Remove all entries that match the predicate
+   *
+   * @return The number of entries removed
+   */
+  public int removeIf(BiPredicate<? super K,? super V> predicate)
+  {
+    int count=0;
+    for (Map.Entry<K,Entry<V>> mapEntry: map.entrySet())
+    {
+      Entry<V> entry=mapEntry.getValue();
+      if (predicate.test(mapEntry.getKey(),entry.value)
+          && map.remove(mapEntry.getKey(),entry)
+          )
+      {
+        weight.addAndGet(-entry.weight);
+        removed(mapEntry.getKey(),entry.value);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Discard all entries
+   */
+  public void clear()
+  { removeIf((k,v) -> true);
+  }
+
+  public int size()
+  { return map.size();
+  }
+
+  public long getWeight()
+  { return weight.get();
+  }
+
+  public long getHits()
+  { return hits.get();
+  }
+
+  public long getMisses()
+  { return misses.get();
+  }
+
+  public long getEvictions()
+  { return evictions.get();
+  }
+
+  /**
+   * Called after an entry has been removed, evicted, expired or replaced.
+   *   The default implementation does nothing.
+   */
+  protected void removed(K key,V value)
+  { }
+
+  private boolean overLimit()
+  { return map.size()>maxEntries || weight.get()>maxWeight;
+  }
+
+  private void evict()
+  {
+    if (!evicting.compareAndSet(false,true))
+    {
+      // Another thread is already making room
+      return;
+    }
+
+    try
+    {
+      long now=Clock.instance().approxTimeMillis();
+
+      // Sweep at most twice- the first pass clears reference bits, the
+      //   second is guaranteed to find victims.
+      for (int pass=0;pass<2 && overLimit();pass++)
+      {
+        for (Map.Entry<K,Entry<V>> mapEntry: map.entrySet())
+        {
+          if (!overLimit())
+          { break;
+          }
+
+          Entry<V> entry=mapEntry.getValue();
+          boolean expired=entry.expires>0 && entry.expires<now;
+          if (entry.referenced && !expired)
+          { entry.referenced=false;
+          }
+          else if (map.remove(mapEntry.getKey(),entry))
+          {
+            weight.addAndGet(-entry.weight);
+            evictions.incrementAndGet();
+            removed(mapEntry.getKey(),entry.value);
+          }
+        }
+      }
+    }
+    finally
+    { evicting.set(false);
+    }
+  }
+
+  private static final class Entry<V>
+  {
+    final V value;
+    final long weight;
+    final long expires;
+    volatile boolean referenced;
+
+    Entry(V value,long weight,long expires)
+    {
+      this.value=value;
+      this.weight=weight;
+      this.expires=expires;
+    }
+  }
+}
@@ -0,0 +1,477 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>A Writer that encodes the text of a response into pooled byte buffers
+ *   and writes the bytes to the response OutputStream, instead of sending
+ *   each write through the container's Writer and encoder.
+ * </p>
+ *
+ * <p>If the whole response fits within the maximum buffer size, it is sent
+ *   with an exact Content-Length when finish() is called. Once the buffered
+ *   output exceeds the maximum, it is written to the client as it is
+ *   produced, and the container uses chunked transfer encoding.
+ * </p>
+ *
+ * <p>Text is encoded in UTF-8, and the response character encoding is set
+ *   to UTF-8, unless the response content type already specifies another
+ *   charset.
+ * </p>
+ *
+ * <p>When flushHead is set, the output up to and including the first
+ *   &lt;/head&gt; tag is sent as soon as it is written, so the client can
+ *   start loading the resources referenced in the head while the rest of
+ *   the page is rendered. The response is committed at that point, so the
+ *   status and headers can't be changed later.
+ * </p>
+ *
+ * <p>Not thread safe- used by one request at a time.
+ * </p>
+ */
+public class BufferedResponseWriter
+  extends Writer
+{
+  private static final int CHUNK_SIZE=8192;
+  private static final int MAX_POOLED_CHUNKS=512;
+  private static final String HEAD_END="</head>";
+
+  private static final ConcurrentLinkedQueue<byte[]> pool
+    =new ConcurrentLinkedQueue<byte[]>();
+  private static final AtomicInteger pooled=new AtomicInteger();
+
+  private final HttpServletResponse response;
+  private final int maxBufferSize;
+  private final ArrayList<byte[]> chunks=new ArrayList<byte[]>(4);
+
+  private byte[] chunk;
+  private int pos;
+  private long buffered;
+  private OutputStream out;
+  private boolean streaming;
+  private boolean started;
+  private boolean finished;
+  private int headMatch=-1;
+  private char highSurrogate;
+  private Writer encoder;
+
+  /**
+   * @param response The response to write to
+   * @param maxBufferSize The largest response, in bytes, that will be
+   *   buffered and sent with a Content-Length
+   */
+  public BufferedResponseWriter(HttpServletResponse response,int maxBufferSize)
+  {
+    this.response=response;
+    this.maxBufferSize=maxBufferSize;
+  }
+
+  /**
+   * Send the output up to the end of the document head as soon as it is
+   *   written
+   */
+  public void setFlushHead(boolean flushHead)
+  {
+    if (!started)
+    { headMatch=flushHead?0:-1;
+    }
+  }
+
+  /**
+   * @return The number of bytes written so far
+   */
+  public long getSize()
+  { return buffered+pos;
+  }
+
+  @Override
+  public void write(int c)
+    throws IOException
+  {
+    if (chunk==null)
+    { start();
+    }
+    if (encoder!=null)
+    {
+      encoder.write(c);
+      if (headMatch>=0)
+      { matchHead((char) c);
+      }
+    }
+    else
+    { encode((char) c);
+    }
+  }
+
+  @Override
+  public void write(char[] chars,int off,int len)
+    throws IOException
+  {
+    if (chunk==null)
+    { start();
+    }
+    if (encoder!=null)
+    {
+      encoder.write(chars,off,len);
+      if (headMatch>=0)
+      {
+        for (int i=off;i<off+len && headMatch>=0;i++)
+        { matchHead(chars[i]);
+        }
+      }
+      return;
+    }
+
+    int end=off+len;
+    for (int i=off;i<end;i++)
+    {
+      char c=chars[i];
+      if (c<0x80 && pos<CHUNK_SIZE && headMatch<0)
+      { chunk[pos++]=(byte) c;
+      }
+      else
+      { encode(c);
+      }
+    }
+  }
+
+  @Override
+  public void write(String string,int off,int len)
+    throws IOException
+  {
+    if (chunk==null)
+    { start();
+    }
+    if (encoder!=null)
+    {
+      encoder.write(string,off,len);
+      if (headMatch>=0)
+      {
+        for (int i=off;i<off+len && headMatch>=0;i++)
+        { matchHead(string.charAt(i));
+        }
+      }
+      return;
+    }
+
+    int end=off+len;
+    for (int i=off;i<end;i++)
+    {
+      char c=string.charAt(i);
+      if (c<0x80 && pos<CHUNK_SIZE && headMatch<0)
+      { chunk[pos++]=(byte) c;
+      }
+      else
+      { encode(c);
+      }
+    }
+  }
+
+  /**
+   * Send any output already written to the client if the response is
+   *   being streamed. A buffered response is not committed until finish()
+   *   is called.
+   */
+  @Override
+  public void flush()
+    throws IOException
+  {
+    if (encoder!=null)
+    { encoder.flush();
+    }
+    if (streaming)
+    {
+      writeCurrent();
+      out.flush();
+    }
+  }
+
+  /**
+   * Finish the response
+   */
+  @Override
+  public void close()
+    throws IOException
+  { finish();
+  }
+
+  /**
+   * <p>Write all the remaining output to the client. If the response was
+   *   buffered in full, the Content-Length is set first. Nothing is done
+   *   if nothing was written, so that the response can be generated by
+   *   other means.
+   * </p>
+   */
+  public void finish()
+    throws IOException
+  {
+    if (finished)
+    { return;
+    }
+    finished=true;
+    try
+    {
+      if (!started)
+      { return;
+      }
+      if (encoder!=null)
+      { encoder.flush();
+      }
+      if (highSurrogate!=0)
+      {
+        highSurrogate=0;
+        put((byte) '?');
+      }
+
+      if (!streaming)
+      {
+        long size=buffered+pos;
+        if (size==0)
+        { return;
+        }
+        response.setContentLength((int) size);
+        out=response.getOutputStream();
+        for (byte[] full: chunks)
+        { out.write(full,0,CHUNK_SIZE);
+        }
+      }
+      writeCurrent();
+      out.flush();
+    }
+    finally
+    { release();
+    }
+  }
+
+  /**
+   * Return the buffers to the pool without writing them. Called when the
+   *   response is abandoned, and safe to call after finish().
+   */
+  public void release()
+  {
+    finished=true;
+    for (byte[] full: chunks)
+    { recycle(full);
+    }
+    chunks.clear();
+    if (chunk!=null)
+    {
+      recycle(chunk);
+      chunk=null;
+    }
+    pos=0;
+  }
+
+  /**
+   * Determine the encoding when the first character is written, after the
+   *   content type has been set
+   */
+  private void start()
+    throws IOException
+  {
+    if (finished)
+    { throw new IOException("Response already finished");
+    }
+    chunk=acquire();
+    if (started)
+    { return;
+    }
+    started=true;
+
+    String contentType=response.getContentType();
+    String charset=response.getCharacterEncoding();
+    if (contentType==null
+        || contentType.toLowerCase().indexOf("charset=")<0
+        )
+    { response.setCharacterEncoding("UTF-8");
+    }
+    else if (charset!=null && !charset.equalsIgnoreCase("UTF-8"))
+    {
+      encoder
+        =new OutputStreamWriter
+          (new OutputStream()
+          {
+            @Override
+            public void write(int b)
+              throws IOException
+            { put((byte) b);
+            }
+          }
+          ,Charset.forName(charset)
+          );
+    }
+  }
+
+  private void encode(char c)
+    throws IOException
+  {
+    if (highSurrogate!=0)
+    {
+      char high=highSurrogate;
+      highSurrogate=0;
+      if (Character.isLowSurrogate(c))
+      {
+        int codePoint=Character.toCodePoint(high,c);
+        put((byte) (0xF0 | (codePoint>>18)));
+        put((byte) (0x80 | ((codePoint>>12) & 0x3F)));
+        put((byte) (0x80 | ((codePoint>>6) & 0x3F)));
+        put((byte) (0x80 | (codePoint & 0x3F)));
+        return;
+      }
+      put((byte) '?');
+    }
+
+    if (c<0x80)
+    { put((byte) c);
+    }
+    else if (c<0x800)
+    {
+      put((byte) (0xC0 | (c>>6)));
+      put((byte) (0x80 | (c & 0x3F)));
+    }
+    else if (Character.isHighSurrogate(c))
+    { highSurrogate=c;
+    }
+    else if (Character.isLowSurrogate(c))
+    { put((byte) '?');
+    }
+    else
+    {
+      put((byte) (0xE0 | (c>>12)));
+      put((byte) (0x80 | ((c>>6) & 0x3F)));
+      put((byte) (0x80 | (c & 0x3F)));
+    }
+
+    if (headMatch>=0)
+    { matchHead(c);
+    }
+  }
+
+  /**
+   * Track the characters of the closing head tag, and send the output
+   *   when it is complete
+   */
+  private void matchHead(char c)
+    throws IOException
+  {
+    if (Character.toLowerCase(c)==HEAD_END.charAt(headMatch))
+    {
+      headMatch++;
+      if (headMatch==HEAD_END.length())
+      {
+        headMatch=-1;
+        if (encoder!=null)
+        { encoder.flush();
+        }
+        startStreaming();
+        writeCurrent();
+        out.flush();
+        response.flushBuffer();
+      }
+    }
+    else
+    { headMatch=(c=='<'?1:0);
+    }
+  }
+
+  private void put(byte b)
+    throws IOException
+  {
+    if (pos==CHUNK_SIZE)
+    { nextChunk();
+    }
+    chunk[pos++]=b;
+  }
+
+  private void nextChunk()
+    throws IOException
+  {
+    if (streaming)
+    {
+      writeCurrent();
+      return;
+    }
+
+    chunks.add(chunk);
+    buffered+=CHUNK_SIZE;
+    chunk=acquire();
+    pos=0;
+    if (buffered>=maxBufferSize)
+    { startStreaming();
+    }
+  }
+
+  /**
+   * Send the full buffers and write further output as it is produced
+   */
+  private void startStreaming()
+    throws IOException
+  {
+    if (streaming)
+    { return;
+    }
+    streaming=true;
+    out=response.getOutputStream();
+    for (byte[] full: chunks)
+    {
+      out.write(full,0,CHUNK_SIZE);
+      recycle(full);
+    }
+    chunks.clear();
+  }
+
+  private void writeCurrent()
+    throws IOException
+  {
+    if (pos>0)
+    {
+      out.write(chunk,0,pos);
+      buffered+=pos;
+      pos=0;
+    }
+  }
+
+  private static byte[] acquire()
+  {
+    byte[] buffer=pool.poll();
+    if (buffer!=null)
+    {
+      pooled.decrementAndGet();
+      return buffer;
+    }
+    return new byte[CHUNK_SIZE];
+  }
+
+  private static void recycle(byte[] buffer)
+  {
+    if (pooled.incrementAndGet()<=MAX_POOLED_CHUNKS)
+    { pool.offer(buffer);
+    }
+    else
+    { pooled.decrementAndGet();
+    }
+  }
+}
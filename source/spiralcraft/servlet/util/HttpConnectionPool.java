@@ -0,0 +1,395 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>A client for origin servers that keeps HTTP/1.1 connections alive
+ *   between requests and reuses them.
+ * </p>
+ *
+ * <p>Connections are pooled per authority (scheme, host and port). The
+ *   number of connections to an authority is limited, and a request waits
+ *   up to the acquire timeout for a connection to become available.
+ *   Connections that have been idle longer than the idle timeout are
+ *   closed instead of being reused.
+ * </p>
+ *
+ * <p>The most recently used idle connection is reused first, which allows
+ *   connections to expire when the load drops.
+ * </p>
+ */
+public class HttpConnectionPool
+{
+
+  private final ConcurrentHashMap<String,Route> routes
+    =new ConcurrentHashMap<String,Route>();
+
+  private final AtomicInteger inUse=new AtomicInteger();
+  private final AtomicInteger idle=new AtomicInteger();
+  private final AtomicLong acquired=new AtomicLong();
+  private final AtomicLong created=new AtomicLong();
+  private final AtomicLong reused=new AtomicLong();
+  private final AtomicLong waitNanos=new AtomicLong();
+  private final AtomicLong timeouts=new AtomicLong();
+
+  private volatile int maxConnectionsPerAuthority=20;
+  private volatile int connectTimeoutMs=15000;
+  private volatile int readTimeoutMs=5000;
+  private volatile long idleTimeoutMs=30000;
+  private volatile long acquireTimeoutMs=15000;
+  private volatile boolean closed;
+
+  /**
+   * The maximum number of connections to a single authority. Defaults
+   *   to 20.
+   */
+  public void setMaxConnectionsPerAuthority(int maxConnectionsPerAuthority)
+  { this.maxConnectionsPerAuthority=maxConnectionsPerAuthority;
+  }
+
+  /**
+   * The time allowed to establish a connection. Defaults to 15 seconds.
+   */
+  public void setConnectTimeoutMs(int connectTimeoutMs)
+  { this.connectTimeoutMs=connectTimeoutMs;
+  }
+
+  /**
+   * The time allowed between reads from the origin server. Defaults to 5
+   *   seconds.
+   */
+  public void setReadTimeoutMs(int readTimeoutMs)
+  { this.readTimeoutMs=readTimeoutMs;
+  }
+
+  /**
+   * How long an unused connection is kept open. Defaults to 30 seconds,
+   *   which should be shorter than the origin server's keep-alive timeout.
+   */
+  public void setIdleTimeoutMs(long idleTimeoutMs)
+  { this.idleTimeoutMs=idleTimeoutMs;
+  }
+
+  /**
+   * How long to wait for a connection when the limit for the authority
+   *   has been reached. Defaults to 15 seconds.
+   */
+  public void setAcquireTimeoutMs(long acquireTimeoutMs)
+  { this.acquireTimeoutMs=acquireTimeoutMs;
+  }
+
+  /**
+   * @return The number of connections currently serving a request
+   */
+  public int getInUse()
+  { return inUse.get();
+  }
+
+  /**
+   * @return The number of open connections available for reuse
+   */
+  public int getIdle()
+  { return idle.get();
+  }
+
+  /**
+   * @return The number of connections handed out
+   */
+  public long getAcquired()
+  { return acquired.get();
+  }
+
+  /**
+   * @return The number of connections opened
+   */
+  public long getCreated()
+  { return created.get();
+  }
+
+  /**
+   * @return The number of times an idle connection was reused
+   */
+  public long getReused()
+  { return reused.get();
+  }
+
+  /**
+   * @return The total time spent waiting for a connection to become
+   *   available
+   */
+  public long getWaitTimeMs()
+  { return waitNanos.get()/1000000;
+  }
+
+  /**
+   * @return The number of requests that gave up waiting for a connection
+   */
+  public long getTimeouts()
+  { return timeouts.get();
+  }
+
+  /**
+   * Open an exchange with the origin server identified by the URI,
+   *   reusing an idle connection if one is available
+   */
+  public HttpExchange open(URI uri)
+    throws IOException
+  { return open(uri,true);
+  }
+
+  /**
+   * Open an exchange with the origin server identified by the URI
+   *
+   * @param allowReuse Whether an idle connection may be used. A new
+   *   connection is used to retry a request that failed on a reused
+   *   connection which the origin server had already closed.
+   */
+  public HttpExchange open(URI uri,boolean allowReuse)
+    throws IOException
+  {
+    if (closed)
+    { throw new IOException("Connection pool is closed");
+    }
+
+    Route route=route(uri);
+    long start=System.nanoTime();
+    boolean permitted;
+    try
+    {
+      permitted
+        =route.permits.tryAcquire(acquireTimeoutMs,TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException x)
+    { throw new InterruptedIOException("Interrupted waiting for connection");
+    }
+    waitNanos.addAndGet(System.nanoTime()-start);
+    if (!permitted)
+    {
+      timeouts.incrementAndGet();
+      throw new IOException
+        ("Timed out waiting for a connection to "+route.key);
+    }
+
+    try
+    {
+      PooledConnection connection=null;
+      boolean wasReused=false;
+      if (allowReuse)
+      {
+        long now=Clock.instance().approxTimeMillis();
+        PooledConnection candidate;
+        while ((candidate=route.idle.pollFirst())!=null)
+        {
+          idle.decrementAndGet();
+          if (candidate.isExpired(now,idleTimeoutMs))
+          { candidate.close();
+          }
+          else
+          {
+            connection=candidate;
+            wasReused=true;
+            reused.incrementAndGet();
+            break;
+          }
+        }
+      }
+
+      if (connection==null)
+      {
+        connection=connect(route);
+        created.incrementAndGet();
+      }
+      connection.setReadTimeout(readTimeoutMs);
+      acquired.incrementAndGet();
+      inUse.incrementAndGet();
+      return new HttpExchange(this,connection,uri,wasReused);
+    }
+    catch (IOException | RuntimeException x)
+    {
+      route.permits.release();
+      throw x;
+    }
+  }
+
+  /**
+   * Close all idle connections and refuse new requests
+   */
+  public void close()
+  {
+    closed=true;
+    for (Route route: routes.values())
+    { closeIdle(route,Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Return a connection whose response was completely read
+   */
+  void release(PooledConnection connection)
+  {
+    inUse.decrementAndGet();
+    Route route=connection.route;
+    if (closed || route.idle.size()>=maxConnectionsPerAuthority)
+    { connection.close();
+    }
+    else
+    {
+      long now=Clock.instance().approxTimeMillis();
+      connection.lastUsed=now;
+      route.idle.offerFirst(connection);
+      idle.incrementAndGet();
+      closeIdle(route,now);
+    }
+    route.permits.release();
+  }
+
+  /**
+   * Close a connection that can't be reused
+   */
+  void discard(PooledConnection connection)
+  {
+    inUse.decrementAndGet();
+    connection.close();
+    connection.route.permits.release();
+  }
+
+  /**
+   * Close expired connections at the least recently used end of the idle
+   *   list
+   */
+  private void closeIdle(Route route,long now)
+  {
+    PooledConnection connection;
+    while ((connection=route.idle.peekLast())!=null
+           && (now==Long.MAX_VALUE || connection.isExpired(now,idleTimeoutMs))
+           )
+    {
+      if (route.idle.removeLastOccurrence(connection))
+      {
+        idle.decrementAndGet();
+        connection.close();
+      }
+    }
+  }
+
+  private Route route(URI uri)
+  {
+    String scheme=uri.getScheme()!=null?uri.getScheme().toLowerCase():null;
+    boolean secure;
+    if ("http".equals(scheme))
+    { secure=false;
+    }
+    else if ("https".equals(scheme))
+    { secure=true;
+    }
+    else
+    { throw new IllegalArgumentException("Not an http(s) URI: "+uri);
+    }
+
+    String host=uri.getHost();
+    if (host==null)
+    { throw new IllegalArgumentException("No host in "+uri);
+    }
+    int port=uri.getPort()>0?uri.getPort():(secure?443:80);
+    String key=scheme+"://"+host.toLowerCase()+":"+port;
+
+    Route route=routes.get(key);
+    if (route==null)
+    {
+      route=new Route(key,host,port,secure,maxConnectionsPerAuthority);
+      Route existing=routes.putIfAbsent(key,route);
+      if (existing!=null)
+      { route=existing;
+      }
+    }
+    return route;
+  }
+
+  private PooledConnection connect(Route route)
+    throws IOException
+  {
+    Socket socket=new Socket();
+    try
+    {
+      socket.setTcpNoDelay(true);
+      socket.connect
+        (new InetSocketAddress(route.host,route.port),connectTimeoutMs);
+      if (route.secure)
+      {
+        SSLSocket sslSocket
+          =(SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+            .createSocket(socket,route.host,route.port,true);
+        SSLParameters parameters=sslSocket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslSocket.setSSLParameters(parameters);
+        sslSocket.setSoTimeout(connectTimeoutMs);
+        sslSocket.startHandshake();
+        socket=sslSocket;
+      }
+      return new PooledConnection(route,socket);
+    }
+    catch (IOException | RuntimeException x)
+    {
+      try
+      { socket.close();
+      }
+      catch (IOException y)
+      { // Ignore
+      }
+      throw x;
+    }
+  }
+
+  /**
+   * The connections to an authority
+   */
+  static final class Route
+  {
+    final String key;
+    final String host;
+    final int port;
+    final boolean secure;
+    final Semaphore permits;
+    final ConcurrentLinkedDeque<PooledConnection> idle
+      =new ConcurrentLinkedDeque<PooledConnection>();
+
+    Route(String key,String host,int port,boolean secure,int maxConnections)
+    {
+      this.key=key;
+      this.host=host;
+      this.port=port;
+      this.secure=secure;
+      this.permits=new Semaphore(maxConnections,true);
+    }
+  }
+}
@@ -0,0 +1,649 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A single HTTP/1.1 request and response on a connection from an
+ *   HttpConnectionPool.
+ * </p>
+ *
+ * <p>The request headers are set, the request is sent along with any
+ *   content, and the response is read with getStatus(). The response
+ *   content streams directly from the connection. When the exchange is
+ *   closed, the connection is returned to the pool if the response content
+ *   was completely read and the server permits it, otherwise the connection
+ *   is closed.
+ * </p>
+ */
+public class HttpExchange
+{
+
+  private final HttpConnectionPool pool;
+  private final PooledConnection connection;
+  private final URI uri;
+  private final boolean reused;
+  private final ArrayList<String[]> requestHeaders=new ArrayList<String[]>();
+  private String method="GET";
+
+  private boolean requestSent;
+  private OutputStream requestContent;
+  private int status=-1;
+  private String reason;
+  private final ArrayList<String[]> responseHeaders=new ArrayList<String[]>();
+  private InputStream responseContent;
+  private long responseContentLength=-1;
+  private boolean keepAlive=true;
+  private boolean complete;
+  private boolean closed;
+  private boolean closedBeforeResponse;
+
+  HttpExchange
+    (HttpConnectionPool pool
+    ,PooledConnection connection
+    ,URI uri
+    ,boolean reused
+    )
+  {
+    this.pool=pool;
+    this.connection=connection;
+    this.uri=uri;
+    this.reused=reused;
+  }
+
+  /**
+   * @return Whether the exchange is using a connection that served a
+   *   previous request
+   */
+  public boolean isReused()
+  { return reused;
+  }
+
+  /**
+   * @return Whether the exchange failed because the server closed or reset
+   *   a reused connection before any byte of the response arrived, which
+   *   is how an origin server drops an idle keep-alive connection. An
+   *   idempotent request with no content that fails this way may be
+   *   retried on a new connection. A read timeout does not count.
+   */
+  public boolean isClosedBeforeResponse()
+  { return closedBeforeResponse;
+  }
+
+  public void setMethod(String method)
+  { this.method=method;
+  }
+
+  /**
+   * Add a request header. The Host, Content-Length and Transfer-Encoding
+   *   headers are generated and should not be added.
+   */
+  public void addRequestHeader(String name,String value)
+  { requestHeaders.add(new String[] {name,value});
+  }
+
+  /**
+   * Send a request with no content
+   */
+  public void sendRequest()
+    throws IOException
+  { sendRequest(0);
+  }
+
+  /**
+   * <p>Send the request line and headers
+   * </p>
+   *
+   * @param contentLength The length of the request content, or -1 if the
+   *   content will be sent with chunked encoding
+   * @return The stream to write the request content to, or null if
+   *   contentLength is 0. The content is complete when the stream is
+   *   closed or the response is read.
+   */
+  public OutputStream sendRequest(long contentLength)
+    throws IOException
+  {
+    if (requestSent)
+    { throw new IllegalStateException("Request already sent");
+    }
+    requestSent=true;
+
+    String target=uri.getRawPath();
+    if (target==null || target.isEmpty())
+    { target="/";
+    }
+    if (uri.getRawQuery()!=null)
+    { target=target+"?"+uri.getRawQuery();
+    }
+
+    StringBuilder head=new StringBuilder(256);
+    head.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+    head.append("Host: ").append(uri.getRawAuthority()).append("\r\n");
+    for (String[] header: requestHeaders)
+    { head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+    }
+    if (contentLength>0)
+    { head.append("Content-Length: ").append(contentLength).append("\r\n");
+    }
+    else if (contentLength<0)
+    { head.append("Transfer-Encoding: chunked\r\n");
+    }
+    head.append("\r\n");
+
+    OutputStream out=connection.out;
+    try
+    { out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+    catch (SocketException x)
+    { 
+      closedBeforeResponse=reused;
+      throw x;
+    }
+    if (contentLength>0)
+    { requestContent=new FixedLengthOutputStream(out,contentLength);
+    }
+    else if (contentLength<0)
+    { requestContent=new ChunkedOutputStream(out);
+    }
+    return requestContent;
+  }
+
+  /**
+   * Complete the request if necessary and read the response status and
+   *   headers
+   *
+   * @return The response status code
+   */
+  public int getStatus()
+    throws IOException
+  {
+    if (status>=0)
+    { return status;
+    }
+    if (!requestSent)
+    { sendRequest();
+    }
+    if (requestContent!=null)
+    { requestContent.close();
+    }
+    try
+    { connection.out.flush();
+    }
+    catch (SocketException x)
+    { 
+      closedBeforeResponse=reused;
+      throw x;
+    }
+    awaitResponse();
+
+    boolean head="HEAD".equalsIgnoreCase(method);
+    do
+    {
+      responseHeaders.clear();
+      String statusLine=connection.readLine();
+      if (statusLine==null)
+      {
+        throw new IOException
+          ("Connection closed by "+connection.route.key
+          +" before response"
+          );
+      }
+      parseStatusLine(statusLine);
+      String line;
+      while (!(line=readHeaderLine()).isEmpty())
+      {
+        int colon=line.indexOf(':');
+        if (colon>0)
+        {
+          responseHeaders.add
+            (new String[]
+              {line.substring(0,colon).trim(),line.substring(colon+1).trim()}
+            );
+        }
+      }
+    }
+    // Skip interim responses such as 100 Continue
+    while (status>=100 && status<200 && status!=101);
+
+    String connectionHeader=getResponseHeader("Connection");
+    if (connectionHeader!=null
+        && connectionHeader.toLowerCase().contains("close")
+        )
+    { keepAlive=false;
+    }
+
+    String transferEncoding=getResponseHeader("Transfer-Encoding");
+    String contentLength=getResponseHeader("Content-Length");
+    if (head || status==204 || status==304)
+    {
+      responseContentLength=0;
+      responseContent=new FixedLengthInputStream(0);
+    }
+    else if (transferEncoding!=null
+             && transferEncoding.toLowerCase().contains("chunked")
+             )
+    { responseContent=new ChunkedInputStream();
+    }
+    else if (contentLength!=null)
+    {
+      try
+      { responseContentLength=Long.parseLong(contentLength.trim());
+      }
+      catch (NumberFormatException x)
+      { throw new IOException("Invalid Content-Length "+contentLength);
+      }
+      responseContent=new FixedLengthInputStream(responseContentLength);
+    }
+    else
+    {
+      // Content is delimited by the server closing the connection
+      keepAlive=false;
+      responseContent=new UntilCloseInputStream();
+    }
+    return status;
+  }
+
+  public String getReason()
+    throws IOException
+  {
+    getStatus();
+    return reason;
+  }
+
+  /**
+   * @return The response headers as name,value pairs in the order received
+   */
+  public List<String[]> getResponseHeaders()
+    throws IOException
+  {
+    getStatus();
+    return Collections.unmodifiableList(responseHeaders);
+  }
+
+  /**
+   * @return The first value of the named response header, or null
+   */
+  public String getResponseHeader(String name)
+  {
+    for (String[] header: responseHeaders)
+    {
+      if (header[0].equalsIgnoreCase(name))
+      { return header[1];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return The length of the response content, or -1 if not known
+   */
+  public long getResponseContentLength()
+    throws IOException
+  {
+    getStatus();
+    return responseContentLength;
+  }
+
+  /**
+   * @return The response content, read directly from the connection.
+   *   Closing the stream closes the exchange.
+   */
+  public InputStream getResponseContent()
+    throws IOException
+  {
+    getStatus();
+    return responseContent;
+  }
+
+  /**
+   * Release the connection to the pool if the response was completely
+   *   read, otherwise close it
+   */
+  public void close()
+  {
+    if (closed)
+    { return;
+    }
+    closed=true;
+    if (complete && keepAlive)
+    { pool.release(connection);
+    }
+    else
+    { pool.discard(connection);
+    }
+  }
+
+  /**
+   * Close the connection without returning it to the pool
+   */
+  public void abort()
+  {
+    if (closed)
+    { return;
+    }
+    closed=true;
+    pool.discard(connection);
+  }
+
+  /**
+   * Wait for the first byte of the response without consuming it
+   */
+  private void awaitResponse()
+    throws IOException
+  {
+    InputStream in=connection.in;
+    in.mark(1);
+    int c;
+    try
+    { c=in.read();
+    }
+    catch (SocketException x)
+    { 
+      // A SocketTimeoutException is not a SocketException, so a slow
+      //   server is not mistaken for a closed connection
+      closedBeforeResponse=reused;
+      throw x;
+    }
+    if (c<0)
+    {
+      closedBeforeResponse=reused;
+      throw new IOException
+        ("Connection closed by "+connection.route.key+" before response");
+    }
+    in.reset();
+  }
+
+  private String readHeaderLine()
+    throws IOException
+  {
+    String line=connection.readLine();
+    if (line==null)
+    {
+      throw new IOException
+        ("Unexpected EOF in headers from "+connection.route.key);
+    }
+    return line;
+  }
+
+  private void parseStatusLine(String statusLine)
+    throws IOException
+  {
+    // HTTP-version SP status-code SP reason-phrase
+    int space=statusLine.indexOf(' ');
+    if (!statusLine.startsWith("HTTP/") || space<0)
+    { throw new IOException("Invalid status line: "+statusLine);
+    }
+    if (statusLine.startsWith("HTTP/1.0"))
+    { keepAlive=false;
+    }
+    int end=statusLine.indexOf(' ',space+1);
+    if (end<0)
+    { end=statusLine.length();
+    }
+    try
+    { status=Integer.parseInt(statusLine.substring(space+1,end));
+    }
+    catch (NumberFormatException x)
+    { throw new IOException("Invalid status line: "+statusLine);
+    }
+    reason=end<statusLine.length()?statusLine.substring(end+1):"";
+  }
+
+  private void completed()
+  { complete=true;
+  }
+
+  /**
+   * Base for the response content streams, which close the exchange when
+   *   they are closed
+   */
+  private abstract class ContentInputStream
+    extends InputStream
+  {
+    @Override
+    public int read()
+      throws IOException
+    {
+      byte[] b=new byte[1];
+      int count=read(b,0,1);
+      return count<0?-1:(b[0] & 0xFF);
+    }
+
+    @Override
+    public void close()
+    { HttpExchange.this.close();
+    }
+  }
+
+  private class FixedLengthInputStream
+    extends ContentInputStream
+  {
+    private long remaining;
+
+    FixedLengthInputStream(long length)
+    {
+      remaining=length;
+      if (remaining==0)
+      { completed();
+      }
+    }
+
+    @Override
+    public int read(byte[] b,int off,int len)
+      throws IOException
+    {
+      if (remaining==0)
+      { return -1;
+      }
+      int count=connection.in.read(b,off,(int) Math.min(len,remaining));
+      if (count<0)
+      {
+        throw new IOException
+          ("Connection closed by "+connection.route.key
+          +" with "+remaining+" bytes remaining"
+          );
+      }
+      remaining-=count;
+      if (remaining==0)
+      { completed();
+      }
+      return count;
+    }
+
+    @Override
+    public int available()
+      throws IOException
+    { return (int) Math.min(connection.in.available(),remaining);
+    }
+  }
+
+  private class ChunkedInputStream
+    extends ContentInputStream
+  {
+    private long chunkRemaining;
+    private boolean eof;
+
+    @Override
+    public int read(byte[] b,int off,int len)
+      throws IOException
+    {
+      if (eof)
+      { return -1;
+      }
+      if (chunkRemaining==0)
+      {
+        String sizeLine=connection.readLine();
+        if (sizeLine==null)
+        { throw new IOException("Unexpected EOF in chunked content");
+        }
+        int semi=sizeLine.indexOf(';');
+        try
+        {
+          chunkRemaining
+            =Long.parseLong
+              ((semi<0?sizeLine:sizeLine.substring(0,semi)).trim(),16);
+        }
+        catch (NumberFormatException x)
+        { throw new IOException("Invalid chunk size "+sizeLine);
+        }
+        if (chunkRemaining==0)
+        {
+          // Skip any trailers
+          String line;
+          while ((line=connection.readLine())!=null && !line.isEmpty())
+          { // Discard
+          }
+          eof=true;
+          completed();
+          return -1;
+        }
+      }
+
+      int count
+        =connection.in.read(b,off,(int) Math.min(len,chunkRemaining));
+      if (count<0)
+      { throw new IOException("Unexpected EOF in chunked content");
+      }
+      chunkRemaining-=count;
+      if (chunkRemaining==0)
+      {
+        // CRLF after chunk data
+        connection.readLine();
+      }
+      return count;
+    }
+  }
+
+  private class UntilCloseInputStream
+    extends ContentInputStream
+  {
+    @Override
+    public int read(byte[] b,int off,int len)
+      throws IOException
+    {
+      int count=connection.in.read(b,off,len);
+      if (count<0)
+      { completed();
+      }
+      return count;
+    }
+  }
+
+  private static class FixedLengthOutputStream
+    extends OutputStream
+  {
+    private final OutputStream out;
+    private long remaining;
+
+    FixedLengthOutputStream(OutputStream out,long length)
+    {
+      this.out=out;
+      this.remaining=length;
+    }
+
+    @Override
+    public void write(int b)
+      throws IOException
+    { write(new byte[] {(byte) b},0,1);
+    }
+
+    @Override
+    public void write(byte[] b,int off,int len)
+      throws IOException
+    {
+      if (len>remaining)
+      { throw new IOException("Request content exceeds Content-Length");
+      }
+      out.write(b,off,len);
+      remaining-=len;
+    }
+
+    @Override
+    public void flush()
+      throws IOException
+    { out.flush();
+    }
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      if (remaining>0)
+      {
+        throw new IOException
+          ("Request content is "+remaining+" bytes shorter than Content-Length");
+      }
+      out.flush();
+    }
+  }
+
+  private static class ChunkedOutputStream
+    extends OutputStream
+  {
+    private final OutputStream out;
+    private boolean finished;
+
+    ChunkedOutputStream(OutputStream out)
+    { this.out=out;
+    }
+
+    @Override
+    public void write(int b)
+      throws IOException
+    { write(new byte[] {(byte) b},0,1);
+    }
+
+    @Override
+    public void write(byte[] b,int off,int len)
+      throws IOException
+    {
+      if (len==0)
+      { return;
+      }
+      out.write
+        ((Integer.toHexString(len)+"\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      out.write(b,off,len);
+      out.write('\r');
+      out.write('\n');
+    }
+
+    @Override
+    public void flush()
+      throws IOException
+    { out.flush();
+    }
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      if (!finished)
+      {
+        finished=true;
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+      }
+    }
+  }
+}
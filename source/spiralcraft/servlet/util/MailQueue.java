@@ -0,0 +1,1109 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import spiralcraft.common.Lifecycle;
+import spiralcraft.common.LifecycleException;
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+import spiralcraft.time.Clock;
+import spiralcraft.vfs.Resolver;
+import spiralcraft.vfs.Resource;
+import spiralcraft.vfs.file.FileResource;
+
+/**
+ * <p>A persistent queue of outbound mail messages that are delivered to an
+ *   SMTP relay in the background, so that the request which sends a
+ *   message doesn't wait for the relay.
+ * </p>
+ *
+ * <p>Each message is written to its own file in the spool directory before
+ *   enqueue() returns, and the file is deleted once the relay accepts the
+ *   message. Messages left in the spool when the application stops are
+ *   delivered when the queue is next started.
+ * </p>
+ *
+ * <p>A small pool of worker threads delivers the messages that are due,
+ *   sending as many as maxBatch messages over a single relay connection.
+ *   Messages that are deferred by the relay, or that can't be sent because
+ *   the relay is unreachable, are retried with an exponential backoff.
+ *   Messages the relay rejects permanently, or that are still undelivered
+ *   after maxAttempts, are moved to the "failed" subdirectory of the spool.
+ * </p>
+ *
+ * <p>The relay is contacted without TLS or authentication, which suits a
+ *   local MTA or a relay that trusts the application server.
+ * </p>
+ *
+ * <p>MailQueues that are configured with the same spool directory share
+ *   the queue and workers of the first one that was started. The running
+ *   queue holds a lock on the spool directory, so a queue in another
+ *   application or process won't deliver the same messages. A queue that
+ *   finds the spool locked keeps accepting messages into the spool, and
+ *   starts delivering them once the other queue stops.
+ * </p>
+ *
+ * <p>The queue should be started when the application starts, so messages
+ *   left in the spool are delivered without waiting for new mail, and
+ *   stopped when the application is destroyed. MailQueueListener stops
+ *   the queues started by an application when it is declared in the
+ *   application's web.xml.
+ * </p>
+ */
+public class MailQueue
+  implements Lifecycle
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(MailQueue.class);
+
+  private static final String SUFFIX=".msg";
+  private static final String LOCK_FILE="queue.lock";
+  private static final long LOCK_RETRY_MS=5000;
+  private static final byte[] CRLF={'\r','\n'};
+
+  private static final ConcurrentHashMap<File,MailQueue> queues
+    =new ConcurrentHashMap<File,MailQueue>();
+
+  private final DelayQueue<Message> due=new DelayQueue<Message>();
+  private final AtomicInteger queued=new AtomicInteger();
+  private final AtomicLong sequence=new AtomicLong();
+  private final AtomicLong delivered=new AtomicLong();
+  private final AtomicLong failed=new AtomicLong();
+  private final AtomicLong connections=new AtomicLong();
+
+  private URI spoolURI=URI.create("context://data/mailqueue/");
+  private String relayHost="localhost";
+  private int relayPort=25;
+  private String heloName;
+  private int threads=2;
+  private int maxQueued=10000;
+  private int maxBatch=20;
+  private int maxAttempts=10;
+  private long retryDelayMs=60000;
+  private long maxRetryDelayMs=3600000;
+  private int connectTimeoutMs=15000;
+  private int readTimeoutMs=60000;
+
+  private volatile MailQueue active;
+  private File spoolDirectory;
+  private File failedDirectory;
+  private ExecutorService executor;
+  private volatile FileChannel lockChannel;
+  private ClassLoader contextLoader;
+  
+  private final Object spoolLock=new Object();
+  private boolean recovered;
+  private int spooledBeforeRecovery;
+
+  /**
+   * The directory where queued messages are kept. Must resolve to a local
+   *   directory. Defaults to context://data/mailqueue/
+   */
+  public void setSpoolURI(URI spoolURI)
+  { this.spoolURI=spoolURI;
+  }
+
+  /**
+   * The host name of the SMTP relay. Defaults to "localhost".
+   */
+  public void setRelayHost(String relayHost)
+  { this.relayHost=relayHost;
+  }
+
+  /**
+   * The port of the SMTP relay. Defaults to 25.
+   */
+  public void setRelayPort(int relayPort)
+  { this.relayPort=relayPort;
+  }
+
+  /**
+   * The host name sent in the EHLO command. Defaults to the name of the
+   *   local host.
+   */
+  public void setHeloName(String heloName)
+  { this.heloName=heloName;
+  }
+
+  /**
+   * The number of threads that deliver messages. Defaults to 2.
+   */
+  public void setThreads(int threads)
+  { this.threads=threads;
+  }
+
+  /**
+   * The maximum number of undelivered messages. enqueue() fails when the
+   *   queue is full. Defaults to 10000.
+   */
+  public void setMaxQueued(int maxQueued)
+  { this.maxQueued=maxQueued;
+  }
+
+  /**
+   * The maximum number of messages sent over one relay connection.
+   *   Defaults to 20.
+   */
+  public void setMaxBatch(int maxBatch)
+  { this.maxBatch=maxBatch;
+  }
+
+  /**
+   * The number of delivery attempts before a message is moved to the
+   *   failed directory. Defaults to 10.
+   */
+  public void setMaxAttempts(int maxAttempts)
+  { this.maxAttempts=maxAttempts;
+  }
+
+  /**
+   * The delay before the first retry, which doubles with each further
+   *   attempt. Defaults to 1 minute.
+   */
+  public void setRetryDelayMs(long retryDelayMs)
+  { this.retryDelayMs=retryDelayMs;
+  }
+
+  /**
+   * The longest delay between retries. Defaults to 1 hour.
+   */
+  public void setMaxRetryDelayMs(long maxRetryDelayMs)
+  { this.maxRetryDelayMs=maxRetryDelayMs;
+  }
+
+  public void setConnectTimeoutMs(int connectTimeoutMs)
+  { this.connectTimeoutMs=connectTimeoutMs;
+  }
+
+  public void setReadTimeoutMs(int readTimeoutMs)
+  { this.readTimeoutMs=readTimeoutMs;
+  }
+
+  /**
+   * @return The number of messages waiting to be delivered
+   */
+  public int getQueuedCount()
+  { return shared()?active.getQueuedCount():queued.get();
+  }
+
+  /**
+   * @return The number of messages accepted by the relay
+   */
+  public long getDeliveredCount()
+  { return shared()?active.getDeliveredCount():delivered.get();
+  }
+
+  /**
+   * @return The number of messages moved to the failed directory
+   */
+  public long getFailedCount()
+  { return shared()?active.getFailedCount():failed.get();
+  }
+
+  /**
+   * @return The number of relay connections opened
+   */
+  public long getConnectionCount()
+  { return shared()?active.getConnectionCount():connections.get();
+  }
+
+  private boolean shared()
+  { 
+    MailQueue active=this.active;
+    return active!=null && active!=this;
+  }
+
+  /**
+   * <p>Write a message to the spool and schedule it for delivery.
+   * </p>
+   *
+   * @param sender The envelope sender address
+   * @param recipients The envelope recipient addresses
+   * @param message The complete encoded message, headers and body
+   * @throws IOException If the message could not be written to the spool,
+   *   or the queue is full
+   */
+  public void enqueue(String sender,List<String> recipients,String message)
+    throws IOException
+  {
+    if (recipients.isEmpty())
+    { throw new IllegalArgumentException("No recipients");
+    }
+    checkAddress(sender);
+    for (String recipient: recipients)
+    { checkAddress(recipient);
+    }
+    activate().spool(sender,recipients,message);
+  }
+
+  /**
+   * Start delivering the messages in the spool, including those left by a
+   *   previous run.
+   */
+  @Override
+  public void start()
+    throws LifecycleException
+  {
+    try
+    { activate();
+    }
+    catch (IOException x)
+    { throw new LifecycleException("Unable to start MailQueue",x);
+    }
+  }
+
+  /**
+   * @return The running queue that delivers this queue's messages, started
+   *   if necessary
+   */
+  private synchronized MailQueue activate()
+    throws IOException
+  {
+    MailQueue current=active;
+    if (current==this || (current!=null && current.active==current))
+    { return current;
+    }
+    active=null;
+
+    File directory=resolveDirectory();
+    MailQueue existing=queues.putIfAbsent(directory,this);
+    if (existing!=null)
+    {
+      if (log.canLog(Level.FINE))
+      { log.fine("Sharing the MailQueue for "+directory);
+      }
+      active=existing.activate();
+      return active;
+    }
+
+    FileChannel lock;
+    try
+    { lock=lockSpool(directory);
+    }
+    catch (IOException x)
+    { 
+      queues.remove(directory,this);
+      throw x;
+    }
+    spoolDirectory=directory;
+    failedDirectory=new File(directory,"failed");
+    contextLoader=Thread.currentThread().getContextClassLoader();
+
+    if (heloName==null)
+    {
+      try
+      { heloName=InetAddress.getLocalHost().getCanonicalHostName();
+      }
+      catch (IOException x)
+      { heloName="localhost";
+      }
+    }
+
+    final AtomicInteger count=new AtomicInteger();
+    executor
+      =Executors.newFixedThreadPool
+        (threads
+        ,new ThreadFactory()
+        {
+          @Override
+          public Thread newThread(Runnable runnable)
+          {
+            Thread thread
+              =new Thread(runnable,"MailQueue-"+count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }
+        );
+    if (lock!=null)
+    { startDelivery(lock);
+    }
+    else
+    {
+      log.warning
+        ("Mail spool "+directory+" is locked by another MailQueue. Messages"
+        +" will be delivered when it stops."
+        );
+      executor.execute
+        (new Runnable()
+        {
+          @Override
+          public void run()
+          { awaitLock();
+          }
+        }
+        );
+    }
+    active=this;
+    return this;
+  }
+
+  /**
+   * Recover the spool and start the workers, once this queue holds the
+   *   spool lock
+   */
+  private void startDelivery(FileChannel lock)
+  {
+    lockChannel=lock;
+    recover();
+    for (int i=0;i<threads;i++)
+    {
+      executor.execute
+        (new Runnable()
+        {
+          @Override
+          public void run()
+          { work();
+          }
+        }
+        );
+    }
+  }
+
+  /**
+   * Wait for the queue that holds the spool lock to stop
+   */
+  private void awaitLock()
+  {
+    try
+    {
+      while (true)
+      {
+        Thread.sleep(LOCK_RETRY_MS);
+        FileChannel lock=lockSpool(spoolDirectory);
+        if (lock!=null)
+        {
+          log.info("Acquired mail spool "+spoolDirectory);
+          startDelivery(lock);
+          return;
+        }
+      }
+    }
+    catch (InterruptedException x)
+    { // Stopped
+    }
+    catch (IOException x)
+    { log.log(Level.WARNING,"Error locking mail spool "+spoolDirectory,x);
+    }
+  }
+
+  /**
+   * Stop the workers. Undelivered messages stay in the spool.
+   */
+  @Override
+  public synchronized void stop()
+  {
+    if (active==this)
+    {
+      executor.shutdownNow();
+      try
+      { 
+        if (!executor.awaitTermination(readTimeoutMs,TimeUnit.MILLISECONDS))
+        { log.warning("Timed out waiting for MailQueue workers to stop");
+        }
+      }
+      catch (InterruptedException x)
+      { Thread.currentThread().interrupt();
+      }
+
+      // Recovered from the spool when the queue is started again
+      synchronized (spoolLock)
+      {
+        due.clear();
+        queued.set(0);
+        recovered=false;
+        spooledBeforeRecovery=0;
+      }
+
+      if (lockChannel!=null)
+      {
+        try
+        { lockChannel.close();
+        }
+        catch (IOException x)
+        { 
+          log.log
+            (Level.WARNING,"Error unlocking mail spool "+spoolDirectory,x);
+        }
+        lockChannel=null;
+      }
+      queues.remove(spoolDirectory,this);
+    }
+    active=null;
+  }
+
+  /**
+   * Stop the queues that were started by the current application, as
+   *   identified by the context ClassLoader of the calling thread. Called
+   *   by MailQueueListener when the application is destroyed.
+   */
+  public static void stopAll()
+  {
+    ClassLoader loader=Thread.currentThread().getContextClassLoader();
+    for (MailQueue queue: queues.values())
+    {
+      if (queue.contextLoader==loader)
+      { queue.stop();
+      }
+    }
+  }
+
+  /**
+   * Lock the spool directory, so only one running queue delivers its
+   *   messages
+   *
+   * @return The locked channel, or null if another queue holds the lock
+   */
+  private static FileChannel lockSpool(File directory)
+    throws IOException
+  {
+    FileChannel channel
+      =FileChannel.open
+        (new File(directory,LOCK_FILE).toPath()
+        ,StandardOpenOption.CREATE
+        ,StandardOpenOption.WRITE
+        );
+    FileLock lock;
+    try
+    { lock=channel.tryLock();
+    }
+    catch (OverlappingFileLockException x)
+    { 
+      // Held by a queue in another application in this VM
+      lock=null;
+    }
+    catch (IOException x)
+    { 
+      channel.close();
+      throw x;
+    }
+    if (lock==null)
+    {
+      channel.close();
+      return null;
+    }
+    return channel;
+  }
+
+  private File resolveDirectory()
+    throws IOException
+  {
+    Resource resource=Resolver.getInstance().resolve(spoolURI);
+    if (!(resource instanceof FileResource))
+    { throw new IOException("Mail spool "+spoolURI+" is not a local directory");
+    }
+    File directory=((FileResource) resource).getFile().getCanonicalFile();
+    if (!directory.isDirectory() && !directory.mkdirs())
+    { throw new IOException("Could not create mail spool "+directory);
+    }
+    return directory;
+  }
+
+  /**
+   * Schedule the messages left in the spool by a previous run
+   */
+  private void recover()
+  {
+    synchronized (spoolLock)
+    {
+      int count=0;
+      File[] files=spoolDirectory.listFiles();
+      if (files!=null)
+      {
+        for (File file: files)
+        {
+          if (recover(file))
+          { count++;
+          }
+        }
+      }
+      
+      // Messages spooled while waiting for the lock were already counted
+      queued.addAndGet(count-spooledBeforeRecovery);
+      spooledBeforeRecovery=0;
+      recovered=true;
+      if (count>0)
+      { log.info("Recovered "+count+" messages from "+spoolDirectory);
+      }
+    }
+  }
+
+  /**
+   * @return Whether the file was scheduled for delivery
+   */
+  private boolean recover(File file)
+  {
+    String name=file.getName();
+    if (name.startsWith("tmp-"))
+    {
+      // Never completely written, or still being written
+      if (file.lastModified()
+          <Clock.instance().approxTimeMillis()-LOCK_RETRY_MS
+         )
+      { file.delete();
+      }
+    }
+    else if (name.endsWith(SUFFIX) && file.isFile())
+    {
+      try
+      {
+        due.add(readEnvelope(file));
+        return true;
+      }
+      catch (IOException x)
+      {
+        log.log(Level.WARNING,"Unreadable message in mail spool "+file,x);
+        moveToFailed(file);
+      }
+    }
+    return false;
+  }
+
+  private void spool(String sender,List<String> recipients,String text)
+    throws IOException
+  {
+    if (queued.incrementAndGet()>maxQueued)
+    {
+      queued.decrementAndGet();
+      throw new IOException("Mail queue is full");
+    }
+
+    try
+    {
+      File file
+        =new File
+          (spoolDirectory
+          ,Clock.instance().approxTimeMillis()
+            +"-"+sequence.incrementAndGet()
+            +"-"+UUID.randomUUID().toString().substring(0,8)
+            +SUFFIX
+          );
+      File temp=new File(spoolDirectory,"tmp-"+file.getName());
+      FileOutputStream fileOut=new FileOutputStream(temp);
+      try
+      {
+        OutputStream out=new BufferedOutputStream(fileOut);
+        writeLine(out,"MAIL FROM:<"+sender+">");
+        for (String recipient: recipients)
+        { writeLine(out,"RCPT TO:<"+recipient+">");
+        }
+        out.write(CRLF);
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        fileOut.getFD().sync();
+      }
+      finally
+      { fileOut.close();
+      }
+      synchronized (spoolLock)
+      {
+        Files.move
+          (temp.toPath()
+          ,file.toPath()
+          ,StandardCopyOption.ATOMIC_MOVE
+          );
+        if (recovered)
+        { due.add(new Message(file,sender,recipients));
+        }
+        else
+        { 
+          // Scheduled by recover() when this queue gets the spool lock
+          spooledBeforeRecovery++;
+        }
+      }
+    }
+    catch (IOException x)
+    {
+      queued.decrementAndGet();
+      throw x;
+    }
+  }
+
+  /**
+   * Deliver messages as they become due, reusing a relay connection for
+   *   as long as there are more messages ready to send
+   */
+  private void work()
+  {
+    List<Message> batch=new ArrayList<Message>(maxBatch);
+    while (!Thread.currentThread().isInterrupted())
+    {
+      try
+      {
+        batch.add(due.take());
+        due.drainTo(batch,maxBatch-1);
+        deliver(batch);
+      }
+      catch (InterruptedException x)
+      { return;
+      }
+      catch (RuntimeException x)
+      {
+        log.log(Level.WARNING,"Unexpected error delivering mail",x);
+        for (Message message: batch)
+        {
+          if (message!=null)
+          { retry(message,x.toString());
+          }
+        }
+      }
+      batch.clear();
+    }
+  }
+
+  private void deliver(List<Message> batch)
+  {
+    Socket socket=null;
+    try
+    {
+      socket=new Socket();
+      socket.connect
+        (new InetSocketAddress(relayHost,relayPort)
+        ,connectTimeoutMs
+        );
+      socket.setSoTimeout(readTimeoutMs);
+      connections.incrementAndGet();
+      InputStream in=new BufferedInputStream(socket.getInputStream());
+      OutputStream out=new BufferedOutputStream(socket.getOutputStream());
+
+      Reply reply=readReply(in);
+      if (reply.code!=220)
+      { throw new SMTPException(reply);
+      }
+      writeLine(out,"EHLO "+heloName);
+      out.flush();
+      reply=readReply(in);
+      if (reply.code!=250)
+      {
+        writeLine(out,"HELO "+heloName);
+        out.flush();
+        reply=readReply(in);
+        if (reply.code!=250)
+        { throw new SMTPException(reply);
+        }
+      }
+
+      while (!batch.isEmpty())
+      {
+        for (int i=0;i<batch.size();i++)
+        {
+          Message message=batch.get(i);
+          Reply result=transfer(message,in,out);
+          batch.set(i,null);
+          if (result.code==250)
+          { delivered(message);
+          }
+          else if (result.code>=500)
+          { fail(message,result.toString());
+          }
+          else
+          { retry(message,result.toString());
+          }
+          if (result.code!=250)
+          {
+            writeLine(out,"RSET");
+            out.flush();
+            readReply(in);
+          }
+        }
+        batch.clear();
+
+        // Keep the connection while more messages are ready
+        if (!Thread.currentThread().isInterrupted())
+        { due.drainTo(batch,maxBatch);
+        }
+      }
+
+      writeLine(out,"QUIT");
+      out.flush();
+    }
+    catch (IOException x)
+    {
+      for (Message message: batch)
+      {
+        if (message!=null)
+        { retry(message,x.toString());
+        }
+      }
+    }
+    finally
+    {
+      if (socket!=null)
+      {
+        try
+        { socket.close();
+        }
+        catch (IOException x)
+        { }
+      }
+    }
+  }
+
+  /**
+   * Send one message over an open connection
+   *
+   * @return The final reply for the message
+   */
+  private Reply transfer(Message message,InputStream in,OutputStream out)
+    throws IOException
+  {
+    writeLine(out,"MAIL FROM:<"+message.sender+">");
+    out.flush();
+    Reply reply=readReply(in);
+    if (reply.code!=250)
+    { return reply;
+    }
+
+    int accepted=0;
+    Reply rejection=null;
+    for (String recipient: message.recipients)
+    {
+      writeLine(out,"RCPT TO:<"+recipient+">");
+      out.flush();
+      reply=readReply(in);
+      if (reply.code==250 || reply.code==251)
+      { accepted++;
+      }
+      else if (rejection==null || reply.code<500)
+      {
+        // Prefer a temporary failure so the message is retried
+        rejection=reply;
+      }
+    }
+    if (accepted<message.recipients.size())
+    {
+      // All or nothing, so a retry doesn't duplicate the message for the
+      //   recipients that were accepted
+      return rejection;
+    }
+
+    writeLine(out,"DATA");
+    out.flush();
+    reply=readReply(in);
+    if (reply.code!=354)
+    { return reply;
+    }
+
+    InputStream body
+      =new BufferedInputStream(new FileInputStream(message.file));
+    try
+    {
+      skipEnvelope(body);
+      writeData(body,out);
+    }
+    finally
+    { body.close();
+    }
+    out.flush();
+    return readReply(in);
+  }
+
+  /**
+   * Copy the message text as SMTP DATA, normalizing line ends to CRLF and
+   *   escaping lines that start with a '.'
+   */
+  private void writeData(InputStream in,OutputStream out)
+    throws IOException
+  {
+    boolean lineStart=true;
+    int last=-1;
+    int b;
+    while ((b=in.read())!=-1)
+    {
+      if (b=='\n' && last!='\r')
+      { out.write('\r');
+      }
+      if (lineStart && b=='.')
+      { out.write('.');
+      }
+      out.write(b);
+      lineStart=(b=='\n');
+      last=b;
+    }
+    if (!lineStart)
+    { out.write(CRLF);
+    }
+    out.write('.');
+    out.write(CRLF);
+  }
+
+  private void delivered(Message message)
+  {
+    if (!message.file.delete())
+    { log.warning("Could not delete delivered message "+message.file);
+    }
+    queued.decrementAndGet();
+    delivered.incrementAndGet();
+  }
+
+  private void retry(Message message,String problem)
+  {
+    message.attempts++;
+    if (message.attempts>=maxAttempts)
+    {
+      fail
+        (message
+        ,"Giving up after "+message.attempts+" attempts: "+problem
+        );
+      return;
+    }
+
+    long delay
+      =Math.min
+        (maxRetryDelayMs
+        ,retryDelayMs<<Math.min(message.attempts-1,20)
+        );
+    message.due=Clock.instance().approxTimeMillis()+delay;
+    if (log.canLog(Level.FINE))
+    {
+      log.fine
+        ("Deferred "+message.file.getName()+" for "+delay+"ms: "+problem);
+    }
+    due.add(message);
+  }
+
+  private void fail(Message message,String problem)
+  {
+    log.warning
+      ("Undeliverable message "+message.file.getName()
+      +" to "+message.recipients+": "+problem
+      );
+    moveToFailed(message.file);
+    queued.decrementAndGet();
+    failed.incrementAndGet();
+  }
+
+  private void moveToFailed(File file)
+  {
+    try
+    {
+      if (!failedDirectory.isDirectory())
+      { failedDirectory.mkdirs();
+      }
+      Files.move
+        (file.toPath()
+        ,new File(failedDirectory,file.getName()).toPath()
+        ,StandardCopyOption.REPLACE_EXISTING
+        );
+    }
+    catch (IOException x)
+    { log.log(Level.WARNING,"Could not move failed message "+file,x);
+    }
+  }
+
+  private static Message readEnvelope(File file)
+    throws IOException
+  {
+    InputStream in=new BufferedInputStream(new FileInputStream(file));
+    try
+    {
+      String sender=null;
+      List<String> recipients=new ArrayList<String>();
+      String line;
+      while ((line=readLine(in))!=null && !line.isEmpty())
+      {
+        if (line.startsWith("MAIL FROM:<") && line.endsWith(">"))
+        { sender=line.substring(11,line.length()-1);
+        }
+        else if (line.startsWith("RCPT TO:<") && line.endsWith(">"))
+        { recipients.add(line.substring(9,line.length()-1));
+        }
+        else
+        { throw new IOException("Unrecognized envelope line: "+line);
+        }
+      }
+      if (line==null || sender==null || recipients.isEmpty())
+      { throw new IOException("Incomplete envelope");
+      }
+      return new Message(file,sender,recipients);
+    }
+    finally
+    { in.close();
+    }
+  }
+
+  private static void skipEnvelope(InputStream in)
+    throws IOException
+  {
+    String line;
+    while ((line=readLine(in))!=null && !line.isEmpty())
+    { }
+  }
+
+  private static Reply readReply(InputStream in)
+    throws IOException
+  {
+    StringBuilder text=new StringBuilder();
+    while (true)
+    {
+      String line=readLine(in);
+      if (line==null)
+      { throw new IOException("Relay closed the connection");
+      }
+      if (line.length()<3)
+      { throw new IOException("Malformed reply '"+line+"'");
+      }
+      if (text.length()>0)
+      { text.append(" ");
+      }
+      text.append(line.length()>4?line.substring(4):"");
+      if (line.length()==3 || line.charAt(3)!='-')
+      {
+        try
+        { 
+          return new Reply
+            (Integer.parseInt(line.substring(0,3)),text.toString());
+        }
+        catch (NumberFormatException x)
+        { throw new IOException("Malformed reply '"+line+"'");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return A line without its line end, or null at the end of the stream
+   */
+  private static String readLine(InputStream in)
+    throws IOException
+  {
+    ByteArrayOutputStream line=new ByteArrayOutputStream(80);
+    int b;
+    while ((b=in.read())!=-1 && b!='\n')
+    { line.write(b);
+    }
+    if (b==-1 && line.size()==0)
+    { return null;
+    }
+    byte[] bytes=line.toByteArray();
+    int length=bytes.length;
+    if (length>0 && bytes[length-1]=='\r')
+    { length--;
+    }
+    return new String(bytes,0,length,StandardCharsets.UTF_8);
+  }
+
+  private static void writeLine(OutputStream out,String line)
+    throws IOException
+  {
+    out.write(line.getBytes(StandardCharsets.UTF_8));
+    out.write(CRLF);
+  }
+
+  private static void checkAddress(String address)
+  {
+    if (address==null || address.isEmpty())
+    { throw new IllegalArgumentException("Missing address");
+    }
+    for (int i=0;i<address.length();i++)
+    {
+      char c=address.charAt(i);
+      if (c=='\r' || c=='\n' || c=='<' || c=='>')
+      { throw new IllegalArgumentException("Invalid address '"+address+"'");
+      }
+    }
+  }
+
+  private static class Message
+    implements Delayed
+  {
+    final File file;
+    final String sender;
+    final List<String> recipients;
+    int attempts;
+    volatile long due;
+
+    Message(File file,String sender,List<String> recipients)
+    {
+      this.file=file;
+      this.sender=sender;
+      this.recipients=recipients;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit)
+    {
+      return unit.convert
+        (due-Clock.instance().approxTimeMillis()
+        ,TimeUnit.MILLISECONDS
+        );
+    }
+
+    @Override
+    public int compareTo(Delayed other)
+    { return Long.compare(due,((Message) other).due);
+    }
+  }
+
+  private static class Reply
+  {
+    final int code;
+    final String text;
+
+    Reply(int code,String text)
+    {
+      this.code=code;
+      this.text=text;
+    }
+
+    @Override
+    public String toString()
+    { return code+" "+text;
+    }
+  }
+
+  private static class SMTPException
+    extends IOException
+  {
+    private static final long serialVersionUID=1L;
+
+    SMTPException(Reply reply)
+    { super(reply.toString());
+    }
+  }
+}
@@ -0,0 +1,47 @@
+//
+// Copyright (c) 2012 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * <p>Stops the MailQueues started by a web application when the application
+ *   is destroyed, so their workers don't outlive it and the spool is
+ *   released to the next deployment.
+ * </p>
+ *
+ * <p>Declare in the application's web.xml:
+ * </p>
+ * <pre>
+ * &lt;listener&gt;
+ *   &lt;listener-class&gt;spiralcraft.servlet.util.MailQueueListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ */
+public class MailQueueListener
+  implements ServletContextListener
+{
+
+  @Override
+  public void contextInitialized(ServletContextEvent event)
+  {
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event)
+  { MailQueue.stopAll();
+  }
+}
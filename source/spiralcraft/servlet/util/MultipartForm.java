@@ -0,0 +1,80 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import spiralcraft.net.http.VariableMap;
+
+/**
+ * <p>The fields of a multipart/form-data request body, and the files that
+ *   were uploaded with it.
+ * </p>
+ *
+ * <p>For compatibility with components that read uploads from the
+ *   form variables, each file part named "x" also sets the variables
+ *   "x.filename" and "x.contentType", and, if the file was spilled to
+ *   disk, "x.temporaryURI".
+ * </p>
+ */
+public class MultipartForm
+  extends VariableMap
+{
+  private static final long serialVersionUID=1L;
+
+  private final ArrayList<UploadPart> parts=new ArrayList<>();
+
+  void addPart(UploadPart part)
+  {
+    parts.add(part);
+    add(part.getName()+".filename",part.getFilename());
+    if (part.getContentType()!=null)
+    { add(part.getName()+".contentType",part.getContentType());
+    }
+    if (part.getFile()!=null)
+    { add(part.getName()+".temporaryURI",part.getFile().toURI().toString());
+    }
+  }
+
+  /**
+   * @return The first file uploaded for the named field, or null if none
+   */
+  public UploadPart getPart(String name)
+  {
+    for (UploadPart part: parts)
+    {
+      if (part.getName().equals(name))
+      { return part;
+      }
+    }
+    return null;
+  }
+
+  public List<UploadPart> getParts()
+  { return Collections.unmodifiableList(parts);
+  }
+
+  /**
+   * Delete any temporary files. Called when the request completes.
+   */
+  public void delete()
+  {
+    for (UploadPart part: parts)
+    { part.delete();
+    }
+  }
+}
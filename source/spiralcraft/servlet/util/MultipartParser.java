@@ -0,0 +1,587 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletContext;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+import spiralcraft.vfs.Resolver;
+import spiralcraft.vfs.Resource;
+import spiralcraft.vfs.file.FileResource;
+
+/**
+ * <p>Parses a multipart/form-data request body as it is read from the
+ *   request, without buffering the whole body.
+ * </p>
+ *
+ * <p>Uploaded files up to memoryThreshold bytes are held in memory. Larger
+ *   files are written to a temporary file in the spill directory, which
+ *   defaults to context://data/tmp/ when that is on the local filesystem.
+ *   The maxRequestSize and maxPartSize limits are enforced as data arrives
+ *   by throwing an UploadLimitException.
+ * </p>
+ *
+ * <p>The limits for a web application are read from the ServletContext
+ *   init parameters "spiralcraft.servlet.upload.memoryThreshold",
+ *   "spiralcraft.servlet.upload.maxRequestSize" and 
+ *   "spiralcraft.servlet.upload.maxPartSize" (see forContext()).
+ * </p>
+ *
+ * <p>Thread safe once configured.
+ * </p>
+ */
+public class MultipartParser
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(MultipartParser.class);
+
+  private static final String ATTRIBUTE
+    =MultipartParser.class.getName();
+  private static final byte[] CRLF={'\r','\n'};
+  private static final int MAX_HEADER_LINE=8192;
+
+  /**
+   * @return The shared MultipartParser for a web application, configured
+   *   from the ServletContext init parameters
+   */
+  public static MultipartParser forContext(ServletContext context)
+  {
+    MultipartParser parser=(MultipartParser) context.getAttribute(ATTRIBUTE);
+    if (parser==null)
+    {
+      parser=new MultipartParser();
+      String value=context.getInitParameter
+        ("spiralcraft.servlet.upload.memoryThreshold");
+      if (value!=null)
+      { parser.setMemoryThreshold(Integer.parseInt(value));
+      }
+      value=context.getInitParameter
+        ("spiralcraft.servlet.upload.maxRequestSize");
+      if (value!=null)
+      { parser.setMaxRequestSize(Long.parseLong(value));
+      }
+      value=context.getInitParameter
+        ("spiralcraft.servlet.upload.maxPartSize");
+      if (value!=null)
+      { parser.setMaxPartSize(Long.parseLong(value));
+      }
+      context.setAttribute(ATTRIBUTE,parser);
+    }
+    return parser;
+  }
+
+  private int memoryThreshold=64*1024;
+  private long maxRequestSize=64*1024*1024;
+  private long maxPartSize=-1;
+  private int maxFieldSize=1024*1024;
+  private URI spillDirectoryURI=URI.create("context://data/tmp/");
+  private volatile File spillDirectory;
+  private volatile boolean spillDirectoryResolved;
+
+  /**
+   * The largest uploaded file to hold in memory. Defaults to 64K.
+   */
+  public void setMemoryThreshold(int memoryThreshold)
+  { this.memoryThreshold=memoryThreshold;
+  }
+
+  /**
+   * The maximum size of a request body, or -1 for no limit. Defaults to
+   *   64M.
+   */
+  public void setMaxRequestSize(long maxRequestSize)
+  { this.maxRequestSize=maxRequestSize;
+  }
+
+  public long getMaxRequestSize()
+  { return maxRequestSize;
+  }
+
+  /**
+   * The maximum size of an uploaded file, or -1 (the default) for no limit
+   *   other than maxRequestSize
+   */
+  public void setMaxPartSize(long maxPartSize)
+  { this.maxPartSize=maxPartSize;
+  }
+
+  /**
+   * The maximum size of a non-file form field. Defaults to 1M.
+   */
+  public void setMaxFieldSize(int maxFieldSize)
+  { this.maxFieldSize=maxFieldSize;
+  }
+
+  /**
+   * The directory where large uploads are spilled. Must resolve to a
+   *   local directory, otherwise the system temporary directory is used.
+   */
+  public void setSpillDirectoryURI(URI spillDirectoryURI)
+  {
+    this.spillDirectoryURI=spillDirectoryURI;
+    this.spillDirectoryResolved=false;
+  }
+
+  /**
+   * Reject a request whose declared length exceeds maxRequestSize before
+   *   reading any of it.
+   */
+  public void checkContentLength(long contentLength)
+    throws UploadLimitException
+  {
+    if (maxRequestSize>=0 && contentLength>maxRequestSize)
+    {
+      throw new UploadLimitException
+        ("Request body of "+contentLength+" bytes exceeds the maximum size of "
+        +maxRequestSize+" bytes"
+        );
+    }
+  }
+
+  /**
+   * <p>Write a request body of any type to memory or to a temporary file,
+   *   enforcing maxRequestSize.
+   * </p>
+   *
+   * @return An UploadPart containing the body, which should be deleted
+   *   when the request completes
+   */
+  public UploadPart spool(InputStream in,long contentLength)
+    throws IOException
+  {
+    checkContentLength(contentLength);
+    SpillOutputStream out
+      =new SpillOutputStream
+        (memoryThreshold,maxRequestSize,getSpillDirectory(),"Request body");
+    try
+    {
+      byte[] buffer=new byte[8192];
+      int count;
+      while ((count=in.read(buffer))>=0)
+      { out.write(buffer,0,count);
+      }
+      out.close();
+    }
+    catch (IOException x)
+    {
+      out.discard();
+      throw x;
+    }
+    return new UploadPart
+      (null,null,null,out.getSize(),out.toByteArray(),out.getFile());
+  }
+
+  /**
+   * <p>Parse a multipart/form-data request body.
+   * </p>
+   *
+   * @param in The request body
+   * @param contentType The Content-Type header, which specifies the boundary
+   * @param contentLength The Content-Length, or -1 if unknown
+   * @param defaultEncoding The character encoding of fields that don't
+   *   specify one, or null for UTF-8
+   */
+  public MultipartForm parse
+    (InputStream in
+    ,String contentType
+    ,long contentLength
+    ,String defaultEncoding
+    )
+    throws IOException
+  {
+    checkContentLength(contentLength);
+
+    String boundary=headerParameter(contentType,"boundary");
+    if (boundary==null || boundary.isEmpty())
+    { throw new IOException("No boundary in Content-Type "+contentType);
+    }
+
+    Charset defaultCharset
+      =defaultEncoding!=null
+      ?Charset.forName(defaultEncoding)
+      :StandardCharsets.UTF_8;
+
+    MultipartForm form=new MultipartForm();
+    PartReader reader=new PartReader(in,boundary);
+    try
+    {
+      // Discard the preamble
+      reader.readBody(null);
+      while (reader.nextPart())
+      { readPart(reader,form,defaultCharset);
+      }
+    }
+    catch (IOException | RuntimeException x)
+    {
+      form.delete();
+      throw x;
+    }
+    return form;
+  }
+
+  private void readPart(PartReader reader,MultipartForm form,Charset charset)
+    throws IOException
+  {
+    String disposition=null;
+    String partContentType=null;
+    String line;
+    while (!(line=reader.readLine()).isEmpty())
+    {
+      int colon=line.indexOf(':');
+      if (colon<0)
+      { continue;
+      }
+      String name=line.substring(0,colon).trim();
+      String value=line.substring(colon+1).trim();
+      if (name.equalsIgnoreCase("Content-Disposition"))
+      { disposition=value;
+      }
+      else if (name.equalsIgnoreCase("Content-Type"))
+      { partContentType=value;
+      }
+    }
+
+    String name
+      =disposition!=null?headerParameter(disposition,"name"):null;
+    if (name==null)
+    {
+      reader.readBody(null);
+      return;
+    }
+
+    String filename=headerParameter(disposition,"filename");
+    if (filename==null)
+    {
+      SpillOutputStream out
+        =new SpillOutputStream
+          (maxFieldSize,maxFieldSize,null,"Form field "+name);
+      reader.readBody(out);
+      String partCharset
+        =partContentType!=null
+        ?headerParameter(partContentType,"charset")
+        :null;
+      form.add
+        (name
+        ,new String
+          (out.toByteArray()
+          ,partCharset!=null?Charset.forName(partCharset):charset
+          )
+        );
+      return;
+    }
+
+    SpillOutputStream out
+      =new SpillOutputStream
+        (memoryThreshold,maxPartSize,getSpillDirectory(),"Upload "+filename);
+    try
+    {
+      reader.readBody(out);
+      out.close();
+    }
+    catch (IOException x)
+    {
+      out.discard();
+      throw x;
+    }
+
+    if (filename.isEmpty() && out.getSize()==0)
+    {
+      // No file was selected
+      out.discard();
+      return;
+    }
+
+    // Some clients send the full client side path
+    int slash=Math.max(filename.lastIndexOf('/'),filename.lastIndexOf('\\'));
+    if (slash>=0)
+    { filename=filename.substring(slash+1);
+    }
+
+    form.addPart
+      (new UploadPart
+        (name
+        ,filename
+        ,partContentType
+        ,out.getSize()
+        ,out.toByteArray()
+        ,out.getFile()
+        )
+      );
+  }
+
+  private File getSpillDirectory()
+  {
+    if (!spillDirectoryResolved)
+    {
+      File directory=null;
+      try
+      {
+        Resource resource=Resolver.getInstance().resolve(spillDirectoryURI);
+        if (resource instanceof FileResource)
+        {
+          directory=((FileResource) resource).getFile();
+          if (!directory.isDirectory() && !directory.mkdirs())
+          { directory=null;
+          }
+        }
+      }
+      catch (IOException x)
+      {
+        log.log
+          (Level.WARNING
+          ,"Could not resolve upload spill directory "+spillDirectoryURI
+          ,x
+          );
+      }
+
+      if (directory==null)
+      { log.warning("Spilling uploads to the system temporary directory");
+      }
+      spillDirectory=directory;
+      spillDirectoryResolved=true;
+    }
+    return spillDirectory;
+  }
+
+  /**
+   * Extract a parameter from a header value such as
+   *   'form-data; name="file"; filename="a.txt"'
+   */
+  static String headerParameter(String header,String parameter)
+  {
+    int pos=header.indexOf(';');
+    int len=header.length();
+    while (pos>=0 && pos<len)
+    {
+      pos++;
+      while (pos<len && header.charAt(pos)==' ')
+      { pos++;
+      }
+      int eq=header.indexOf('=',pos);
+      if (eq<0)
+      { return null;
+      }
+      String name=header.substring(pos,eq).trim();
+      String value;
+      pos=eq+1;
+      if (pos<len && header.charAt(pos)=='"')
+      {
+        StringBuilder buf=new StringBuilder();
+        pos++;
+        while (pos<len && header.charAt(pos)!='"')
+        {
+          char c=header.charAt(pos);
+          if (c=='\\' && pos+1<len)
+          { c=header.charAt(++pos);
+          }
+          buf.append(c);
+          pos++;
+        }
+        value=buf.toString();
+        pos=header.indexOf(';',pos);
+      }
+      else
+      {
+        int end=header.indexOf(';',pos);
+        value=header.substring(pos,end<0?len:end).trim();
+        pos=end;
+      }
+      if (name.equalsIgnoreCase(parameter))
+      { return value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reads the parts of a multipart body through a fixed size buffer
+   */
+  private class PartReader
+  {
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int head;
+    private int tail;
+    private long total;
+    private boolean eof;
+
+    PartReader(InputStream in,String boundary)
+    {
+      this.in=in;
+      this.delimiter
+        =("\r\n--"+boundary).getBytes(StandardCharsets.ISO_8859_1);
+      this.buf=new byte[Math.max(8192,delimiter.length*2)];
+
+      // The first delimiter is not preceded by a CRLF
+      System.arraycopy(CRLF,0,buf,0,2);
+      tail=2;
+    }
+
+    /**
+     * Read more data into the buffer
+     *
+     * @return false if there is no more data
+     */
+    private boolean fill()
+      throws IOException
+    {
+      if (eof)
+      { return false;
+      }
+      if (head>0)
+      {
+        System.arraycopy(buf,head,buf,0,tail-head);
+        tail-=head;
+        head=0;
+      }
+      if (tail==buf.length)
+      { 
+        // Nothing was consumed, so a read would return 0 forever
+        throw new IOException("Multipart buffer overflow");
+      }
+      int count=in.read(buf,tail,buf.length-tail);
+      if (count<0)
+      {
+        eof=true;
+        return false;
+      }
+      total+=count;
+      if (maxRequestSize>=0 && total>maxRequestSize)
+      {
+        throw new UploadLimitException
+          ("Request body exceeds the maximum size of "+maxRequestSize+" bytes");
+      }
+      tail+=count;
+      return true;
+    }
+
+    /**
+     * Copy data up to the next delimiter to the OutputStream, or discard it
+     *   if out is null. The delimiter is consumed.
+     */
+    void readBody(OutputStream out)
+      throws IOException
+    {
+      while (true)
+      {
+        int match=indexOf(delimiter,head,tail);
+        if (match>=0)
+        {
+          if (out!=null && match>head)
+          { out.write(buf,head,match-head);
+          }
+          head=match+delimiter.length;
+          return;
+        }
+
+        // Keep enough data to match a delimiter that spans reads
+        int safe=tail-delimiter.length+1;
+        if (safe>head)
+        {
+          if (out!=null)
+          { out.write(buf,head,safe-head);
+          }
+          head=safe;
+        }
+        if (!fill())
+        { throw new IOException("Unexpected end of multipart body");
+        }
+      }
+    }
+
+    /**
+     * Called after a delimiter
+     *
+     * @return true if another part follows, false if this was the close
+     *   delimiter
+     */
+    boolean nextPart()
+      throws IOException
+    {
+      ensure(2);
+      if (buf[head]=='-' && buf[head+1]=='-')
+      {
+        head+=2;
+        return false;
+      }
+      // Skip transport padding up to the CRLF
+      readLine();
+      return true;
+    }
+
+    String readLine()
+      throws IOException
+    {
+      while (true)
+      {
+        int match=indexOf(CRLF,head,tail);
+        if (match>=0)
+        {
+          String line
+            =new String(buf,head,match-head,StandardCharsets.UTF_8);
+          head=match+2;
+          return line;
+        }
+        if (tail-head>=MAX_HEADER_LINE)
+        { throw new IOException("Multipart header line too long");
+        }
+        if (!fill())
+        { throw new IOException("Unexpected end of multipart headers");
+        }
+      }
+    }
+
+    private void ensure(int count)
+      throws IOException
+    {
+      while (tail-head<count)
+      {
+        if (!fill())
+        { throw new IOException("Unexpected end of multipart body");
+        }
+      }
+    }
+
+    private int indexOf(byte[] pattern,int from,int to)
+    {
+      int last=to-pattern.length;
+      byte first=pattern[0];
+      for (int i=from;i<=last;i++)
+      {
+        if (buf[i]!=first)
+        { continue;
+        }
+        int j=1;
+        while (j<pattern.length && buf[i+j]==pattern[j])
+        { j++;
+        }
+        if (j==pattern.length)
+        { return i;
+        }
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * An HTTP/1.1 connection to an origin server that can be reused for
+ *   successive requests
+ */
+class PooledConnection
+{
+  private static final int MAX_LINE=16384;
+
+  final HttpConnectionPool.Route route;
+  final Socket socket;
+  final InputStream in;
+  final OutputStream out;
+  volatile long lastUsed;
+  private boolean closed;
+
+  PooledConnection(HttpConnectionPool.Route route,Socket socket)
+    throws IOException
+  {
+    this.route=route;
+    this.socket=socket;
+    this.in=new BufferedInputStream(socket.getInputStream(),8192);
+    this.out=new BufferedOutputStream(socket.getOutputStream(),8192);
+  }
+
+  void setReadTimeout(int readTimeoutMs)
+    throws IOException
+  { socket.setSoTimeout(readTimeoutMs);
+  }
+
+  boolean isExpired(long now,long idleTimeoutMs)
+  { return closed || socket.isClosed() || now-lastUsed>idleTimeoutMs;
+  }
+
+  /**
+   * @return A CRLF or LF terminated header line without the terminator, or
+   *   null if the connection was closed before any data was read
+   */
+  String readLine()
+    throws IOException
+  {
+    StringBuilder buf=new StringBuilder(64);
+    int c;
+    while ((c=in.read())!=-1)
+    {
+      if (c=='\n')
+      {
+        int len=buf.length();
+        if (len>0 && buf.charAt(len-1)=='\r')
+        { buf.setLength(len-1);
+        }
+        return buf.toString();
+      }
+      if (buf.length()>=MAX_LINE)
+      { throw new IOException("Header line too long from "+route.key);
+      }
+      buf.append((char) c);
+    }
+    if (buf.length()==0)
+    { return null;
+    }
+    throw new IOException("Unexpected EOF reading header from "+route.key);
+  }
+
+  void close()
+  {
+    closed=true;
+    try
+    { socket.close();
+    }
+    catch (IOException x)
+    { // Ignore
+    }
+  }
+}
@@ -0,0 +1,216 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+
+import spiralcraft.net.http.VariableMap;
+
+/**
+ * <p>Parses the query string of a request once and shares the result with
+ *   all the filters and components that read query parameters while the
+ *   request is being processed.
+ * </p>
+ *
+ * <p>The parsed VariableMap is stored as a request attribute along with the
+ *   query string it was parsed from, so a forward or include that changes
+ *   the query string is re-parsed. The shared map must be treated as
+ *   read-only- consumers that modify the parameters should use parse() to
+ *   obtain their own copy.
+ * </p>
+ *
+ * <p>The decoder avoids intermediate allocation for names and values that
+ *   contain no escapes, which is the common case.
+ * </p>
+ */
+public class RequestParameters
+{
+  private static final String ATTRIBUTE
+    ="spiralcraft.servlet.util.RequestParameters.query";
+
+  private final String queryString;
+  private final VariableMap query;
+
+  private RequestParameters(String queryString,VariableMap query)
+  {
+    this.queryString=queryString;
+    this.query=query;
+  }
+
+  /**
+   * @return The shared, read-only parameters from the request query string,
+   *   or null if the request has no query string
+   */
+  public static VariableMap getQuery(HttpServletRequest request)
+  {
+    String queryString=request.getQueryString();
+    if (queryString==null || queryString.isEmpty())
+    { return null;
+    }
+
+    Object attribute=request.getAttribute(ATTRIBUTE);
+    if (attribute instanceof RequestParameters)
+    {
+      RequestParameters parameters=(RequestParameters) attribute;
+      if (parameters.queryString==queryString
+          || parameters.queryString.equals(queryString)
+          )
+      { return parameters.query;
+      }
+    }
+
+    VariableMap query=parse(queryString);
+    request.setAttribute(ATTRIBUTE,new RequestParameters(queryString,query));
+    return query;
+  }
+
+  /**
+   * Discard the shared parameters, eg. when a request object is recycled
+   */
+  public static void clear(ServletRequest request)
+  { request.removeAttribute(ATTRIBUTE);
+  }
+
+  /**
+   * <p>Decode an application/x-www-form-urlencoded string as UTF-8 into a
+   *   new VariableMap.
+   * </p>
+   *
+   * <p>A name without a value is mapped to the empty string. Malformed
+   *   escape sequences are retained literally.
+   * </p>
+   *
+   * @param encoded The encoded form, which may be null
+   * @return A new, modifiable VariableMap, which will be empty if the
+   *   encoded form is null or empty
+   */
+  public static VariableMap parse(String encoded)
+  {
+    VariableMap map=new VariableMap();
+    if (encoded==null)
+    { return map;
+    }
+
+    int len=encoded.length();
+    int pos=0;
+    while (pos<len)
+    {
+      int end=encoded.indexOf('&',pos);
+      if (end<0)
+      { end=len;
+      }
+
+      if (end>pos)
+      {
+        int eq=encoded.indexOf('=',pos);
+        if (eq<0 || eq>end)
+        { eq=end;
+        }
+        if (eq>pos)
+        {
+          map.add
+            (decode(encoded,pos,eq)
+            ,eq<end?decode(encoded,eq+1,end):""
+            );
+        }
+      }
+      pos=end+1;
+    }
+    return map;
+  }
+
+  /**
+   * Decode a URL encoded region of a string as UTF-8
+   */
+  public static String decode(String encoded,int start,int end)
+  {
+    int i=start;
+    while (i<end)
+    {
+      char c=encoded.charAt(i);
+      if (c=='%' || c=='+')
+      { break;
+      }
+      i++;
+    }
+    if (i==end)
+    {
+      // Fast path- nothing to decode
+      return encoded.substring(start,end);
+    }
+
+    byte[] bytes=null;
+    StringBuilder buf=new StringBuilder(end-start);
+    buf.append(encoded,start,i);
+    while (i<end)
+    {
+      char c=encoded.charAt(i);
+      if (c=='%'
+          && i+2<end
+          && hexValue(encoded.charAt(i+1))>=0
+          && hexValue(encoded.charAt(i+2))>=0
+          )
+      {
+        // Collect a run of escaped bytes so multi-byte UTF-8 sequences
+        //   decode correctly
+        if (bytes==null)
+        { bytes=new byte[(end-i)/3];
+        }
+        int byteCount=0;
+        while (i+2<end
+               && encoded.charAt(i)=='%'
+               && hexValue(encoded.charAt(i+1))>=0
+               && hexValue(encoded.charAt(i+2))>=0
+               )
+        {
+          bytes[byteCount++]
+            =(byte) ((hexValue(encoded.charAt(i+1))<<4)
+                    +hexValue(encoded.charAt(i+2))
+                    );
+          i+=3;
+        }
+        buf.append(new String(bytes,0,byteCount,StandardCharsets.UTF_8));
+      }
+      else if (c=='+')
+      {
+        buf.append(' ');
+        i++;
+      }
+      else
+      {
+        buf.append(c);
+        i++;
+      }
+    }
+    return buf.toString();
+  }
+
+  private static int hexValue(char c)
+  {
+    if (c>='0' && c<='9')
+    { return c-'0';
+    }
+    if (c>='a' && c<='f')
+    { return c-'a'+10;
+    }
+    if (c>='A' && c<='F')
+    { return c-'A'+10;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,132 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Buffers data in memory up to a threshold, then moves it to a temporary
+ *   file, and enforces a maximum size as data is written.
+ * </p>
+ */
+class SpillOutputStream
+  extends OutputStream
+{
+  private final int threshold;
+  private final long maxSize;
+  private final File directory;
+  private final String description;
+
+  private ByteArrayOutputStream memory=new ByteArrayOutputStream();
+  private OutputStream fileOut;
+  private File file;
+  private long size;
+
+  /**
+   * @param threshold The number of bytes to hold in memory
+   * @param maxSize The maximum number of bytes, or -1 for no limit
+   * @param directory The directory for the temporary file, or null for the
+   *   system default
+   * @param description Identifies the data in error messages
+   */
+  SpillOutputStream
+    (int threshold,long maxSize,File directory,String description)
+  {
+    this.threshold=threshold;
+    this.maxSize=maxSize;
+    this.directory=directory;
+    this.description=description;
+  }
+
+  @Override
+  public void write(int b)
+    throws IOException
+  { write(new byte[] {(byte) b},0,1);
+  }
+
+  @Override
+  public void write(byte[] data,int off,int len)
+    throws IOException
+  {
+    if (maxSize>=0 && size+len>maxSize)
+    { 
+      throw new UploadLimitException
+        (description+" exceeds the maximum size of "+maxSize+" bytes");
+    }
+    size+=len;
+
+    if (fileOut==null && memory.size()+len>threshold)
+    {
+      file=File.createTempFile("upload",".tmp",directory);
+      fileOut=new FileOutputStream(file);
+      memory.writeTo(fileOut);
+      memory=null;
+    }
+
+    if (fileOut!=null)
+    { fileOut.write(data,off,len);
+    }
+    else
+    { memory.write(data,off,len);
+    }
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    if (fileOut!=null)
+    { fileOut.close();
+    }
+  }
+
+  long getSize()
+  { return size;
+  }
+
+  /**
+   * @return The temporary file, or null if the data is held in memory
+   */
+  File getFile()
+  { return file;
+  }
+
+  /**
+   * @return The data, if it is held in memory
+   */
+  byte[] toByteArray()
+  { return memory!=null?memory.toByteArray():null;
+  }
+
+  /**
+   * Close and delete any temporary file, after an error
+   */
+  void discard()
+  {
+    try
+    { close();
+    }
+    catch (IOException x)
+    { // Ignore
+    }
+    if (file!=null)
+    { file.delete();
+    }
+  }
+}
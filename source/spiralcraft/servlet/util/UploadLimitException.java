@@ -0,0 +1,32 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.io.IOException;
+
+/**
+ * <p>Thrown when a request body or one of its parts exceeds a configured
+ *   size limit. Callers should respond with "413 Request Entity Too Large".
+ * </p>
+ */
+public class UploadLimitException
+  extends IOException
+{
+  private static final long serialVersionUID=1L;
+
+  public UploadLimitException(String message)
+  { super(message);
+  }
+}
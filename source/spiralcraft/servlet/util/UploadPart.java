@@ -0,0 +1,117 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import spiralcraft.vfs.Resource;
+import spiralcraft.vfs.file.FileResource;
+import spiralcraft.vfs.util.ByteArrayResource;
+
+/**
+ * <p>A file uploaded in a multipart/form-data request body. Small files are
+ *   held in memory, larger files in a temporary file that is deleted when
+ *   the request completes.
+ * </p>
+ */
+public class UploadPart
+{
+  private final String name;
+  private final String filename;
+  private final String contentType;
+  private final long size;
+  private final byte[] content;
+  private final File file;
+
+  UploadPart
+    (String name
+    ,String filename
+    ,String contentType
+    ,long size
+    ,byte[] content
+    ,File file
+    )
+  {
+    this.name=name;
+    this.filename=filename;
+    this.contentType=contentType;
+    this.size=size;
+    this.content=content;
+    this.file=file;
+  }
+
+  /**
+   * @return The form field name
+   */
+  public String getName()
+  { return name;
+  }
+
+  /**
+   * @return The filename supplied by the client
+   */
+  public String getFilename()
+  { return filename;
+  }
+
+  public String getContentType()
+  { return contentType;
+  }
+
+  public long getSize()
+  { return size;
+  }
+
+  /**
+   * @return The temporary file, or null if the part is held in memory
+   */
+  public File getFile()
+  { return file;
+  }
+
+  /**
+   * @return A Resource from which the content can be read or copied
+   */
+  public Resource getResource()
+  {
+    if (file!=null)
+    { return new FileResource(file);
+    }
+    return new ByteArrayResource(content);
+  }
+
+  public InputStream getInputStream()
+    throws IOException
+  {
+    if (file!=null)
+    { return new FileInputStream(file);
+    }
+    return new ByteArrayInputStream(content);
+  }
+
+  /**
+   * Delete the temporary file, if any
+   */
+  public void delete()
+  {
+    if (file!=null)
+    { file.delete();
+    }
+  }
+}
@@ -0,0 +1,150 @@
+//
+// Copyright (c) 2012 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.vfs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A satisfiable byte range of a representation, as specified by an
+ *   RFC 7233 Range header.
+ * </p>
+ */
+class ByteRange
+{
+
+  final long start;
+  final long end;
+
+  ByteRange(long start,long end)
+  {
+    this.start=start;
+    this.end=end;
+  }
+
+  /**
+   * @return The number of bytes in the range
+   */
+  long length()
+  { return end-start+1;
+  }
+
+  /**
+   * @return The value of the Content-Range header for this range
+   */
+  String toContentRange(long completeLength)
+  { return "bytes "+start+"-"+end+"/"+completeLength;
+  }
+
+  /**
+   * <p>Parse the byte-range-set in a Range header against a representation
+   *   of the specified length.
+   * </p>
+   *
+   * @return The satisfiable ranges in the order requested, an empty list
+   *   if none of the ranges are satisfiable, or null if the header is not a
+   *   valid bytes range and should be ignored.
+   */
+  static List<ByteRange> parse(String header,long completeLength)
+  {
+    String spec=header.trim();
+    if (!spec.regionMatches(true,0,"bytes=",0,6))
+    { return null;
+    }
+
+    ArrayList<ByteRange> ranges=new ArrayList<ByteRange>();
+    boolean any=false;
+    int pos=6;
+    int len=spec.length();
+    while (pos<len)
+    {
+      int comma=spec.indexOf(',',pos);
+      if (comma<0)
+      { comma=len;
+      }
+      String rangeSpec=spec.substring(pos,comma).trim();
+      pos=comma+1;
+      if (rangeSpec.isEmpty())
+      { continue;
+      }
+      any=true;
+
+      int dash=rangeSpec.indexOf('-');
+      if (dash<0)
+      { return null;
+      }
+
+      long start;
+      long end;
+      try
+      {
+        if (dash==0)
+        {
+          // suffix-byte-range-spec
+          long suffixLength=parseNonNegative(rangeSpec.substring(1));
+          if (suffixLength==0)
+          { continue;
+          }
+          start=Math.max(0,completeLength-suffixLength);
+          end=completeLength-1;
+        }
+        else
+        {
+          start=parseNonNegative(rangeSpec.substring(0,dash));
+          String last=rangeSpec.substring(dash+1).trim();
+          if (last.isEmpty())
+          { end=completeLength-1;
+          }
+          else
+          {
+            end=parseNonNegative(last);
+            if (end<start)
+            { return null;
+            }
+            end=Math.min(end,completeLength-1);
+          }
+        }
+      }
+      catch (NumberFormatException x)
+      { return null;
+      }
+
+      if (start<completeLength && start<=end)
+      { ranges.add(new ByteRange(start,end));
+      }
+    }
+
+    if (!any)
+    { return null;
+    }
+    return ranges;
+  }
+
+  private static long parseNonNegative(String digits)
+  {
+    String trimmed=digits.trim();
+    if (trimmed.isEmpty())
+    { throw new NumberFormatException("Empty range position");
+    }
+    for (int i=0;i<trimmed.length();i++)
+    {
+      char c=trimmed.charAt(i);
+      if (c<'0' || c>'9')
+      { throw new NumberFormatException("Invalid range position "+trimmed);
+      }
+    }
+    return Long.parseLong(trimmed);
+  }
+}
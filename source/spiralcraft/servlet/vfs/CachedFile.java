@@ -0,0 +1,185 @@
+//
+// Copyright (c) 2012 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.servlet.vfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import spiralcraft.vfs.Resource;
+
+/**
+ * <p>A resolved file held in the FileServlet's hot cache, with the
+ *   response headers precomputed and, for small files, the content in
+ *   memory.
+ * </p>
+ *
+ * <p>The entry is re-validated against the resource's modification time
+ *   and size at most once per validation interval.
+ * </p>
+ * 
+ * <p>An entry for the identity (unencoded) representation may reference
+ *   entries for pre-compressed variants of the same file, which are
+ *   validated along with it.
+ * </p>
+ */
+class CachedFile
+{
+
+  final Resource resource;
+  final String contentType;
+  final long lastModified;
+  final long size;
+  final String etag;
+  
+  /**
+   * The Content-Encoding of this representation, or null for the identity
+   *   representation
+   */
+  final String encoding;
+
+  /**
+   * The file content, or null if the file is too large to hold in memory
+   */
+  final byte[] content;
+
+  /**
+   * Pre-compressed variants of an identity representation, set before the
+   *   entry is published
+   */
+  CachedFile gzip;
+  CachedFile br;
+  
+  private volatile long lastValidated;
+
+  /**
+   * Read the metadata and, if the file is no larger than maxContentSize,
+   *   the content of the resource
+   */
+  CachedFile
+    (Resource resource
+    ,String contentType
+    ,int maxContentSize
+    ,long now
+    )
+    throws IOException
+  {
+    this.resource=resource;
+    this.contentType=contentType;
+    this.lastModified=FileServlet.floorToSecond(resource.getLastModified());
+    this.size=resource.getSize();
+    this.etag=FileServlet.etag(lastModified,size);
+    this.encoding=null;
+    this.content
+      =(size>=0 && size<=maxContentSize)
+      ?read(resource,(int) size)
+      :null;
+    this.lastValidated=now;
+  }
+
+  /**
+   * Read the metadata and content of an encoded variant of an identity
+   *   representation
+   */
+  CachedFile
+    (Resource resource
+    ,CachedFile identity
+    ,String encoding
+    ,int maxContentSize
+    ,long now
+    )
+    throws IOException
+  {
+    this.resource=resource;
+    this.contentType=identity.contentType;
+    this.lastModified=FileServlet.floorToSecond(resource.getLastModified());
+    this.size=resource.getSize();
+    this.encoding=encoding;
+    
+    // Variants must have distinct entity tags
+    this.etag
+      =identity.etag.substring(0,identity.etag.length()-1)+"-"+encoding+"\"";
+    this.content
+      =(size>=0 && size<=maxContentSize)
+      ?read(resource,(int) size)
+      :null;
+    this.lastValidated=now;
+  }
+  
+  /**
+   * @return The number of bytes this entry and its variants account for in
+   *   the cache
+   */
+  long weight()
+  {
+    // Approximate the metadata overhead
+    return 256
+      +(content!=null?content.length:0)
+      +(gzip!=null?gzip.weight():0)
+      +(br!=null?br.weight():0);
+  }
+
+  /**
+   * @return Whether the entry still reflects the resource. The resource is
+   *   only checked if validateMs have passed since it was last checked.
+   */
+  boolean validate(long now,long validateMs)
+  {
+    if (now-lastValidated<validateMs)
+    { return true;
+    }
+
+    try
+    {
+      if (resource.exists()
+          && FileServlet.floorToSecond(resource.getLastModified())==lastModified
+          && resource.getSize()==size
+          && (gzip==null || gzip.validate(now,validateMs))
+          && (br==null || br.validate(now,validateMs))
+          )
+      {
+        lastValidated=now;
+        return true;
+      }
+    }
+    catch (IOException x)
+    {
+      // Treat as changed
+    }
+    return false;
+  }
+
+  private static byte[] read(Resource resource,int size)
+    throws IOException
+  {
+    byte[] bytes=new byte[size];
+    InputStream in=resource.getInputStream();
+    try
+    {
+      int pos=0;
+      while (pos<size)
+      {
+        int count=in.read(bytes,pos,size-pos);
+        if (count<0)
+        { throw new IOException("Unexpected EOF reading "+resource.getURI());
+        }
+        pos+=count;
+      }
+    }
+    finally
+    { in.close();
+    }
+    return bytes;
+  }
+}
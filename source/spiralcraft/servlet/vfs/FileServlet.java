@@ -28,6 +28,7 @@ import java.io.FileNotFoundException;
 
 import spiralcraft.log.Level;
 
+import spiralcraft.servlet.util.BoundedCache;
 
 import spiralcraft.time.Clock;
 import spiralcraft.util.ArrayUtil;
@@ -43,6 +44,7 @@ import spiralcraft.vfs.Resource;
 import spiralcraft.vfs.Container;
 import spiralcraft.vfs.UnresolvableURIException;
 import spiralcraft.vfs.context.ContextResourceMap;
+import spiralcraft.vfs.file.FileResource;
 
 import java.text.SimpleDateFormat;
 
@@ -50,22 +52,70 @@ import java.io.File;
 //import java.io.FilenameFilter;
 
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
 
 import java.io.OutputStream;
 import java.io.InputStream;
+import java.io.FileOutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 import spiralcraft.net.http.Headers;
-import spiralcraft.net.http.RangeHeader;
 
 /**
- * Serves a contextual VFS resource
+ * <p>Serves a contextual VFS resource
+ * </p>
+ * 
+ * <p>Content backed by a local file is sent through the container's
+ *   sendfile mechanism when the container advertises one, or otherwise 
+ *   transferred from a FileChannel using positional reads. Other resources
+ *   are copied from their InputStream.
+ * </p>
+ * 
+ * <p>When hotCacheMaxBytes is set, resolved files are cached by path
+ *   along with their precomputed headers and, for files no larger than
+ *   hotFileMaxSize, their content. Cached entries are re-validated against
+ *   the file's modification time every hotCacheValidateMs.
+ * </p>
+ * 
+ * <p>When precompressed is set, a request that accepts "br" or "gzip"
+ *   encoding is served a "foo.js.br" or "foo.js.gz" sidecar file when one
+ *   exists and is at least as new as "foo.js". If compressCacheURI is
+ *   also set, missing gzip variants of compressible files no larger than
+ *   compressMaxSize are generated once into that directory by a
+ *   background thread. The identity file is served until the variant
+ *   exists.
+ * </p>
  */
 public class FileServlet
   extends HttpServlet
 {
   
+  private static final String SENDFILE_SUPPORT
+    ="org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME
+    ="org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START
+    ="org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END
+    ="org.apache.tomcat.sendfile.end";
+  private static final String SENDFILE_RESPONSE_CLASS
+    ="org.apache.catalina.connector.ResponseFacade";
+  
 
   @SuppressWarnings("unused")
   private static final long serialVersionUID = 1L;
@@ -79,6 +129,31 @@ public class FileServlet
   private SimpleDateFormat _fileDateFormat
     =new SimpleDateFormat("MM/dd/yyyy hh:mm:ss a");
   private int defaultCacheSeconds;
+  private boolean useSendfile=true;
+  private long sendfileMinSize=48*1024;
+  private long hotCacheMaxBytes=0;
+  private int hotFileMaxSize=64*1024;
+  private long hotCacheValidateMs=1000;
+  private int maxRanges=16;
+  private boolean precompressed;
+  private URI compressCacheURI;
+  private volatile File compressCacheDirectory;
+  private long compressMaxSize=8*1024*1024;
+  private final ConcurrentHashMap<String,Boolean> compressing
+    =new ConcurrentHashMap<String,Boolean>();
+  private volatile ExecutorService compressExecutor;
+  private String[] compressibleTypes
+    ={"text/"
+     ,"application/javascript"
+     ,"application/x-javascript"
+     ,"application/json"
+     ,"application/xml"
+     ,"application/xhtml+xml"
+     ,"application/rss+xml"
+     ,"image/svg+xml"
+     };
+  private final BoundedCache<String,CachedFile> hotCache
+    =new BoundedCache<String,CachedFile>(4096);
   private PathPattern[] hiddenPaths
     =new PathPattern[] 
       {new PathPattern("**/.svn/")
@@ -101,6 +176,148 @@ public class FileServlet
   { this.defaultCacheSeconds=seconds;
   }
   
+  /**
+   * <p>Whether to hand file transfers to the container's sendfile 
+   *   mechanism when available. Defaults to true.
+   * </p>
+   * 
+   * @param useSendfile
+   */
+  public void setUseSendfile(boolean useSendfile)
+  { this.useSendfile=useSendfile;
+  }
+  
+  /**
+   * <p>The minimum number of bytes for which the container's sendfile
+   *   mechanism will be used. Smaller transfers are written directly.
+   *   Defaults to 48K.
+   * </p>
+   * 
+   * @param sendfileMinSize
+   */
+  public void setSendfileMinSize(long sendfileMinSize)
+  { this.sendfileMinSize=sendfileMinSize;
+  }
+  
+  /**
+   * <p>The maximum number of bytes held by the hot file cache, including
+   *   an allowance for the metadata of each entry. Defaults to 0, which 
+   *   disables the cache.
+   * </p>
+   * 
+   * @param hotCacheMaxBytes
+   */
+  public void setHotCacheMaxBytes(long hotCacheMaxBytes)
+  { 
+    this.hotCacheMaxBytes=hotCacheMaxBytes;
+    hotCache.setMaxWeight(hotCacheMaxBytes);
+  }
+  
+  /**
+   * <p>The maximum number of paths held by the hot file cache. Defaults
+   *   to 4096.
+   * </p>
+   * 
+   * @param hotCacheMaxEntries
+   */
+  public void setHotCacheMaxEntries(int hotCacheMaxEntries)
+  { hotCache.setMaxEntries(hotCacheMaxEntries);
+  }
+  
+  /**
+   * <p>The size of the largest file whose content will be held in memory
+   *   by the hot file cache. Larger files have only their resolution and
+   *   headers cached. Defaults to 64K.
+   * </p>
+   * 
+   * @param hotFileMaxSize
+   */
+  public void setHotFileMaxSize(int hotFileMaxSize)
+  { this.hotFileMaxSize=hotFileMaxSize;
+  }
+  
+  /**
+   * <p>How often a cached file is checked for modification. Defaults to
+   *   1000ms.
+   * </p>
+   * 
+   * @param hotCacheValidateMs
+   */
+  public void setHotCacheValidateMs(long hotCacheValidateMs)
+  { this.hotCacheValidateMs=hotCacheValidateMs;
+  }
+  
+  /**
+   * @return The number of requests served from the hot file cache
+   */
+  public long getHotCacheHits()
+  { return hotCache.getHits();
+  }
+  
+  /**
+   * @return The number of requests that missed the hot file cache
+   */
+  public long getHotCacheMisses()
+  { return hotCache.getMisses();
+  }
+  
+  /**
+   * <p>The maximum number of ranges that will be served in a single 
+   *   multipart/byteranges response. Requests for more ranges are served 
+   *   the full content. Defaults to 16.
+   * </p>
+   * 
+   * @param maxRanges
+   */
+  public void setMaxRanges(int maxRanges)
+  { this.maxRanges=maxRanges;
+  }
+  
+  /**
+   * <p>Serve pre-compressed ".br" and ".gz" sidecar files to clients that 
+   *   accept those encodings. Defaults to false.
+   * </p>
+   * 
+   * @param precompressed
+   */
+  public void setPrecompressed(boolean precompressed)
+  { this.precompressed=precompressed;
+  }
+  
+  /**
+   * <p>A local directory in which gzip variants of compressible files that
+   *   have no sidecar are generated, once per file version, when 
+   *   precompressed is set. Usually somewhere under context://data/
+   * </p>
+   * 
+   * @param compressCacheURI
+   */
+  public void setCompressCacheURI(URI compressCacheURI)
+  { this.compressCacheURI=compressCacheURI;
+  }
+  
+  /**
+   * <p>The largest file for which a gzip variant is generated in the
+   *   compress cache. Defaults to 8M.
+   * </p>
+   * 
+   * @param compressMaxSize
+   */
+  public void setCompressMaxSize(long compressMaxSize)
+  { this.compressMaxSize=compressMaxSize;
+  }
+  
+  /**
+   * <p>The content types, or content type prefixes ending in "/", that 
+   *   are eligible for pre-compressed variants.
+   * </p>
+   * 
+   * @param compressibleTypes
+   */
+  public void setCompressibleTypes(String[] compressibleTypes)
+  { this.compressibleTypes=compressibleTypes;
+  }
+  
   public void setHiddenPaths(PathPattern[] hiddenPaths)
   {  this.hiddenPaths=hiddenPaths;
   }
@@ -287,6 +504,34 @@ public class FileServlet
       return;
     }
     
+    boolean getFile
+      =!request.getRequestURI().endsWith("/")
+      && (request.getMethod().equals("GET") 
+          || request.getMethod().equals("HEAD")
+         );
+    boolean useHotCache=getFile && hotCacheMaxBytes>0;
+    
+    if (useHotCache)
+    { 
+      CachedFile cachedFile=hotCache.get(contextPath);
+      if (cachedFile!=null)
+      {
+        if (cachedFile.validate
+              (Clock.instance().approxTimeMillis(),hotCacheValidateMs)
+           )
+        { 
+          sendCachedFile
+            (request
+            ,response
+            ,cachedFile
+            ,request.getMethod().equals("HEAD")
+            );
+          return;
+        }
+        hotCache.remove(contextPath,cachedFile);
+      }
+    }
+    
     
     Resource resource;
     try
@@ -378,6 +623,25 @@ public class FileServlet
       if (resource.asContainer()!=null)
       { redirectToContainer(request,response);
       }
+      else if (useHotCache || (getFile && precompressed))
+      { 
+        CachedFile cachedFile=resolveFile(contextPath,resource,useHotCache);
+        if (cachedFile!=null)
+        { 
+          sendCachedFile
+            (request
+            ,response
+            ,cachedFile
+            ,request.getMethod().equals("HEAD")
+            );
+        }
+        else if (request.getMethod().equals("GET"))
+        { sendFile(request,response,resource);
+        }
+        else
+        { sendHead(request,response,resource);
+        }
+      }
       else if (request.getMethod().equals("GET"))
       { sendFile(request,response,resource);
       }
@@ -385,7 +649,9 @@ public class FileServlet
       { sendHead(request,response,resource);
       }
       else if (request.getMethod().equals("PUT"))
-      { putFile(request,response,resource);
+      { 
+        hotCache.remove(contextPath);
+        putFile(request,response,resource);
       }
       else
       { response.sendError(405);
@@ -504,10 +770,10 @@ public class FileServlet
     { response.setContentType(contentType);
     }
 
-    response.setDateHeader
-      (Headers.LAST_MODIFIED
-      ,floorToSecond(resource.getLastModified())
-      );
+    long lastModified=floorToSecond(resource.getLastModified());
+    response.setDateHeader(Headers.LAST_MODIFIED,lastModified);
+    response.setHeader("ETag",etag(lastModified,resource.getSize()));
+    response.setHeader("Accept-Ranges","bytes");
     setCacheHeaders(response);
   }
   
@@ -570,36 +836,17 @@ public class FileServlet
         
       }
       long lastModified=floorToSecond(resource.getLastModified());     
-      
-      try
-      { 
-        long ifModifiedSince=request.getDateHeader(Headers.IF_MODIFIED_SINCE);
-        if (ifModifiedSince>0 && lastModified<=ifModifiedSince)
-        {
-          // Send unchanged status because resource not modified.
-          setCacheHeaders(response);
-          response.setStatus(304);
-          response.getOutputStream().flush();
-          return;
-        }
-        else if (ifModifiedSince>0 && debugLevel.canLog(Level.DEBUG))
-        { log.log(Level.DEBUG,"If-Modified-Since: "+ifModifiedSince+", lastModified="+lastModified);
-        }
+      if (notModified
+            (request,response,lastModified,etag(lastModified,resource.getSize()))
+         )
+      { return;
       }
-      catch (IllegalArgumentException x)
-      {
-        log.log
-          (Level.WARNING
-          ,"Unrecognized date format in header- If-Modified-Since: "
-          +request.getHeader(Headers.IF_MODIFIED_SINCE)
-          );
-      }      
 
       setHeaders(response,resource);
       
       long size=resource.getSize();
-      if (size>0 && size<Integer.MAX_VALUE)
-      { response.setContentLength((int) size);
+      if (size>0)
+      { setContentLength(response,size);
       } 
       
       response.getOutputStream().flush();
@@ -624,38 +871,48 @@ public class FileServlet
     }
   }
   
-  private long floorToSecond(long timeInMs)
+  static long floorToSecond(long timeInMs)
   { return (long) Math.floor((double) timeInMs/(double) 1000)*1000;
   }
   
   /**
-   * Send the specified file to the client
+   * @return A strong entity tag derived from the modification time and 
+   *   size of a file
    */
-  private void sendFile
+  static String etag(long lastModified,long size)
+  { return "\""+Long.toHexString(lastModified)+"-"+Long.toHexString(size)+"\"";
+  }
+  
+  /**
+   * <p>Evaluate the If-None-Match and If-Modified-Since request headers
+   *   and send a 304 response if the client's copy is current.
+   * </p>
+   * 
+   * @return true if a 304 response was sent
+   */
+  private boolean notModified
     (HttpServletRequest request
     ,HttpServletResponse response
-    ,Resource resource
+    ,long lastModified
+    ,String etag
     )
     throws IOException
   {
-    // Standard file service
-    // Simply send the disk file
-    
-    InputStream resourceInputStream=null;
-    
-    try
+    String ifNoneMatch=request.getHeader("If-None-Match");
+    boolean notModified;
+    if (ifNoneMatch!=null)
+    { 
+      // If-None-Match takes precedence over If-Modified-Since
+      notModified=matchesETag(ifNoneMatch,etag);
+    }
+    else
     {
-      long lastModified=floorToSecond(resource.getLastModified());
+      notModified=false;
       try
       { 
         long ifModifiedSince=request.getDateHeader(Headers.IF_MODIFIED_SINCE);
         if (ifModifiedSince>0 && lastModified<=ifModifiedSince)
-        {
-          // Send unchanged status because resource not modified.
-          setCacheHeaders(response);
-          response.setStatus(304);
-          response.getOutputStream().flush();
-          return;
+        { notModified=true;
         }
         else if (ifModifiedSince>0 && debugLevel.canLog(Level.DEBUG))
         {
@@ -671,65 +928,539 @@ public class FileServlet
           +request.getHeader(Headers.IF_MODIFIED_SINCE)
           );
       }      
+    }
+    
+    if (notModified)
+    {
+      // Send unchanged status because resource not modified.
+      setCacheHeaders(response);
+      response.setHeader("ETag",etag);
+      response.setStatus(304);
+      response.getOutputStream().flush();
+    }
+    return notModified;
+  }
+  
+  /**
+   * <p>Determine whether an If-None-Match style header lists the specified
+   *   entity tag, using the weak comparison function.
+   * </p>
+   */
+  static boolean matchesETag(String header,String etag)
+  {
+    if (header.trim().equals("*"))
+    { return true;
+    }
+    
+    int start=0;
+    int len=header.length();
+    while (start<len)
+    {
+      int end=header.indexOf(',',start);
+      if (end<0)
+      { end=len;
+      }
+      String tag=header.substring(start,end).trim();
+      if (tag.startsWith("W/"))
+      { tag=tag.substring(2);
+      }
+      if (tag.equals(etag))
+      { return true;
+      }
+      start=end+1;
+    }
+    return false;
+  }
+  
+  /**
+   * <p>Resolve the metadata and any pre-compressed variants of a file,
+   *   and if it is to be cached, the content of a small file.
+   * </p>
+   * 
+   * @return The resolved file, or null if the file could not be resolved
+   */
+  private CachedFile resolveFile
+    (String contextPath
+    ,Resource resource
+    ,boolean cache
+    )
+  {
+    try
+    {
+      long now=Clock.instance().approxTimeMillis();
+      int maxContentSize=cache?hotFileMaxSize:-1;
+      CachedFile cachedFile
+        =new CachedFile
+          (resource
+          ,getServletConfig().getServletContext()
+            .getMimeType(resource.getLocalName())
+          ,maxContentSize
+          ,now
+          );
+      
+      if (precompressed && isCompressible(cachedFile.contentType))
+      {
+        Resource br=findSidecar(resource,".br",cachedFile.lastModified);
+        if (br!=null)
+        { cachedFile.br=new CachedFile(br,cachedFile,"br",maxContentSize,now);
+        }
+        
+        Resource gzip=findSidecar(resource,".gz",cachedFile.lastModified);
+        if (gzip==null && canGenerateGzip(contextPath,cachedFile))
+        { 
+          gzip=generateGzip(contextPath,cachedFile);
+          
+          // Resolve again once the variant has been generated
+          cache=cache && gzip!=null;
+        }
+        if (gzip!=null)
+        { 
+          cachedFile.gzip
+            =new CachedFile(gzip,cachedFile,"gzip",maxContentSize,now);
+        }
+      }
+      
+      if (cache)
+      { hotCache.put(contextPath,cachedFile,cachedFile.weight());
+      }
+      return cachedFile;
+    }
+    catch (IOException x)
+    { 
+      if (debugLevel.canLog(Level.DEBUG))
+      { log.log(Level.DEBUG,"Not resolving "+resource.getURI()+": "+x);
+      }
+      return null;
+    }
+  }
+  
+  /**
+   * Send a file from the hot cache
+   */
+  private void sendCachedFile
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    ,CachedFile cachedFile
+    ,boolean headOnly
+    )
+    throws IOException
+  {
+    if (!headOnly && request.getHeader(Headers.RANGE)!=null)
+    { 
+      // Ranges are only served from the identity representation
+      sendFile(request,response,cachedFile.resource);
+      return;
+    }
+    
+    try
+    {
+      CachedFile representation=cachedFile;
+      if (cachedFile.gzip!=null || cachedFile.br!=null)
+      {
+        response.setHeader("Vary","Accept-Encoding");
+        String acceptEncoding=request.getHeader("Accept-Encoding");
+        if (acceptEncoding!=null)
+        {
+          if (cachedFile.br!=null && acceptsEncoding(acceptEncoding,"br"))
+          { representation=cachedFile.br;
+          }
+          else if (cachedFile.gzip!=null 
+                    && acceptsEncoding(acceptEncoding,"gzip")
+                  )
+          { representation=cachedFile.gzip;
+          }
+        }
+      }
+      
+      if (notModified
+            (request,response,cachedFile.lastModified,representation.etag)
+         )
+      { return;
+      }
+      
+      if (representation.encoding!=null)
+      { 
+        // Set before the content type so a compressing Filter can see
+        //   that the content is already encoded
+        response.setHeader("Content-Encoding",representation.encoding);
+      }
+      if (cachedFile.contentType!=null)
+      { response.setContentType(cachedFile.contentType);
+      }
+      response.setDateHeader(Headers.LAST_MODIFIED,cachedFile.lastModified);
+      response.setHeader("ETag",representation.etag);
+      response.setHeader("Accept-Ranges","bytes");
+      setCacheHeaders(response);
+      setContentLength(response,representation.size);
+      
+      if (headOnly)
+      { response.getOutputStream().flush();
+      }
+      else if (representation.content!=null)
+      { 
+        OutputStream out=response.getOutputStream();
+        out.write(representation.content);
+        out.flush();
+      }
+      else
+      { 
+        sendContent
+          (request,response,representation.resource,0,representation.size);
+      }
+    }
+    catch (IOException x)
+    { 
+      if (!"Broken pipe".equals(x.getMessage())
+          && !"Connection reset by peer".equals(x.getMessage())
+          )
+      {
+        log.log
+          (Level.WARNING
+          ,"IOException retrieving "+cachedFile.resource.getURI()+": "+x.toString()
+          );
+      }
+    }
+  }  
+  private boolean isCompressible(String contentType)
+  {
+    if (contentType==null || compressibleTypes==null)
+    { return false;
+    }
+    for (String type: compressibleTypes)
+    {
+      if (type.endsWith("/")
+          ?contentType.startsWith(type)
+          :contentType.equals(type) || contentType.startsWith(type+";")
+         )
+      { return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * <p>Determine whether an Accept-Encoding header permits the specified
+   *   content-coding.
+   * </p>
+   */
+  static boolean acceptsEncoding(String header,String coding)
+  {
+    boolean wildcard=false;
+    int start=0;
+    int len=header.length();
+    while (start<len)
+    {
+      int end=header.indexOf(',',start);
+      if (end<0)
+      { end=len;
+      }
+      String element=header.substring(start,end).trim();
+      start=end+1;
+      
+      String name=element;
+      float q=1;
+      int semi=element.indexOf(';');
+      if (semi>=0)
+      { 
+        name=element.substring(0,semi).trim();
+        String param=element.substring(semi+1).trim();
+        if (param.startsWith("q="))
+        { 
+          try
+          { q=Float.parseFloat(param.substring(2).trim());
+          }
+          catch (NumberFormatException x)
+          { q=0;
+          }
+        }
+      }
+      
+      if (name.equalsIgnoreCase(coding))
+      { return q>0;
+      }
+      else if (name.equals("*"))
+      { wildcard=q>0;
+      }
+    }
+    return wildcard;
+  }
+  
+  /**
+   * @return The sidecar resource with the specified suffix, if it exists
+   *   and is at least as new as the file it was compressed from.
+   */
+  private Resource findSidecar(Resource resource,String suffix,long lastModified)
+  {
+    try
+    {
+      Resource sidecar
+        =Resolver.getInstance().resolve
+          (URI.create(resource.getURI().toString()+suffix));
+      if (sidecar!=null 
+          && sidecar.exists()
+          && floorToSecond(sidecar.getLastModified())>=lastModified
+          )
+      { return sidecar;
+      }
+    }
+    catch (IOException | IllegalArgumentException x)
+    { 
+      if (debugLevel.canLog(Level.DEBUG))
+      { log.debug("No sidecar for "+resource.getURI()+": "+x);
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * @return Whether a gzip variant of the file is kept in the compress
+   *   cache directory
+   */
+  private boolean canGenerateGzip(String contextPath,CachedFile identity)
+  {
+    return getCompressCacheDirectory()!=null
+      && !contextPath.contains("..")
+      && identity.size>=0
+      && identity.size<=compressMaxSize;
+  }
+  
+  /**
+   * <p>Find the gzip variant of the file in the compress cache directory,
+   *   and if there is none, schedule its generation.
+   * </p>
+   * 
+   * @return The variant, or null if it doesn't exist yet
+   */
+  private Resource generateGzip
+    (final String contextPath
+    ,final CachedFile identity
+    )
+  {
+    final File target
+      =new File
+        (getCompressCacheDirectory(),contextPath.substring(1)+".gz");
+    if (target.exists() 
+        && floorToSecond(target.lastModified())>=identity.lastModified
+        )
+    { return new FileResource(target);
+    }
+    
+    // Only one request schedules a given file
+    if (compressing.putIfAbsent(contextPath,Boolean.TRUE)==null)
+    {
+      try
+      {
+        getCompressExecutor().execute
+          (new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              try
+              { writeGzip(target,identity);
+              }
+              finally
+              { compressing.remove(contextPath);
+              }
+            }
+          }
+          );
+      }
+      catch (RejectedExecutionException x)
+      { compressing.remove(contextPath);
+      }
+    }
+    return null;
+  }
+  
+  private ExecutorService getCompressExecutor()
+  {
+    if (compressExecutor==null)
+    {
+      synchronized (this)
+      {
+        if (compressExecutor==null)
+        {
+          compressExecutor
+            =Executors.newSingleThreadExecutor
+              (new ThreadFactory()
+              {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                  Thread thread=new Thread(runnable,"FileServlet.compress");
+                  thread.setDaemon(true);
+                  thread.setPriority(Thread.MIN_PRIORITY);
+                  return thread;
+                }
+              }
+              );
+        }
+      }
+    }
+    return compressExecutor;
+  }
+  
+  @Override
+  public void destroy()
+  {
+    ExecutorService executor=compressExecutor;
+    if (executor!=null)
+    { executor.shutdownNow();
+    }
+    super.destroy();
+  }
+  
+  /**
+   * Compress the file into the compress cache
+   */
+  private void writeGzip(File target,CachedFile identity)
+  {
+    File temp=null;
+    try
+    {
+      target.getParentFile().mkdirs();
+      temp=File.createTempFile(target.getName(),".tmp",target.getParentFile());
+      InputStream in=identity.resource.getInputStream();
+      try
+      {
+        GZIPOutputStream out
+          =new GZIPOutputStream(new FileOutputStream(temp),_bufferSize);
+        try
+        { StreamUtil.copyRaw(in,out,_bufferSize);
+        }
+        finally
+        { out.close();
+        }
+      }
+      finally
+      { in.close();
+      }
+      
+      Files.move
+        (temp.toPath()
+        ,target.toPath()
+        ,StandardCopyOption.REPLACE_EXISTING
+        ,StandardCopyOption.ATOMIC_MOVE
+        );
+      temp=null;
+      if (debugLevel.canLog(Level.DEBUG))
+      { log.debug("Generated "+target+" from "+identity.resource.getURI());
+      }
+    }
+    catch (IOException x)
+    { 
+      log.log(Level.WARNING,"Error generating gzip variant "+target,x);
+    }
+    finally
+    { 
+      if (temp!=null)
+      { temp.delete();
+      }
+    }
+  }
+  
+  private File getCompressCacheDirectory()
+  {
+    if (compressCacheURI==null)
+    { return null;
+    }
+    
+    if (compressCacheDirectory==null)
+    {
+      try
+      {
+        Resource resource=Resolver.getInstance().resolve(compressCacheURI);
+        if (resource instanceof FileResource)
+        { compressCacheDirectory=((FileResource) resource).getFile();
+        }
+        else
+        { 
+          log.warning("Compress cache "+compressCacheURI+" is not a local directory");
+          compressCacheURI=null;
+        }
+      }
+      catch (UnresolvableURIException x)
+      { 
+        log.log(Level.WARNING,"Could not resolve compress cache "+compressCacheURI,x);
+        compressCacheURI=null;
+      }
+    }
+    return compressCacheDirectory;
+  }
 
-
-      resourceInputStream
-        =resource.getInputStream();
+  
+  /**
+   * Send the specified file to the client
+   */
+  private void sendFile
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    ,Resource resource
+    )
+    throws IOException
+  {
+    // Standard file service
+    // Simply send the disk file
+    
+    try
+    {
+      long lastModified=floorToSecond(resource.getLastModified());
+      long size=resource.getSize();
+      String etag=etag(lastModified,size);
+      if (notModified(request,response,lastModified,etag))
+      { return;
+      }
 
       setHeaders(response,resource);
 
       /**
        * Interpret range
-       * XXX Process multiple range-specs in header
        */
-      RangeHeader rangeHeader=null;
+      List<ByteRange> ranges=null;
       String rangeSpec=request.getHeader(Headers.RANGE);
-      if (rangeSpec!=null)
-      { rangeHeader=new RangeHeader(rangeSpec);
-      }
-        
-      int contentLength=(int) resource.getSize();
-      if (rangeHeader!=null)
+      if (rangeSpec!=null 
+          && size>=0
+          && ifRange(request,lastModified,etag)
+          )
       { 
-        resourceInputStream.skip(rangeHeader.getSkipBytes());
-        
-        // XXX Will be a problem for resources longer than MAXINT
-        
-        contentLength
-          =(int) Math.max(0,resource.getSize()-rangeHeader.getSkipBytes());
-        
-        if (rangeHeader.getMaxBytes()>-1)
-        { contentLength=Math.min(contentLength,rangeHeader.getMaxBytes());
+        ranges=ByteRange.parse(rangeSpec,size);
+        if (ranges!=null && ranges.isEmpty())
+        {
+          response.setHeader(Headers.CONTENT_RANGE,"bytes */"+size);
+          response.setStatus(416);
+          response.getOutputStream().flush();
+          return;
         }
         
-        response.setContentLength(contentLength);
+        if (ranges!=null && ranges.size()>maxRanges)
+        { 
+          if (debugLevel.canLog(Level.DEBUG))
+          { log.debug("Ignoring "+ranges.size()+" ranges for "+resource.getURI());
+          }
+          ranges=null;
+        }
+      }
         
+      if (ranges==null)
+      { 
+        setContentLength(response,size);
+        sendContent(request,response,resource,0,size);
+      }
+      else if (ranges.size()==1)
+      {
+        ByteRange range=ranges.get(0);
         response.setStatus(206);
-        response.setHeader
-          (Headers.CONTENT_RANGE
-          ,"bytes "
-          +rangeHeader.getSkipBytes()
-          +"-"
-          +Math.min(resource.getSize()-1,rangeHeader.getLastByte())
-          +"/"
-          +resource.getSize()
-          );
+        response.setHeader(Headers.CONTENT_RANGE,range.toContentRange(size));
+        setContentLength(response,range.length());
+        sendContent(request,response,resource,range.start,range.length());
       }
       else
-      { response.setContentLength(contentLength);
+      { sendMultipartRanges(response,resource,ranges,size);
       }
       
-      StreamUtil.copyRaw
-        (resourceInputStream
-        ,response.getOutputStream()
-        ,_bufferSize
-        ,contentLength
-        );
-      
-      response.getOutputStream().flush();
-      
     }
-    catch (FileNotFoundException x)
+    catch (FileNotFoundException | NoSuchFileException x)
     {
       response.sendError
         (404
@@ -740,8 +1471,8 @@ public class FileServlet
     }
     catch (IOException x)
     { 
-      if (!x.getMessage().equals("Broken pipe")
-          && !x.getMessage().equals("Connection reset by peer")
+      if (!"Broken pipe".equals(x.getMessage())
+          && !"Connection reset by peer".equals(x.getMessage())
           )
       {
         log.log
@@ -751,13 +1482,276 @@ public class FileServlet
       }
 
     }
+  }
+  
+  /**
+   * <p>Evaluate the If-Range header. A Range request is only honored if the
+   *   If-Range validator, when present, matches the current representation.
+   * </p>
+   * 
+   * @return true if the Range header should be honored
+   */
+  private boolean ifRange
+    (HttpServletRequest request
+    ,long lastModified
+    ,String etag
+    )
+  {
+    String ifRange=request.getHeader("If-Range");
+    if (ifRange==null)
+    { return true;
+    }
+    
+    ifRange=ifRange.trim();
+    if (ifRange.startsWith("W/"))
+    { 
+      // Weak validators never match for If-Range
+      return false;
+    }
+    if (ifRange.startsWith("\""))
+    { return ifRange.equals(etag);
+    }
+    
+    try
+    { return request.getDateHeader("If-Range")==lastModified;
+    }
+    catch (IllegalArgumentException x)
+    { return false;
+    }
+  }
+  
+  /**
+   * <p>Stream multiple ranges as a multipart/byteranges entity, without
+   *   buffering the content.
+   * </p>
+   */
+  private void sendMultipartRanges
+    (HttpServletResponse response
+    ,Resource resource
+    ,List<ByteRange> ranges
+    ,long size
+    )
+    throws IOException
+  {
+    String boundary
+      =Long.toHexString(ThreadLocalRandom.current().nextLong())
+      +Long.toHexString(System.nanoTime());
+    String contentType=response.getContentType();
+    
+    // Compute the exact length of the entity so the client can track
+    //   progress
+    byte[][] partHeaders=new byte[ranges.size()][];
+    long contentLength=0;
+    for (int i=0;i<ranges.size();i++)
+    {
+      ByteRange range=ranges.get(i);
+      StringBuilder header=new StringBuilder();
+      header.append("\r\n--").append(boundary).append("\r\n");
+      if (contentType!=null)
+      { header.append("Content-Type: ").append(contentType).append("\r\n");
+      }
+      header.append("Content-Range: ").append(range.toContentRange(size))
+        .append("\r\n\r\n");
+      partHeaders[i]=StringUtil.asciiBytes(header.toString());
+      contentLength+=partHeaders[i].length+range.length();
+    }
+    byte[] trailer=StringUtil.asciiBytes("\r\n--"+boundary+"--\r\n");
+    contentLength+=trailer.length;
+    
+    response.setStatus(206);
+    response.setContentType("multipart/byteranges; boundary="+boundary);
+    setContentLength(response,contentLength);
+    
+    OutputStream out=response.getOutputStream();
+    FileChannel channel=null;
+    if (resource instanceof FileResource)
+    { 
+      channel
+        =FileChannel.open
+          (((FileResource) resource).getFile().toPath()
+          ,StandardOpenOption.READ
+          );
+    }
+    try
+    {
+      for (int i=0;i<ranges.size();i++)
+      {
+        ByteRange range=ranges.get(i);
+        out.write(partHeaders[i]);
+        if (channel!=null)
+        { transfer(channel,range.start,range.length(),out);
+        }
+        else
+        { copyFromStream(resource,range.start,range.length(),out);
+        }
+      }
+      out.write(trailer);
+      out.flush();
+    }
+    finally
+    { 
+      if (channel!=null)
+      { channel.close();
+      }
+    }
+  }
+  
+  /**
+   * Set a Content-Length that may exceed the range of an int
+   */
+  private void setContentLength(HttpServletResponse response,long length)
+  {
+    if (length<0)
+    { return;
+    }
+    if (length<Integer.MAX_VALUE)
+    { response.setContentLength((int) length);
+    }
+    else
+    { response.setHeader("Content-Length",Long.toString(length));
+    }
+  }
+  
+  /**
+   * <p>Send a region of the resource's content to the client, using the
+   *   most efficient transfer available for the resource.
+   * </p>
+   * 
+   * @param length The number of bytes to send, or -1 to send everything
+   *   after the start position
+   */
+  private void sendContent
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    ,Resource resource
+    ,long start
+    ,long length
+    )
+    throws IOException
+  {
+    if (resource instanceof FileResource && length>=0)
+    {
+      File file=((FileResource) resource).getFile();
+      if (canSendfile(request,response,length))
+      {
+        // The container will write the file after we return
+        request.setAttribute(SENDFILE_FILENAME,file.getAbsolutePath());
+        request.setAttribute(SENDFILE_START,Long.valueOf(start));
+        request.setAttribute(SENDFILE_END,Long.valueOf(start+length));
+        return;
+      }
+      
+      FileChannel channel
+        =FileChannel.open(file.toPath(),StandardOpenOption.READ);
+      try
+      { 
+        OutputStream out=response.getOutputStream();
+        transfer(channel,start,length,out);
+        out.flush();
+      }
+      finally
+      { channel.close();
+      }
+    }
+    else
+    {
+      OutputStream out=response.getOutputStream();
+      copyFromStream(resource,start,length,out);
+      out.flush();
+    }
+  }
+  
+  /**
+   * Copy a region of a resource that is only accessible as a stream
+   * 
+   * @param length The number of bytes to copy, or -1 to copy to the end
+   */
+  private void copyFromStream
+    (Resource resource
+    ,long start
+    ,long length
+    ,OutputStream out
+    )
+    throws IOException
+  {
+    InputStream in=resource.getInputStream();
+    try
+    {
+      long skipped=0;
+      while (skipped<start)
+      { 
+        long count=in.skip(start-skipped);
+        if (count<=0)
+        { break;
+        }
+        skipped+=count;
+      }
+      
+      byte[] buffer=new byte[_bufferSize];
+      long remaining=length;
+      while (length<0 || remaining>0)
+      {
+        int count
+          =in.read
+            (buffer
+            ,0
+            ,length<0?buffer.length:(int) Math.min(buffer.length,remaining)
+            );
+        if (count<0)
+        { break;
+        }
+        out.write(buffer,0,count);
+        remaining-=count;
+      }
+    }
     finally
+    { in.close();
+    }
+  }
+  
+  /**
+   * Copy a region of a file to the output using positional reads
+   */
+  private void transfer
+    (FileChannel channel
+    ,long position
+    ,long length
+    ,OutputStream out
+    )
+    throws IOException
+  {
+    WritableByteChannel target=Channels.newChannel(out);
+    long remaining=length;
+    while (remaining>0)
     { 
-      if (resourceInputStream!=null)
-      { resourceInputStream.close();
+      long count=channel.transferTo(position,remaining,target);
+      if (count<=0)
+      { 
+        // File was truncated
+        break;
       }
+      position+=count;
+      remaining-=count;
     }
   }
+  
+  /**
+   * <p>Determine whether the container's sendfile mechanism can be used for
+   *   this response. The response must be the container's own (not wrapped
+   *   by a Filter that expects to see the content).
+   * </p>
+   */
+  private boolean canSendfile
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    ,long length
+    )
+  {
+    return useSendfile
+      && length>=sendfileMinSize
+      && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))
+      && response.getClass().getName().equals(SENDFILE_RESPONSE_CLASS);
+  }
 
 
   private void sendDirectory
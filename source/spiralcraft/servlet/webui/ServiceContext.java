@@ -43,8 +43,12 @@ import spiralcraft.log.Level;
 
 import spiralcraft.net.http.VariableMap;
 import spiralcraft.profiler.ProfilerAgent;
-import spiralcraft.net.http.MultipartVariableMap;
 
+import spiralcraft.servlet.util.BufferedResponseWriter;
+import spiralcraft.servlet.util.MultipartForm;
+import spiralcraft.servlet.util.MultipartParser;
+import spiralcraft.servlet.util.RequestParameters;
+import spiralcraft.servlet.util.UploadPart;
 import spiralcraft.vfs.StreamUtil;
 
 import spiralcraft.command.Command;
@@ -97,6 +101,8 @@ public class ServiceContext
   private boolean outOfSync;
   private boolean initial;
   private PublicLocator publicLocator;
+  private MultipartParser multipartParser;
+  private BufferedResponseWriter responseWriter;
   
   
   public ServiceContext(Writer writer,boolean stateful,StateFrame frame)
@@ -104,6 +110,17 @@ public class ServiceContext
     super(writer,stateful,frame);
     threadContext.push(this);
   }
+  
+  /**
+   * Render into a BufferedResponseWriter, which is finished by 
+   *   finishResponse() and released by release()
+   */
+  public ServiceContext
+    (BufferedResponseWriter writer,boolean stateful,StateFrame frame)
+  { 
+    this((Writer) writer,stateful,frame);
+    this.responseWriter=writer;
+  }
 
   
   /**
@@ -160,24 +177,54 @@ public class ServiceContext
   { return profilerAgent;
   }
   
+  /**
+   * @return The Writer for text sent directly to the client, which is the
+   *   render output if it is buffered
+   */
+  public Writer getResponseWriter()
+    throws IOException
+  { return responseWriter!=null?responseWriter:response.getWriter();
+  }
+  
+  /**
+   * Send all the output to the client. Called when the response is 
+   *   complete.
+   */
+  public void finishResponse()
+    throws IOException
+  { 
+    if (responseWriter!=null)
+    { responseWriter.finish();
+    }
+    else
+    { response.getWriter().flush();
+    }
+  }
+  
   /**
    * Release all resources
    */
   void release()
   {
+    if (responseWriter!=null)
+    { 
+      responseWriter.release();
+      responseWriter=null;
+    }
     portSession=null;
     request=null;
     response=null;
     if (post!=null)
     { 
+      if (post instanceof MultipartForm)
+      { ((MultipartForm) post).delete();
+      }
       post.clear();
       post=null;
     }
-    if (query!=null)
-    { 
-      query.clear();
-      query=null;
-    }
+    
+    // The query map is shared with the request, so don't clear it
+    query=null;
     form=null;
     redirectURI=null;
     threadContext.pop();
@@ -226,19 +273,49 @@ public class ServiceContext
   { return request;
   }
   
+  /**
+   * The parser for multipart request bodies, which defines the upload size
+   *   limits
+   */
+  void setMultipartParser(MultipartParser multipartParser)
+  { this.multipartParser=multipartParser;
+  }
+  
+  /**
+   * @return The file uploaded for the named form field in a multipart 
+   *   request, or null if none
+   */
+  public UploadPart getUploadPart(String name)
+  { 
+    return post instanceof MultipartForm
+      ?((MultipartForm) post).getPart(name)
+      :null;
+  }
+  
+  /**
+   * <p>Parse the request parameters and body.
+   * </p>
+   * 
+   * @throws spiralcraft.servlet.util.UploadLimitException If the request
+   *   body exceeds the configured limits
+   */
   void setRequest(HttpServletRequest request)
     throws IOException,ServletException
   { 
     this.request=request;
     
-    String queryString=request.getQueryString();
-    if (queryString!=null && queryString.length()>0)
-    { this.query=VariableMap.fromUrlEncodedString(queryString);
-    }
+    // Shared with the filters that have already read the query
+    this.query=RequestParameters.getQuery(request);
     
+ 
+    MultipartParser parser
+      =multipartParser!=null
+      ?multipartParser
+      :new MultipartParser();
     if (request.getContentLength()>0)
     {
       String contentType=request.getContentType();
+      parser.checkContentLength(request.getContentLength());
       if (contentType.startsWith("application/x-www-form-urlencoded"))
       { 
         // String characterEncoding=request.getCharacterEncoding();
@@ -248,20 +325,17 @@ public class ServiceContext
             ,request.getContentLength()
             );
         // XXX Pass character encoding to VariableMap
-        this.post=VariableMap.fromUrlEncodedString(postString);
+        this.post=RequestParameters.parse(postString);
       }
       else if (contentType.startsWith("multipart/form-data"))
       {
-        MultipartVariableMap map=new MultipartVariableMap();
-        if (request.getCharacterEncoding()!=null)
-        { map.setDefaultPartEncoding(request.getCharacterEncoding());
-        }
-        map.read
-          (request.getInputStream()
-          ,contentType
-          ,request.getContentLength()
-          );
-        this.post=map;
+        this.post
+          =parser.parse
+            (request.getInputStream()
+            ,contentType
+            ,request.getContentLength()
+            ,request.getCharacterEncoding()
+            );
         
       }
       else
@@ -440,7 +514,7 @@ public class ServiceContext
       else
       { 
         // Query parameters override session map parameters
-        VariableMap queryMap=VariableMap.fromUrlEncodedString(query);
+        VariableMap queryMap=RequestParameters.parse(query);
         for (String key: sessionMap.keySet())
         { 
           if (!queryMap.containsKey(key))
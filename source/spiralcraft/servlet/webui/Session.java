@@ -23,7 +23,8 @@ import spiralcraft.vfs.UnresolvableURIException;
 
 import java.io.IOException;
 import java.net.URI;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -44,6 +45,12 @@ import javax.servlet.http.HttpSession;
  *   active WebUI resource in the ServletContext, mapped by the path
  *   of the resource relative to the ServletContext.
  * </p>
+ * 
+ * <p>A Session is shared by all the concurrent requests in the user's
+ *   HttpSession and does not lock as a whole. Requests for different
+ *   resources proceed in parallel, and each ResourceSession is locked by
+ *   the request that is using it.
+ * </p>
  */
 public class Session
 {
@@ -87,20 +94,25 @@ public class Session
     { return null;
     }
     
-    HashMap<String,XmlBean<Session>> sessionCache
-      =(HashMap<String,XmlBean<Session>>) 
+    Map<String,XmlBean<Session>> sessionCache
+      =(Map<String,XmlBean<Session>>) 
         session.getAttribute("spiralcraft.servlet.webui.sessionCache");
     
-    if (sessionCache==null)
+    if (!(sessionCache instanceof ConcurrentHashMap))
     { 
       synchronized (session)
       {
         sessionCache
-          =(HashMap<String,XmlBean<Session>>) 
+          =(Map<String,XmlBean<Session>>) 
             session.getAttribute("spiralcraft.servlet.webui.sessionCache");  
-        if (sessionCache==null)
+        if (!(sessionCache instanceof ConcurrentHashMap))
         {
-          sessionCache=new HashMap<String,XmlBean<Session>>();
+          // Also replaces a map restored from a session stored by an
+          //   earlier version
+          sessionCache
+            =sessionCache!=null
+            ?new ConcurrentHashMap<String,XmlBean<Session>>(sessionCache)
+            :new ConcurrentHashMap<String,XmlBean<Session>>();
           session.setAttribute
             ("spiralcraft.servlet.webui.sessionCache",sessionCache);
         }
@@ -112,10 +124,19 @@ public class Session
     
     if (uiSessionXmlAssembly==null && create)
     { 
-      uiSessionXmlAssembly
-        =createUiSessionXmlBean(contextResource,defaultSessionTypeURI);
-      uiSessionXmlAssembly.get().init(parentFocus);
-      sessionCache.put(sessionPath, uiSessionXmlAssembly);
+      synchronized (sessionCache)
+      {
+        // Creation is rare- serialize it so concurrent first requests
+        //   share one Session
+        uiSessionXmlAssembly=sessionCache.get(sessionPath);
+        if (uiSessionXmlAssembly==null)
+        {
+          uiSessionXmlAssembly
+            =createUiSessionXmlBean(contextResource,defaultSessionTypeURI);
+          uiSessionXmlAssembly.get().init(parentFocus);
+          sessionCache.put(sessionPath, uiSessionXmlAssembly);
+        }
+      }
     }
     
     if (uiSessionXmlAssembly!=null)
@@ -172,8 +193,8 @@ public class Session
   
   // Holds a map from resource paths relative to the ServletContext
   //   to resource state.  
-  private final HashMap<String,StateReference> stateMap
-    =new HashMap<String,StateReference>();
+  private final ConcurrentHashMap<String,StateReference> stateMap
+    =new ConcurrentHashMap<String,StateReference>();
 
   /**
    * 
@@ -190,51 +211,71 @@ public class Session
    * 
    * @param component
    */
-  public synchronized PortSession
+  public PortSession
     getResourceSession(RootComponent component)
   {
     StateReference ref=stateMap.get(component.getInstancePath());
     if (ref!=null && ref.component==component)
     { return ref.localSession;
     }
-    else if (ref==null)
-    {
-      ref=new StateReference();
-      stateMap.put(component.getInstancePath(),ref);
-    }
     else
-    {
-      // there's a new component at that path- the old one can't exist
-      // anymore. Components may implement multi-session capability internally.
-      ref.component=component;
-      ref.localSession=null;
+    { 
+      // If there's a new component at that path the old one can't exist
+      // anymore. Components may implement multi-session capability 
+      // internally.
+      return null;
     }
-    return ref.localSession;
     
   }
 
   /**
-   * Set the ResourceSession associated with the UiComponent resource
+   * Get the ResourceSession associated with the UiComponent resource,
+   *   creating it if it doesn't exist. Concurrent callers for the same
+   *   component get the same ResourceSession.
    * 
    * @param component
    */
-  public synchronized void
-    setResourceSession(RootComponent component,PortSession localSession)
+  public PortSession
+    ensureResourceSession(RootComponent component)
   {
     StateReference ref=stateMap.get(component.getInstancePath());
-    if (ref==null)
-    { 
-      ref=new StateReference();
-      stateMap.put(component.getInstancePath(), ref);
+    if (ref!=null && ref.component==component)
+    { return ref.localSession;
     }
-    ref.component=component;
-    ref.localSession=localSession;
+    
+    return stateMap.compute
+      (component.getInstancePath()
+      ,(path,current) ->
+        current!=null && current.component==component
+        ?current
+        :new StateReference(component,new PortSession())
+      ).localSession;
+  }
+  
+  /**
+   * Set the ResourceSession associated with the UiComponent resource
+   * 
+   * @param component
+   */
+  public void
+    setResourceSession(RootComponent component,PortSession localSession)
+  { 
+    stateMap.put
+      (component.getInstancePath()
+      ,new StateReference(component,localSession)
+      );
   }
   
 }
 
 class StateReference
 {
-  public PortSession localSession;
-  public RootComponent component;
+  public final PortSession localSession;
+  public final RootComponent component;
+  
+  StateReference(RootComponent component,PortSession localSession)
+  { 
+    this.component=component;
+    this.localSession=localSession;
+  }
 }
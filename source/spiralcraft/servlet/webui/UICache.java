@@ -27,10 +27,21 @@ import spiralcraft.lang.BindException;
 import spiralcraft.lang.spi.SimpleChannel;
 import spiralcraft.log.ClassLog;
 import spiralcraft.log.Level;
+import spiralcraft.time.Clock;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.ServletException;
 
@@ -41,20 +52,27 @@ import javax.servlet.ServletException;
  * 
  * <p>Components are parsed and bound as needed.
  * </p>
+ * 
+ * <p>Each instance path is compiled and bound independently, so a slow
+ *   compile for one path does not block requests for other paths.
+ *   Concurrent requests for a path that is being compiled for the first
+ *   time wait for the single compile in progress. Changed source resources
+ *   are recompiled and rebound on a background thread, while all requests
+ *   continue to be served by the previous component until the new one is
+ *   swapped in.
+ * </p>
  */
 public class UICache
 {
   private static final ClassLog log=ClassLog.getInstance(UICache.class);
   
-  private HashMap<String,UIResourceUnit> textgenCache
-    =new HashMap<String,UIResourceUnit>();
-  
-  private final HashMap<String,ComponentReference> componentMap
-    =new HashMap<String,ComponentReference>();
+  private final ConcurrentHashMap<String,Entry> entries
+    =new ConcurrentHashMap<String,Entry>();
   
   private final Focus<?> focus;
 
   private int resourceCheckFrequencyMs=5000;
+  private volatile ExecutorService rebuildExecutor;
 
   private boolean showExceptions=false;
   private String exceptionResource
@@ -97,62 +115,228 @@ public class UICache
    * @throws IOException
    * @throws ServletException
    */
-  public synchronized RootComponent getUI
+  public RootComponent getUI
     (Resource resource,String instancePath)
     throws ContextualException,IOException,ServletException
   {
-    UIResourceUnit resourceUnit
-      =resolveResourceUnit(resource,instancePath);
-    if (resourceUnit!=null)
-    { 
-      try
-      {
-        RootUnit unit=resourceUnit.getUnit();
+    Entry entry=resolveEntry(resource,instancePath);
+    if (entry==null)
+    { return null;
+    }
+    
+    ComponentReference ref=entry.current;
+    if (ref!=null)
+    {
+      long now=Clock.instance().approxTimeMillis();
+      if (now-entry.lastChecked<resourceCheckFrequencyMs
+          || !entry.refreshing.compareAndSet(false,true)
+         )
+      { 
+        // Fresh, or being rebuilt by another thread
+        return ref.component;
+      }
       
-        if (unit!=null)
-        { return getComponent(instancePath,unit);
-        }
-        else
-        { 
-          // XXX Return an 'exception handler' component
-          if (resourceUnit.getException()!=null)
-          { 
-            if (showExceptions)
-            {
-              return makeExceptionComponent
-                (resource,instancePath,resourceUnit,resourceUnit.getException());
-            }
-            else
-            { 
-              throw new ServletException
-                ("Error instantiating component for path ["+instancePath
-                  +"] from resource ["+resource.getURI()+"]"
-                ,resourceUnit.getException()
-                );
+      entry.lastChecked=now;
+      try
+      { 
+        getRebuildExecutor().execute
+          (new Runnable()
+          {
+            @Override
+            public void run()
+            { rebuild(resource,instancePath,entry);
             }
           }
-          return null;
-        }
+          );
+      }
+      catch (RejectedExecutionException x)
+      { entry.refreshing.set(false);
+      }
+      return ref.component;
+    }
+    
+    // First compile, or the last rebuild failed
+    CompletableFuture<RootComponent> future
+      =new CompletableFuture<RootComponent>();
+    while (!entry.loading.compareAndSet(null,future))
+    {
+      CompletableFuture<RootComponent> loading=entry.loading.get();
+      if (loading!=null)
+      { return await(loading);
       }
-      catch (ContextualException x)
+    }
+    
+    try
+    { 
+      RootComponent component=build(resource,instancePath,entry);
+      future.complete(component);
+      return component;
+    }
+    catch (Throwable x)
+    { 
+      future.completeExceptionally(x);
+      throw x;
+    }
+    finally
+    { entry.loading.set(null);
+    }
+  }
+  
+  /**
+   * <p>Compile the resource if it has changed and bind a new component 
+   *   if the compiled unit is different than the one bound to the Entry.
+   * </p>
+   */
+  private RootComponent build
+    (Resource resource,String instancePath,Entry entry)
+    throws ContextualException,IOException,ServletException
+  {
+    UIResourceUnit resourceUnit=entry.resourceUnit;
+    try
+    {
+      RootUnit unit;
+      synchronized (resourceUnit)
       { 
-        if (showExceptions)
-        {
-          return makeExceptionComponent(resource,instancePath,null,x);
+        // ResourceUnit recompiles in getUnit() when its source changes
+        unit=resourceUnit.getUnit();
+      }
+    
+      if (unit!=null)
+      { return getComponent(instancePath,unit,entry);
+      }
+      else
+      { 
+        entry.current=null;
+        
+        // XXX Return an 'exception handler' component
+        if (resourceUnit.getException()!=null)
+        { 
+          if (showExceptions)
+          {
+            return makeExceptionComponent
+              (resource,instancePath,resourceUnit,resourceUnit.getException());
+          }
+          else
+          { 
+            throw new ServletException
+              ("Error instantiating component for path ["+instancePath
+                +"] from resource ["+resource.getURI()+"]"
+              ,resourceUnit.getException()
+              );
+          }
         }
-        else
+        return null;
+      }
+    }
+    catch (ContextualException x)
+    { 
+      entry.current=null;
+      if (showExceptions)
+      {
+        return makeExceptionComponent(resource,instancePath,null,x);
+      }
+      else
+      {
+        throw new ServletException
+          ("Error compiling path ["+instancePath
+            +"] resource ["+resource.getURI()+"]"
+          ,x
+          );
+      }
+    }
+  }
+  
+  /**
+   * Check for changes and rebuild the component in the background. The
+   *   new component is published by getComponent() once it is bound.
+   */
+  private void rebuild(Resource resource,String instancePath,Entry entry)
+  {
+    try
+    { build(resource,instancePath,entry);
+    }
+    catch (Exception x)
+    { log.log(Level.WARNING,"Error rebuilding UI for "+instancePath,x);
+    }
+    finally
+    { entry.refreshing.set(false);
+    }
+  }
+  
+  /**
+   * The threads that rebuild changed components. Idle threads exit, so
+   *   they don't outlive the application.
+   */
+  private ExecutorService getRebuildExecutor()
+  {
+    ExecutorService executor=rebuildExecutor;
+    if (executor==null)
+    {
+      synchronized (this)
+      {
+        executor=rebuildExecutor;
+        if (executor==null)
         {
-          throw new ServletException
-            ("Error compiling path ["+instancePath
-              +"] resource ["+resource.getURI()+"]"
-            ,x
-            );
+          ThreadPoolExecutor pool
+            =new ThreadPoolExecutor
+              (2
+              ,2
+              ,60
+              ,TimeUnit.SECONDS
+              ,new LinkedBlockingQueue<Runnable>()
+              ,new ThreadFactory()
+              {
+                @Override
+                public Thread newThread(Runnable runnable)
+                { 
+                  Thread thread=new Thread(runnable,"UICache.rebuild");
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              }
+              );
+          pool.allowCoreThreadTimeOut(true);
+          executor=pool;
+          rebuildExecutor=executor;
         }
       }
-      
     }
-    else
-    { return null;
+    return executor;
+  }
+  
+  /**
+   * Wait for a compile in progress in another thread
+   */
+  private RootComponent await(CompletableFuture<RootComponent> future)
+    throws ContextualException,IOException,ServletException
+  {
+    try
+    { return future.get();
+    }
+    catch (InterruptedException x)
+    { 
+      Thread.currentThread().interrupt();
+      throw new ServletException("Interrupted waiting for UI compile",x);
+    }
+    catch (ExecutionException x)
+    {
+      Throwable cause=x.getCause();
+      if (cause instanceof ServletException)
+      { throw (ServletException) cause;
+      }
+      else if (cause instanceof ContextualException)
+      { throw (ContextualException) cause;
+      }
+      else if (cause instanceof IOException)
+      { throw (IOException) cause;
+      }
+      else if (cause instanceof RuntimeException)
+      { throw (RuntimeException) cause;
+      }
+      else if (cause instanceof Error)
+      { throw (Error) cause;
+      }
+      throw new ServletException(cause);
     }
   }
   
@@ -208,8 +392,8 @@ public class UICache
   }
   
   /**
-   * <p>Find or create the UIResourceUnit that references the compiled textgen 
-   *  doclet within the specified context.
+   * <p>Find or create the Entry that references the UIResourceUnit for the
+   *   compiled textgen doclet within the specified context.
    * </p>
    * 
    * @param resource  The path relative to the ServletContext
@@ -219,18 +403,18 @@ public class UICache
    *   the UIResourceUnit generated from the source code file within a given
    *   context.
    *  
-   * @return
+   * @return The Entry, or null if the resource does not exist
    * @throws ServletException
    * @throws IOException
    */
-  private UIResourceUnit resolveResourceUnit(Resource resource,String instancePath)
+  private Entry resolveEntry(Resource resource,String instancePath)
     throws ServletException,IOException
   {
-    UIResourceUnit resourceUnit=textgenCache.get(instancePath);
-    if (resourceUnit!=null)
+    Entry entry=entries.get(instancePath);
+    if (entry!=null)
     { 
       //log.fine(toString()+": Found "+instancePath+" in cache");
-      return resourceUnit;
+      return entry;
     }
     
     if (!resource.exists())
@@ -241,11 +425,12 @@ public class UICache
     InputStream in=resource.getInputStream();
     in.close();
     
-    resourceUnit=new UIResourceUnit(resource);
+    UIResourceUnit resourceUnit=new UIResourceUnit(resource);
     resourceUnit.setCheckFrequencyMs(resourceCheckFrequencyMs);
-    textgenCache.put(instancePath,resourceUnit);
+    entry=new Entry(resourceUnit);
+    Entry existing=entries.putIfAbsent(instancePath,entry);
     //log.fine(toString()+": Added "+instancePath+" to cache");
-    return resourceUnit;
+    return existing!=null?existing:entry;
   }
   
   /**
@@ -262,10 +447,10 @@ public class UICache
    * @return
    */
   private RootComponent 
-    getComponent(String instancePath,RootUnit unit)
+    getComponent(String instancePath,RootUnit unit,Entry entry)
     throws ContextualException
   {
-    ComponentReference ref=componentMap.get(instancePath);
+    ComponentReference ref=entry.current;
     if (ref!=null && ref.unit==unit)
     { return ref.component;
     }
@@ -282,12 +467,40 @@ public class UICache
     { timer.pop();
     }
     ref.component.setInstancePath(instancePath);
-    componentMap.put(instancePath,ref);
+    entry.lastChecked=Clock.instance().approxTimeMillis();
+    entry.current=ref;
     return ref.component;
     
   }
 
-  
+  /**
+   * The compiled unit and bound component for an instance path
+   */
+  private static class Entry
+  {
+    final UIResourceUnit resourceUnit;
+    
+    /**
+     * The component currently being served, published after it is bound
+     */
+    volatile ComponentReference current;
+    volatile long lastChecked;
+    
+    /**
+     * Guards rebuilds of an existing component
+     */
+    final AtomicBoolean refreshing=new AtomicBoolean();
+    
+    /**
+     * The first compile in progress, if any
+     */
+    final AtomicReference<CompletableFuture<RootComponent>> loading
+      =new AtomicReference<CompletableFuture<RootComponent>>();
+    
+    Entry(UIResourceUnit resourceUnit)
+    { this.resourceUnit=resourceUnit;
+    }
+  }
 }
 
 class ComponentReference
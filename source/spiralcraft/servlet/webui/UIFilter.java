@@ -95,6 +95,38 @@ public class UIFilter<Tcontext>
     )
     throws ServletException,IOException
   { 
+    RootComponent component=resolveComponent(request);
+    if (component!=null)
+    { 
+      uiServant.service
+        (component
+        ,request.getServletPath()
+        ,config.getServletContext()
+        ,request
+        ,response
+        );
+    }
+    else
+    { super.doChain(chain,request,response);
+    }
+  }
+  
+  @Override
+  protected boolean warmUpChain
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    )
+    throws ServletException,IOException
+  { return resolveComponent(request)!=null;
+  }
+  
+  /**
+   * @return The bound RootComponent that serves the request, or null if
+   *   no resource is specified
+   */
+  private RootComponent resolveComponent(HttpServletRequest request)
+    throws ServletException
+  {
     String sourceLoc=null;
     if (resourceX!=null)
     { sourceLoc=resourceX.get();
@@ -138,21 +170,7 @@ public class UIFilter<Tcontext>
           ("Error loading webui Component for ["+uri+"]:"+x,x);
       }
     }
-
-    
-    if (component!=null)
-    { 
-      uiServant.service
-        (component
-        ,request.getServletPath()
-        ,config.getServletContext()
-        ,request
-        ,response
-        );
-    }
-    else
-    { super.doChain(chain,request,response);
-    }
+    return component;
   }
   
   
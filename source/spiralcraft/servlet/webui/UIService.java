@@ -16,8 +16,6 @@ package spiralcraft.servlet.webui;
 
 import java.io.IOException;
 import java.net.URI;
-import java.util.HashMap;
-import java.util.HashSet;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -34,12 +32,17 @@ import spiralcraft.log.ClassLog;
 import spiralcraft.log.Level;
 import spiralcraft.net.http.VariableMap;
 import spiralcraft.profiler.ProfilerAgent;
+import spiralcraft.servlet.autofilter.Controller;
 import spiralcraft.servlet.autofilter.PathContext;
 import spiralcraft.servlet.autofilter.PathContextFilter;
 import spiralcraft.servlet.autofilter.spi.FocusFilter;
 import spiralcraft.servlet.kit.ContextAdapter;
 import spiralcraft.servlet.kit.HttpFocus;
 import spiralcraft.servlet.kit.UIResourceMapping;
+import spiralcraft.servlet.util.BoundedCache;
+import spiralcraft.servlet.util.BufferedResponseWriter;
+import spiralcraft.servlet.util.MultipartParser;
+import spiralcraft.servlet.util.UploadLimitException;
 import spiralcraft.servlet.webui.kit.PortSession;
 import spiralcraft.servlet.webui.kit.UISequencer;
 import spiralcraft.ui.NavContext;
@@ -56,7 +59,21 @@ import spiralcraft.common.ContextualException;
  * <p>Manages a set of WebUI interfaces and their session state 
  * </p>
  * 
+ * <p>The mapping from a request path to the resource that defines its
+ *   interface is cached, as is the absence of such a resource. Both caches
+ *   are bounded, and their entries expire so that pages added or removed
+ *   while the application is running become visible. Both are cleared when
+ *   the Controller reports a change to the code tree. The sizes and
+ *   lifetimes can be set with the "spiralcraft.servlet.webui.pathCacheSize",
+ *   "spiralcraft.servlet.webui.pathCacheTtlMs" and
+ *   "spiralcraft.servlet.webui.bypassTtlMs" context init parameters.
+ * </p>
  * 
+ * <p>Pages are rendered into a BufferedResponseWriter, so that a page up to
+ *   "spiralcraft.servlet.webui.renderBufferSize" bytes (256K by default) is
+ *   sent with a Content-Length. When "spiralcraft.servlet.webui.flushHead"
+ *   is "true", the document head is sent as soon as it is rendered.
+ * </p>
  */
 public class UIService
   implements Contextual
@@ -72,10 +89,13 @@ public class UIService
   
   private UICache uiCache;
   private String contextRelativePath;
-  private final HashMap<String,UIResourceMapping> uiResourceMap
-    =new HashMap<>();
-  private final HashSet<String> bypassSet
-    =new HashSet<String>();
+  private final BoundedCache<String,UIResourceMapping> uiResourceMap
+    =new BoundedCache<>(4096);
+  private final BoundedCache<String,Boolean> bypassSet
+    =new BoundedCache<>(4096);
+  private volatile long treeVersion;
+  private int renderBufferSize=256*1024;
+  private boolean flushHead;
   
   private URI defaultSessionTypeURI
     =URI.create("class:/spiralcraft/servlet/webui/Session");
@@ -89,11 +109,52 @@ public class UIService
     =new SimpleChannel<UIService>(this,true);
   
   private final UISequencer sequencer=new UISequencer();
+  private final MultipartParser multipartParser;
   
   public UIService(ContextAdapter context,String contextRelativePath)
   { 
     this.context=context;
     this.contextRelativePath=contextRelativePath;
+    this.multipartParser=MultipartParser.forContext(context.getContext());
+    
+    uiResourceMap.setTimeToLiveMs(60000);
+    bypassSet.setTimeToLiveMs(5000);
+    
+    String pathCacheSize
+      =context.getContext().getInitParameter
+        ("spiralcraft.servlet.webui.pathCacheSize");
+    if (pathCacheSize!=null)
+    { 
+      uiResourceMap.setMaxEntries(Integer.parseInt(pathCacheSize));
+      bypassSet.setMaxEntries(Integer.parseInt(pathCacheSize));
+    }
+    
+    String pathCacheTtlMs
+      =context.getContext().getInitParameter
+        ("spiralcraft.servlet.webui.pathCacheTtlMs");
+    if (pathCacheTtlMs!=null)
+    { uiResourceMap.setTimeToLiveMs(Long.parseLong(pathCacheTtlMs));
+    }
+    
+    String bypassTtlMs
+      =context.getContext().getInitParameter
+        ("spiralcraft.servlet.webui.bypassTtlMs");
+    if (bypassTtlMs!=null)
+    { bypassSet.setTimeToLiveMs(Long.parseLong(bypassTtlMs));
+    }
+    
+    String renderBufferSize
+      =context.getContext().getInitParameter
+        ("spiralcraft.servlet.webui.renderBufferSize");
+    if (renderBufferSize!=null)
+    { this.renderBufferSize=Integer.parseInt(renderBufferSize);
+    }
+    
+    this.flushHead
+      ="true".equals
+        (context.getContext().getInitParameter
+          ("spiralcraft.servlet.webui.flushHead")
+        );
   }
   
   @Override
@@ -137,33 +198,30 @@ public class UIService
   public RootComponent findComponent(String relativePath)
     throws ContextualException,IOException,ServletException
   {
+    Long version
+      =(Long) context.getContext()
+        .getAttribute(Controller.TREE_VERSION_ATTRIBUTE);
+    if (version!=null && version.longValue()!=treeVersion)
+    { 
+      treeVersion=version;
+      clearPathCache();
+    }
 
-    if (bypassSet.contains(relativePath))
+    if (bypassSet.get(relativePath)!=null)
     { return null;
     }
     
     UIResourceMapping resource=uiResourceMap.get(relativePath);
     if (resource==null)
     {
-      synchronized (uiResourceMap)
-      { 
-        synchronized (bypassSet)
-        {
-          if (bypassSet.contains(relativePath))
-          { return null;
-          }
-        }
-        
-        resource=uiResourceMap.get(relativePath);
-        if (resource==null)
-        { resource=findUIResource(relativePath);
-        }
-        if (resource!=null)
-        { uiResourceMap.put(relativePath,resource);
-        }
-        else
-        { bypassSet.add(relativePath);
-        }
+      // Concurrent lookups of the same path may both search- the results
+      //   are equivalent.
+      resource=findUIResource(relativePath);
+      if (resource!=null)
+      { uiResourceMap.put(relativePath,resource);
+      }
+      else
+      { bypassSet.put(relativePath,Boolean.TRUE);
       }
     }
     
@@ -174,6 +232,17 @@ public class UIService
     return getRootComponent(resource.resource,resource.mappedPath);
   }
   
+  /**
+   * <p>Discard the cached mappings from request paths to UI resources, so
+   *   that changes to the code tree are seen by the next request.
+   * </p>
+   */
+  public void clearPathCache()
+  { 
+    uiResourceMap.clear();
+    bypassSet.clear();
+  }
+  
   /**
    *   
    * <p>Find a code resource that generates a component for the
@@ -421,78 +490,76 @@ public class UIService
       if (interactive)
       {
         // Interactive mode maintains a session scoped state for a resource
-        //   which must be synchronized.
-
-        PortSession localSession=session.getResourceSession(component);
+        //   which is used by one request at a time. Requests for other
+        //   resources in the same session are not blocked.
+        PortSession localSession=session.ensureResourceSession(component);
 
-        if (localSession==null)
-        { 
-
-          synchronized (session)
-          {
-            localSession=session.getResourceSession(component);
-            if (localSession==null)
-            {
-              localSession=new PortSession();
-              session.setResourceSession(component,localSession);
-            }
-          }
-        }
-        
-        // Set the URI per-reuqest because the data components in the URI may
-        //   change
-        localSession.setLocalURI(request.getRequestURI());
+        synchronized (localSession)
+        {
+          // Set the URI per-reuqest because the data components in the URI may
+          //   change
+          localSession.setLocalURI(request.getRequestURI());
 
 
-        ProfilerAgent profilerAgent=
-          profilerAgentChannel!=null
-            ?profilerAgentChannel.get()
-            :null;
+          ProfilerAgent profilerAgent=
+            profilerAgentChannel!=null
+              ?profilerAgentChannel.get()
+              :null;
 
-        // Set up the ServiceContext with the last frame used.
-        serviceContext
-          =new ServiceContext
-          (response.getWriter(),true,localSession.currentFrame());
+          // Set up the ServiceContext with the last frame used.
+          serviceContext
+            =new ServiceContext
+            (createWriter(response),true,localSession.currentFrame());
 
-        serviceContext.setRequest(request);
-        serviceContext.setResponse(response);
-        serviceContext.setServletContext(context);
-        serviceContext.setProfilerAgent(profilerAgent);
+          serviceContext.setMultipartParser(multipartParser);
+          try
+          { serviceContext.setRequest(request);
+          }
+          catch (UploadLimitException x)
+          { 
+            response.sendError
+              (HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,x.getMessage());
+            return;
+          }
+          serviceContext.setResponse(response);
+          serviceContext.setServletContext(context);
+          serviceContext.setProfilerAgent(profilerAgent);
         
-        VariableMap query=serviceContext.getQuery();
+          VariableMap query=serviceContext.getQuery();
         
-        String port
-          =query!=null
-          ?query.getFirst("port")
-          :null;
+          String port
+            =query!=null
+            ?query.getFirst("port")
+            :null;
     
-        String requestedState=query!=null?query.getFirst("lrs"):null;
+          String requestedState=query!=null?query.getFirst("lrs"):null;
         
-        PortSession.RequestSyncStatus syncStatus
-          =localSession.getRequestSyncStatus(requestedState);
+          PortSession.RequestSyncStatus syncStatus
+            =localSession.getRequestSyncStatus(requestedState);
         
-        if (syncStatus==PortSession.RequestSyncStatus.OUTOFSYNC)
-        { handleOutOfSyncRequest(serviceContext,localSession,port);
-        }
-        else
-        {
-          if (port!=null && !port.isEmpty())
-          { 
-            if (profilerAgent!=null)
-            { profilerAgent.enter("UIService.callPort()",null);
-            }
-            try
-            {callPort(serviceContext,component,localSession,port);
-            }
-            finally
+          if (syncStatus==PortSession.RequestSyncStatus.OUTOFSYNC)
+          { handleOutOfSyncRequest(serviceContext,localSession,port);
+          }
+          else
+          {
+            if (port!=null && !port.isEmpty())
             { 
               if (profilerAgent!=null)
-              { profilerAgent.exit("UIService.callPort()", null,null);
+              { profilerAgent.enter("UIService.callPort()",null);
+              }
+              try
+              {callPort(serviceContext,component,localSession,port);
+              }
+              finally
+              { 
+                if (profilerAgent!=null)
+                { profilerAgent.exit("UIService.callPort()", null,null);
+                }
               }
             }
-          }
-          else
-          { sequencer.service(serviceContext,component,localSession,true);
+            else
+            { sequencer.service(serviceContext,component,localSession,true);
+            }
           }
         }
       }
@@ -504,9 +571,18 @@ public class UIService
         PortSession localSession=new PortSession();
 
         serviceContext
-        =new ServiceContext(response.getWriter(),true,new StateFrame());
+        =new ServiceContext(createWriter(response),true,new StateFrame());
 
-        serviceContext.setRequest(request);
+        serviceContext.setMultipartParser(multipartParser);
+        try
+        { serviceContext.setRequest(request);
+        }
+        catch (UploadLimitException x)
+        { 
+          response.sendError
+            (HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,x.getMessage());
+          return;
+        }
         serviceContext.setResponse(response);
 
         localSession.setLocalURI
@@ -529,6 +605,14 @@ public class UIService
     }
   }
 
+  private BufferedResponseWriter createWriter(HttpServletResponse response)
+  {
+    BufferedResponseWriter writer
+      =new BufferedResponseWriter(response,renderBufferSize);
+    writer.setFlushHead(flushHead);
+    return writer;
+  }
+  
   private void handleOutOfSyncRequest(ServiceContext serviceContext,PortSession localSession,String port)
     throws IOException
   {
@@ -546,7 +630,7 @@ public class UIService
       response.sendRedirect
         (localSession.getStatelessBackLink(serviceContext.getRequest()));
     }
-    response.getWriter().flush();
+    serviceContext.finishResponse();
     try
     { response.flushBuffer();   
     }
@@ -574,7 +658,7 @@ public class UIService
       response.setStatus(500);
       try
       {
-        response.getWriter().flush();
+        serviceContext.finishResponse();
         response.flushBuffer();
       }
       catch (IOException x)
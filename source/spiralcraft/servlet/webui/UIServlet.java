@@ -15,6 +15,7 @@
 package spiralcraft.servlet.webui;
 
 import spiralcraft.servlet.autofilter.PathContext;
+import spiralcraft.servlet.autofilter.WarmUp;
 import spiralcraft.servlet.autofilter.spi.FocusFilter;
 import spiralcraft.servlet.kit.HttpServlet;
 import spiralcraft.servlet.kit.StandardServletConfig;
@@ -25,6 +26,7 @@ import spiralcraft.lang.SimpleFocus;
 //import spiralcraft.lang.Channel;
 import spiralcraft.lang.Focus;
 import spiralcraft.lang.spi.SimpleChannel;
+import spiralcraft.lang.util.LangUtil;
 import spiralcraft.vfs.NotStreamableException;
 import spiralcraft.vfs.UnresolvableURIException;
 
@@ -65,6 +67,7 @@ import java.util.Properties;
  */
 public class UIServlet
   extends HttpServlet
+  implements WarmUp.Endpoint
 {
 
   /**
@@ -121,6 +124,11 @@ public class UIServlet
         ,new Properties()
         );
     staticServlet.init(staticConfig);
+    
+    WarmUp warmUp=WarmUp.getInstance(config.getServletContext());
+    if (warmUp!=null)
+    { warmUp.start(this);
+    }
   }
   
   /**
@@ -141,6 +149,13 @@ public class UIServlet
     throws ServletException
   {
     PathContext pathContext=PathContext.instance();
+    if (pathContext==null && FocusFilter.getFocusChain(request)!=null)
+    { 
+      // Requests prepared by WarmUp bind the PathContext without pushing it
+      pathContext
+        =LangUtil.findInstance
+          (PathContext.class,FocusFilter.getFocusChain(request));
+    }
     String contextPath;
     if (pathContext==null)
     { 
@@ -194,6 +209,17 @@ public class UIServlet
   }
     
         
+  /**
+   * <p>Compile and bind the page for a request prepared by WarmUp, without
+   *   serving it.
+   * </p>
+   */
+  @Override
+  public boolean warmUp(HttpServletRequest request)
+    throws ServletException,IOException
+  { return resolveComponent(request,ensureContext(request))!=null;
+  }
+        
   @Override
   protected void doGet(HttpServletRequest request,HttpServletResponse response)
     throws ServletException,IOException
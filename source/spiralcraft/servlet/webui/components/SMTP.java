@@ -16,11 +16,14 @@ package spiralcraft.servlet.webui.components;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import spiralcraft.log.Level;
 
 import spiralcraft.command.Command;
 import spiralcraft.command.CommandAdapter;
 import spiralcraft.common.ContextualException;
+import spiralcraft.common.LifecycleException;
 import spiralcraft.lang.AccessException;
 import spiralcraft.lang.Assignment;
 import spiralcraft.lang.BindException;
@@ -39,6 +42,7 @@ import spiralcraft.net.smtp.Envelope;
 
 import spiralcraft.servlet.webui.ControlGroup;
 import spiralcraft.servlet.webui.ServiceContext;
+import spiralcraft.servlet.util.MailQueue;
 
 import spiralcraft.textgen.Generator;
 import spiralcraft.util.ArrayUtil;
@@ -47,6 +51,16 @@ import spiralcraft.vfs.Resource;
 import spiralcraft.vfs.UnresolvableURIException;
 
   
+/**
+ * <p>Renders an email message from a textgen template and sends it through
+ *   the SMTPConnector published in the Focus chain.
+ * </p>
+ * 
+ * <p>When a MailQueue is configured, the rendered message is written to the
+ *   queue's spool and the send completes immediately, without waiting for
+ *   the mail relay. The post-assignments run once the message is queued.
+ * </p>
+ */
 public class SMTP
   extends ControlGroup<Envelope>
 {
@@ -69,6 +83,8 @@ public class SMTP
   
   private HeaderBinding<?>[] headerBindings;
   
+  private MailQueue mailQueue;
+  
   /**
    * <p>Specify the URI of the textgen email template for the message body
    * </p>
@@ -128,6 +144,22 @@ public class SMTP
   { this.headerBindings=headerBindings;
   }
   
+  /**
+   * <p>Deliver messages asynchronously through the specified MailQueue 
+   *   instead of sending them to the SMTPConnector during the request
+   * </p>
+   * 
+   * <p>The queue is started when the component is bound. Declare
+   *   MailQueueListener in web.xml to stop it when the application is
+   *   destroyed.
+   * </p>
+   * 
+   * @param mailQueue
+   */
+  public void setMailQueue(MailQueue mailQueue)
+  { this.mailQueue=mailQueue;
+  }
+  
   protected void newEntry()
   { 
     getState().setValue(new Envelope());
@@ -210,14 +242,27 @@ public class SMTP
           if (headerBindings!=null)
           { envelope.insertHeaders(headerBindings,true);
           }
-          smtpChannel.get().send(envelope);
-          Setter.applyArray(postSetters);
-          if (debug)
-          {  
-            log.fine
-              ("Sent to "+envelope.getRecipientList()
-              +"\r\n"+envelope.getEncodedMessage()
-              );
+          if (mailQueue!=null)
+          { 
+            if (queue(envelope))
+            {
+              Setter.applyArray(postSetters);
+              if (debug)
+              { log.fine("Queued for "+envelope.getRecipientList());
+              }
+            }
+          }
+          else
+          {
+            smtpChannel.get().send(envelope);
+            Setter.applyArray(postSetters);
+            if (debug)
+            {  
+              log.fine
+                ("Sent to "+envelope.getRecipientList()
+                +"\r\n"+envelope.getEncodedMessage()
+                );
+            }
           }
       
         }
@@ -228,14 +273,70 @@ public class SMTP
     }
     catch (IOException x)
     { 
-      getState().addError("Unable to contact mail server");
-      log.log(Level.WARNING,"Error sending mail",x);
+      if (mailQueue!=null)
+      { 
+        getState().addError("Unable to queue message");
+        log.log(Level.WARNING,"Error queueing mail",x);
+      }
+      else
+      {
+        getState().addError("Unable to contact mail server");
+        log.log(Level.WARNING,"Error sending mail",x);
+      }
     }
     if (debug && getState().getErrors()!=null)
     { log.fine(ArrayUtil.format(getState().getErrors(),",",null));
     }
   }
   
+  
+  /**
+   * @return Whether the message was queued, or false if an address was
+   *   invalid
+   */
+  private boolean queue(Envelope envelope)
+    throws IOException
+  {
+    List<String> recipients=new ArrayList<String>();
+    try
+    {
+      for (Object recipient: envelope.getRecipientList())
+      { recipients.add(bareAddress(recipient));
+      }
+      mailQueue.enqueue
+        (bareAddress(envelope.getSenderMailAddress())
+        ,recipients
+        ,envelope.getEncodedMessage()
+        );
+      return true;
+    }
+    catch (IllegalArgumentException x)
+    { 
+      getState().addError("Invalid mail address");
+      if (debug)
+      { log.log(Level.FINE,"Invalid mail address",x);
+      }
+      return false;
+    }
+  }
+  
+  /**
+   * @return The address part of a mail address, without any display name,
+   *   or null if there is no address
+   */
+  private static String bareAddress(Object mailAddress)
+  {
+    if (mailAddress==null)
+    { return null;
+    }
+    String address=mailAddress.toString();
+    int start=address.lastIndexOf('<');
+    int end=address.lastIndexOf('>');
+    if (start>-1 && end>start)
+    { address=address.substring(start+1,end);
+    }
+    return address.trim();
+  }
 
   @SuppressWarnings({ "unchecked", "rawtypes" })
   protected void addPreAssignment(String targetX,Expression source)
@@ -290,6 +391,16 @@ public class SMTP
       { binding.bind(focus);
       }
     }
+    if (mailQueue!=null)
+    {
+      // Deliver anything left in the spool without waiting for new mail
+      try
+      { mailQueue.start();
+      }
+      catch (LifecycleException x)
+      { log.log(Level.WARNING,"Error starting MailQueue",x);
+      }
+    }
     return super.bindExports(focus);
     
   }
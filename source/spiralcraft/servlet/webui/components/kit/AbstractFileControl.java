@@ -26,6 +26,7 @@ import spiralcraft.lang.Expression;
 import spiralcraft.lang.Focus;
 import spiralcraft.lang.kit.Callable;
 import spiralcraft.log.ClassLog;
+import spiralcraft.servlet.util.UploadPart;
 import spiralcraft.servlet.webui.Control;
 import spiralcraft.servlet.webui.ControlState;
 import spiralcraft.servlet.webui.ServiceContext;
@@ -380,7 +381,13 @@ public abstract class AbstractFileControl
             log.fine("Got file "+filename);
             log.fine("Got uri "+temporaryURI);
           }
-          Resource tempResource=Resolver.getInstance().resolve(temporaryURI);
+          
+          // Small uploads are held in memory and have no temporaryURI
+          UploadPart part=context.getUploadPart(state.getVariableName());
+          Resource tempResource
+            =part!=null
+            ?part.getResource()
+            :Resolver.getInstance().resolve(temporaryURI);
           
           if (maxSize>0 && tempResource.getSize()>maxSize)
           { 
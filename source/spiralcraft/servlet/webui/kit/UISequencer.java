@@ -135,17 +135,17 @@ public class UISequencer
             case INITIATED:
               // Initiated means no LRS sent in the request
               log.warning("OOB request must have an LRS");
-              response.getWriter().write("0");
+              serviceContext.getResponseWriter().write("0");
               break;
             case OUTOFSYNC:
             case NOSTATE:
               // OutOfSync should have already been intercepted
               // Initiated means no LRS sent in the request
               log.warning("OOB request is not in sync");
-              response.getWriter().write("0");
+              serviceContext.getResponseWriter().write("0");
               break;
             default:
-              response.getWriter().write
+              serviceContext.getResponseWriter().write
                 (Integer.toString
                   (request.getSession().getMaxInactiveInterval()*1000)
                 );
@@ -160,7 +160,7 @@ public class UISequencer
           response.setStatus(200);
 
         }
-        response.getWriter().flush();
+        serviceContext.finishResponse();
         response.flushBuffer();
       }
       else if (external)
@@ -211,7 +211,7 @@ public class UISequencer
         
         sequence(serviceContext,component,localSession);
         
-        response.getWriter().flush();
+        serviceContext.finishResponse();
         try
         { response.flushBuffer();   
         }
@@ -237,7 +237,7 @@ public class UISequencer
           sequence(serviceContext,component,localSession);
         }
         
-        response.getWriter().flush();
+        serviceContext.finishResponse();
         try
         { response.flushBuffer();   
         }